@@ -0,0 +1,124 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import com.getcapacitor.JSObject;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Minimal JMH-style harness for the plain JVM unit test runner. Each measurement runs warmup iterations first,
+ * then reports the mean time and the bytes allocated by the calling thread per operation.
+ */
+final class Benchmark {
+
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    static final int[] FENCE_COUNTS = { 10, 100, 10_000, 100_000 };
+
+    private static final long TARGET_NANOS = 500_000_000L;
+    private static final int WARMUP_ROUNDS = 3;
+
+    // Keeps results alive so the JIT cannot drop the measured work.
+    static volatile Object sink;
+
+    private Benchmark() {}
+
+    /**
+     * Measures op, which performs `operationsPerRun` operations each time it runs, and prints one result line.
+     */
+    static void measure(String name, int fenceCount, int operationsPerRun, Operation op) throws Exception {
+        int runs = calibrate(op);
+
+        for(int i = 0; i < WARMUP_ROUNDS; i++) {
+            for(int k = 0; k < runs; k++) {
+                op.run();
+            }
+        }
+
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+
+        for(int k = 0; k < runs; k++) {
+            op.run();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        long operations = (long) runs * operationsPerRun;
+
+        System.out.println(String.format(Locale.US, "%-40s %8d fences %14.1f ns/op %14.1f B/op",
+                name, fenceCount, (double) elapsed / operations, (double) allocated / operations));
+    }
+
+    /**
+     * Picks how many times op runs per round so a round takes about TARGET_NANOS.
+     */
+    private static int calibrate(Operation op) throws Exception {
+        long start = System.nanoTime();
+        op.run();
+        long once = Math.max(1, System.nanoTime() - start);
+        return (int) Math.max(1, Math.min(1_000_000, TARGET_NANOS / once));
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        if(threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        return 0;
+    }
+
+    /**
+     * Fences spread over roughly a 2 by 2 degree area so grid cells hold realistic neighbour counts.
+     */
+    static List<Fence> createFences(int count) {
+        ArrayList<Fence> fences = new ArrayList<>(count);
+
+        for(JSObject fence : createFenceObjects(count)) {
+            fences.add(Fence.fromJSObject(fence));
+        }
+
+        return fences;
+    }
+
+    /**
+     * The fences of createFences as they arrive from the bridge.
+     */
+    static List<JSObject> createFenceObjects(int count) {
+        Random random = new Random(count);
+        ArrayList<JSObject> fences = new ArrayList<>(count);
+
+        for(int i = 0; i < count; i++) {
+            JSObject fence = new JSObject();
+            fence.put("name", "Fence " + i);
+            fence.put("uid", "fence-" + i);
+            fence.put("payload", "{\"id\":" + i + "}");
+            fence.put("lat", 40 + random.nextDouble() * 2);
+            fence.put("lng", -75 + random.nextDouble() * 2);
+            fence.put("radius", Constants.MIN_FENCE_RADIUS + random.nextInt(Constants.MAX_FENCE_RADIUS - Constants.MIN_FENCE_RADIUS));
+            fence.put("monitor", Constants.MONITOR_BOTH);
+            fences.add(fence);
+        }
+
+        return fences;
+    }
+
+    static FenceRegistry createRegistry(List<Fence> fences) {
+        FenceRegistry registry = new FenceRegistry(Constants.ACTIVE_GRID_CELL_DEGREES);
+
+        for(Fence fence : fences) {
+            registry.add(fence);
+        }
+
+        return registry;
+    }
+}
@@ -0,0 +1,99 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import com.getcapacitor.JSArray;
+
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Covers the in-memory paths behind addFence validation, overlap and point queries and getActiveFences.
+ */
+public class FenceRegistryBenchmark {
+
+    private static final int PROBES = 1000;
+
+    @Test
+    public void duplicateCheck() throws Exception {
+        for(int fenceCount : Benchmark.FENCE_COUNTS) {
+            FenceRegistry registry = Benchmark.createRegistry(Benchmark.createFences(fenceCount));
+            List<Fence> probes = Benchmark.createFences(PROBES + fenceCount).subList(fenceCount, fenceCount + PROBES);
+
+            Benchmark.measure("addFence duplicate check", fenceCount, PROBES, () -> {
+                int duplicates = 0;
+                for(Fence probe : probes) {
+                    if(registry.isAlreadyFenced(probe)) {
+                        duplicates++;
+                    }
+                }
+                Benchmark.sink = duplicates;
+            });
+        }
+    }
+
+    @Test
+    public void addAndRemove() throws Exception {
+        for(int fenceCount : Benchmark.FENCE_COUNTS) {
+            FenceRegistry registry = Benchmark.createRegistry(Benchmark.createFences(fenceCount));
+            List<Fence> probes = Benchmark.createFences(PROBES + fenceCount).subList(fenceCount, fenceCount + PROBES);
+
+            Benchmark.measure("addFence insert + removeFence", fenceCount, PROBES, () -> {
+                for(Fence probe : probes) {
+                    registry.add(probe);
+                }
+                for(Fence probe : probes) {
+                    registry.remove(probe.uid);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void findOverlapping() throws Exception {
+        for(int fenceCount : Benchmark.FENCE_COUNTS) {
+            FenceRegistry registry = Benchmark.createRegistry(Benchmark.createFences(fenceCount));
+            List<Fence> probes = Benchmark.createFences(PROBES + fenceCount).subList(fenceCount, fenceCount + PROBES);
+
+            Benchmark.measure("findOverlapping", fenceCount, PROBES, () -> {
+                int overlapping = 0;
+                for(Fence probe : probes) {
+                    overlapping += registry.findOverlapping(probe.lat, probe.lng, probe.radius).size();
+                }
+                Benchmark.sink = overlapping;
+            });
+        }
+    }
+
+    @Test
+    public void findContaining() throws Exception {
+        for(int fenceCount : Benchmark.FENCE_COUNTS) {
+            FenceRegistry registry = Benchmark.createRegistry(Benchmark.createFences(fenceCount));
+            List<Fence> probes = Benchmark.createFences(PROBES + fenceCount).subList(fenceCount, fenceCount + PROBES);
+
+            Benchmark.measure("queryFencesAt", fenceCount, PROBES, () -> {
+                int containing = 0;
+                for(Fence probe : probes) {
+                    containing += registry.findContaining(probe.lat, probe.lng).size();
+                }
+                Benchmark.sink = containing;
+            });
+        }
+    }
+
+    @Test
+    public void getActiveFences() throws Exception {
+        for(int fenceCount : Benchmark.FENCE_COUNTS) {
+            FenceRegistry registry = Benchmark.createRegistry(Benchmark.createFences(fenceCount));
+
+            Benchmark.measure("getActiveFences", fenceCount, 1, () -> {
+                JSArray fencesJS = new JSArray();
+                for(Fence fence : registry.snapshot()) {
+                    fencesJS.put(fence.toJSObject());
+                }
+                Benchmark.sink = fencesJS;
+            });
+        }
+    }
+}
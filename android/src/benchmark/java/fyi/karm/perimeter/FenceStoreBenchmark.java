@@ -0,0 +1,180 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import com.getcapacitor.JSObject;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Covers reading fences from the bridge and the on-disk paths: compacting fences into the store when they are
+ * saved, replaying them on start, the keyed lookups the receiver makes for each triggered fence, and bulk payload
+ * reads.
+ */
+public class FenceStoreBenchmark {
+
+    private static final int TRIGGERED_FENCES = 5;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void saveFences() throws Exception {
+        for(int fenceCount : Benchmark.FENCE_COUNTS) {
+            List<Fence> fences = Benchmark.createFences(fenceCount);
+            FenceStore store = new FenceStore(new File(temporaryFolder.newFolder(), "fences.bin"));
+
+            Benchmark.measure("save fences (encode + store write)", fenceCount, 1, () -> {
+                ArrayList<String> fenceUIDs = new ArrayList<>(fences.size());
+                ArrayList<byte[]> bodies = new ArrayList<>(fences.size());
+
+                for(Fence fence : fences) {
+                    fenceUIDs.add(fence.uid);
+                    bodies.add(fence.encode());
+                }
+
+                store.write(fenceUIDs, bodies);
+            });
+        }
+    }
+
+    @Test
+    public void parseFences() throws Exception {
+        for(int fenceCount : Benchmark.FENCE_COUNTS) {
+            List<JSObject> fences = Benchmark.createFenceObjects(fenceCount);
+
+            Benchmark.measure("Fence.fromJSObject", fenceCount, fenceCount, () -> {
+                for(JSObject fence : fences) {
+                    Benchmark.sink = Fence.fromJSObject(fence);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void codec() throws Exception {
+        for(int fenceCount : Benchmark.FENCE_COUNTS) {
+            List<Fence> fences = Benchmark.createFences(fenceCount);
+
+            Benchmark.measure("fence encode + decode", fenceCount, fenceCount, () -> {
+                for(Fence fence : fences) {
+                    Benchmark.sink = Fence.decode(fence.encode());
+                }
+            });
+        }
+    }
+
+    @Test
+    public void journalAppend() throws Exception {
+        for(int fenceCount : Benchmark.FENCE_COUNTS) {
+            List<Fence> fences = Benchmark.createFences(fenceCount);
+            FenceJournal journal = createJournal(fences);
+            Fence fence = fences.get(0);
+
+            Benchmark.measure("journal put", fenceCount, 1, () -> FenceStores.put(journal, fence));
+        }
+    }
+
+    @Test
+    public void loadFences() throws Exception {
+        for(int fenceCount : Benchmark.FENCE_COUNTS) {
+            FenceJournal journal = createJournal(Benchmark.createFences(fenceCount));
+
+            Benchmark.measure("checkForExistingFences replay", fenceCount, 1, () -> {
+                FenceRegistry registry = new FenceRegistry(Constants.ACTIVE_GRID_CELL_DEGREES);
+                FenceStores.replayInto(journal, registry);
+                Benchmark.sink = registry;
+            });
+        }
+    }
+
+    @Test
+    public void triggeredFenceLookup() throws Exception {
+        for(int fenceCount : Benchmark.FENCE_COUNTS) {
+            FenceJournal journal = createJournal(Benchmark.createFences(fenceCount));
+            Random random = new Random(fenceCount);
+            String[] triggeredUIDs = new String[TRIGGERED_FENCES];
+
+            for(int i = 0; i < TRIGGERED_FENCES; i++) {
+                triggeredUIDs[i] = "fence-" + random.nextInt(fenceCount);
+            }
+
+            Benchmark.measure("triggered fence lookup", fenceCount, TRIGGERED_FENCES, () -> {
+                for(String fenceUID : triggeredUIDs) {
+                    Benchmark.sink = FenceStores.readFence(journal, fenceUID);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void payloadLookup() throws Exception {
+        for(int fenceCount : Benchmark.FENCE_COUNTS) {
+            FenceJournal payloads = createPayloadJournal(Benchmark.createFences(fenceCount));
+            Random random = new Random(fenceCount);
+            ArrayList<String> requestedUIDs = new ArrayList<>(TRIGGERED_FENCES);
+
+            for(int i = 0; i < TRIGGERED_FENCES; i++) {
+                requestedUIDs.add("fence-" + random.nextInt(fenceCount));
+            }
+
+            Benchmark.measure("getFencePayloads", fenceCount, TRIGGERED_FENCES, () -> {
+                Benchmark.sink = FenceStores.readPayloads(payloads, requestedUIDs);
+            });
+        }
+    }
+
+    /**
+     * A compacted store holding every fence, with the last few also sitting in the journal as they would after recent adds.
+     */
+    private FenceJournal createJournal(List<Fence> fences) throws Exception {
+        File directory = temporaryFolder.newFolder();
+        FenceJournal journal = new FenceJournal(new FenceStore(new File(directory, "fences.bin")), directory, "fences");
+        ArrayList<String> fenceUIDs = new ArrayList<>(fences.size());
+        ArrayList<byte[]> bodies = new ArrayList<>(fences.size());
+
+        for(Fence fence : fences) {
+            fenceUIDs.add(fence.uid);
+            bodies.add(fence.encode());
+        }
+
+        journal.finishCompaction(journal.beginCompaction(), fenceUIDs, bodies);
+
+        for(int i = Math.max(0, fences.size() - 10); i < fences.size(); i++) {
+            FenceStores.put(journal, fences.get(i));
+        }
+
+        return journal;
+    }
+
+    /**
+     * The payloads of the given fences, laid out like createJournal lays out the fences.
+     */
+    private FenceJournal createPayloadJournal(List<Fence> fences) throws Exception {
+        File directory = temporaryFolder.newFolder();
+        FenceJournal payloads = new FenceJournal(new FenceStore(new File(directory, "payloads.bin")), directory, "payloads");
+        ArrayList<String> fenceUIDs = new ArrayList<>(fences.size());
+        ArrayList<byte[]> bodies = new ArrayList<>(fences.size());
+
+        for(Fence fence : fences) {
+            fenceUIDs.add(fence.uid);
+            bodies.add(fence.payload.getBytes(StandardCharsets.UTF_8));
+        }
+
+        payloads.finishCompaction(payloads.beginCompaction(), fenceUIDs, bodies);
+
+        for(int i = Math.max(0, fences.size() - 10); i < fences.size(); i++) {
+            FenceStores.putPayload(payloads, fences.get(i).uid, fences.get(i).payload);
+        }
+
+        return payloads;
+    }
+}
@@ -12,7 +12,6 @@ import java.util.Map;
 public final class Constants {
 
     public static final String PERIMETER_TAG = "Perimeter";
-    public static final String ALL_ACTIVE_FENCES_EXTRA = "fencesActiveWhenAdded";
     public static final String FOREGROUND_ALIAS = "foreground";
     public static final String BACKGROUND_ALIAS = "background";
     public static final String CLIENT_INITIALIZED = "Geofencing client has been successfully initialized.";
@@ -22,10 +21,75 @@ public final class Constants {
     public static final int LOCATIONS_PERMISSIONS_REQUEST_CODE = 206314;
     public static final int MIN_FENCE_RADIUS = 200;
     public static final int MAX_FENCE_RADIUS = 2000;
+    // Responsiveness and loiter delay reach the client in int milliseconds. Debounce windows share the bound.
+    public static final int MAX_FENCE_DELAY_SECONDS = Integer.MAX_VALUE / 1000;
+    // Expiration is added to the wall clock in long milliseconds, half the range leaves room for the clock.
+    public static final long MAX_FENCE_EXPIRATION_SECONDS = Long.MAX_VALUE / 2000;
+
+    public static final String REFRESH_FENCE_UID = "perimeter.virtual.refresh";
+    public static final String ACTIVE_FENCE_STORE_NAME = "perimeter_active_fences";
+    public static final String VIRTUAL_FENCE_STORE_NAME = "perimeter_virtual_fences";
+    public static final String ACTIVE_PAYLOAD_STORE_NAME = "perimeter_active_payloads";
+    public static final String VIRTUAL_PAYLOAD_STORE_NAME = "perimeter_virtual_payloads";
+    public static final int COMPACTION_CHUNK_SIZE = 256;
+    public static final String VIRTUAL_FENCES_PREFS = "PerimeterVirtual";
+    public static final int DEFAULT_VIRTUAL_WORKING_SET_SIZE = 50;
+    public static final double VIRTUAL_GRID_CELL_DEGREES = 0.05;
+    public static final double ACTIVE_GRID_CELL_DEGREES = 0.05;
+    public static final int IMPORT_CHUNK_SIZE = 500;
+    public static final int IMPORT_MAX_REPORTED_ERRORS = 100;
+
+    // goAsync() gives a receiver roughly ten seconds, keep a margin for finish().
+    public static final long RECEIVER_DEADLINE_MILLISECONDS = 8000;
+    public static final int RECEIVER_WORKER_THREADS = 2;
+    public static final int BOOT_RESTORE_BATCH_SIZE = 25;
+
+    public static final String EVENT_QUEUE_FILE = "perimeter_events.ring";
+    public static final int EVENT_QUEUE_CAPACITY = 256;
+    public static final int EVENT_QUEUE_SLOT_BYTES = 512;
+
+    // One slot per reported transition, uids longer than (slot - 50) / 2 chars are not recorded.
+    public static final String HISTORY_FILE = "perimeter_history.ring";
+    public static final int HISTORY_CAPACITY = 4096;
+    public static final int HISTORY_SLOT_BYTES = 256;
+
+    public static final String TRANSITION_FILTER_PREFS = "PerimeterTransitions";
+    public static final String ACTION_SETTLE_TRANSITIONS = "fyi.karm.perimeter.SETTLE_TRANSITIONS";
+    public static final int SETTLE_TRANSITIONS_REQUEST_CODE = 206315;
 
     public static final int MONITOR_ENTER = 8;
     public static final int MONITOR_EXIT = 9;
     public static final int MONITOR_BOTH = 10;
+    public static final int MONITOR_DWELL = 11;
+
+    // Geofencing client calls are coalesced over this window and retried with backoff on transient failures.
+    public static final long OPERATION_COALESCE_MILLISECONDS = 50;
+    public static final int MAX_IN_FLIGHT_OPERATIONS = 2;
+    public static final int OPERATION_MAX_ATTEMPTS = 5;
+    public static final long OPERATION_RETRY_BASE_MILLISECONDS = 1000;
+    public static final long OPERATION_RETRY_MAX_MILLISECONDS = 30000;
+
+    public static final int POLYGON_MAX_VERTICES = 64;
+    public static final String POLYGON_TRACKER_PREFS = "PerimeterPolygons";
+    public static final String ACTION_CHECK_POLYGONS = "fyi.karm.perimeter.CHECK_POLYGONS";
+    public static final int CHECK_POLYGONS_REQUEST_CODE = 206316;
+    // A burst of fixes taken after a polygon's bounding circle fires. It stops once every pending polygon is resolved.
+    public static final long POLYGON_CHECK_INTERVAL_MILLISECONDS = 5000;
+    public static final int POLYGON_CHECK_MAX_UPDATES = 6;
+    // Checks the burst leaves unresolved are retried with single balanced power fixes, backing off up to the max,
+    // until the device reaches the polygon or leaves its circle.
+    public static final String ACTION_RECHECK_POLYGONS = "fyi.karm.perimeter.RECHECK_POLYGONS";
+    public static final int RECHECK_POLYGONS_REQUEST_CODE = 206318;
+    public static final long POLYGON_RECHECK_BASE_MILLISECONDS = 60000;
+    public static final long POLYGON_RECHECK_MAX_MILLISECONDS = 900000;
+
+    public static final String REGISTRATION_PREFS = "PerimeterRegistration";
+
+    public static final String ACTION_EXPIRE_FENCES = "fyi.karm.perimeter.EXPIRE_FENCES";
+    public static final int EXPIRE_FENCES_REQUEST_CODE = 206317;
+
+    // Any combination of GeofencingRequest.INITIAL_TRIGGER_ENTER, EXIT and DWELL.
+    public static final int INITIAL_TRIGGER_MASK = 1 | 2 | 4;
 
     public static String[] STANDARD_LOCATION_PERMISSIONS = new String[]{
             Manifest.permission.ACCESS_COARSE_LOCATION,
@@ -50,7 +114,11 @@ public final class Constants {
         METHOD_UNAVAILABLE_API_VER(201),
         FAILED_PACK_INTENT(202),
         FAILED_RESTORING_FENCES(203),
-        FOREGROUND_WITH_EXISTING_FENCES(204);
+        FOREGROUND_WITH_EXISTING_FENCES(204),
+        FAILED_ROTATING_VIRTUAL_FENCES(205),
+        FAILED_WRITING_FENCE_STORE(206),
+        FAILED_QUEUEING_FENCE_EVENT(207),
+        FAILED_RECORDING_HISTORY(208);
         private final int id;
         ANDROID_PLATFORM_EVENT(int id) { this.id = id; }
         public int getValue() { return id; }
@@ -67,9 +135,13 @@ public final class Constants {
         put(PERIMETER_ERROR.NO_OR_INVALID_ARGS.ordinal(), "Invalid arguments for this function.");
         put(PERIMETER_ERROR.FENCE_NOT_FOUND.ordinal(), "A fence with that UID was not found in the list of active fences.");
         put(PERIMETER_ERROR.TOO_MANY_FENCES.ordinal(), "Cannot exceed Android platform limit of 100 fences. Please remove a region first and then try to add this one.");
-        put(ANDROID_PLATFORM_EVENT.FAILED_PARSING_INTENT_EXTRAS.getValue(), "Failed to parse intent extras while reconciling triggered and available.");
+        put(ANDROID_PLATFORM_EVENT.FAILED_PARSING_INTENT_EXTRAS.getValue(), "Failed to read the triggered fences from the fence store.");
         put(ANDROID_PLATFORM_EVENT.METHOD_UNAVAILABLE_API_VER.getValue(), "This method is only available on Android Q or later.");
         put(ANDROID_PLATFORM_EVENT.FAILED_PACK_INTENT.getValue(), "Failed to pack intent data while attempting to create a new fence.");
         put(ANDROID_PLATFORM_EVENT.FAILED_RESTORING_FENCES.getValue(), "An error occurred while attempting to restore fences from SharedPrefs.");
+        put(ANDROID_PLATFORM_EVENT.FAILED_ROTATING_VIRTUAL_FENCES.getValue(), "Failed to register the nearest virtual fences with the system.");
+        put(ANDROID_PLATFORM_EVENT.FAILED_WRITING_FENCE_STORE.getValue(), "Failed to write fences to the fence store.");
+        put(ANDROID_PLATFORM_EVENT.FAILED_QUEUEING_FENCE_EVENT.getValue(), "Failed to open the fence event queue, events fired while the app is stopped may be lost.");
+        put(ANDROID_PLATFORM_EVENT.FAILED_RECORDING_HISTORY.getValue(), "Failed to open the transition history, transitions are not being recorded.");
     }};
 }
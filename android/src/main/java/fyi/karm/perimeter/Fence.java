@@ -0,0 +1,482 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import static fyi.karm.perimeter.Constants.*;
+
+import androidx.annotation.Nullable;
+
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Immutable fence as the plugin keeps it in memory and on disk. Geometry and options are primitives and JSON is
+ * only produced at the bridge. Optional settings the caller left out hold UNSET so they round-trip unchanged.
+ */
+final class Fence {
+
+    static final int UNSET = -1;
+
+    private static final String[] NO_TAGS = new String[0];
+
+    // Written first in every record so the layout can change later without guessing at old records.
+    private static final byte CODEC_VERSION = 1;
+
+    final String uid;
+    final String name;
+    // Only set on fences read from the bridge. Stored fences keep their payload in a separate journal so it does
+    // not travel with every event and listing.
+    @Nullable final String payload;
+    final long payloadHash;
+    final double lat;
+    final double lng;
+    final float radius;
+    final int monitor;
+    final long debounceSeconds;
+    final int responsivenessSeconds;
+    final int loiterDelaySeconds;
+    final long expirationSeconds;
+    // Wall clock time in milliseconds at which expirationSeconds runs out, fixed when the fence is read from the bridge.
+    final long expiresAt;
+    final int initialTrigger;
+    // Any other keys the caller put on the fence, kept as a JSON object string so they come back on getActiveFences.
+    @Nullable final String extras;
+    final String[] tags;
+    // Polygon fences register their bounding circle as lat, lng and radius. Vertices are flattened lat, lng pairs.
+    @Nullable final double[] polygon;
+    // Computed on first use. Racing threads compute the same value, so no synchronization is needed.
+    private long contentHash;
+
+    Fence(String uid, String name, @Nullable String payload, long payloadHash, double lat, double lng, float radius, int monitor,
+          long debounceSeconds, int responsivenessSeconds, int loiterDelaySeconds, long expirationSeconds, long expiresAt,
+          int initialTrigger, @Nullable String extras, String[] tags, @Nullable double[] polygon) {
+        this.uid = uid.intern();
+        this.name = name;
+        this.payload = payload;
+        this.payloadHash = payloadHash;
+        this.lat = lat;
+        this.lng = lng;
+        this.radius = radius;
+        this.monitor = monitor;
+        this.debounceSeconds = debounceSeconds;
+        this.responsivenessSeconds = responsivenessSeconds;
+        this.loiterDelaySeconds = loiterDelaySeconds;
+        this.expirationSeconds = expirationSeconds;
+        this.expiresAt = expiresAt;
+        this.initialTrigger = initialTrigger;
+        this.extras = extras;
+        this.tags = tags;
+        this.polygon = polygon;
+    }
+
+    /**
+     * Reads a fence from the bridge. The object is expected to have passed validateFenceShape already.
+     */
+    static Fence fromJSObject(JSONObject fence) {
+        JSONObject extras = null;
+        Iterator<String> keys = fence.keys();
+
+        while(keys.hasNext()) {
+            String key = keys.next();
+
+            if(!isKnownKey(key)) {
+                if(extras == null) {
+                    extras = new JSONObject();
+                }
+
+                try {
+                    extras.put(key, fence.opt(key));
+                }
+                catch (JSONException ignored) {}
+            }
+        }
+
+        double[] polygon = FencePolygons.fromJSArray(fence.optJSONArray("polygon"));
+        double lat = fence.optDouble("lat");
+        double lng = fence.optDouble("lng");
+        double radius = fence.optDouble("radius");
+
+        if(polygon != null) {
+            double[] circle = FencePolygons.boundingCircle(polygon);
+            lat = circle[0];
+            lng = circle[1];
+            radius = Math.max(MIN_FENCE_RADIUS, Math.ceil(circle[2]));
+        }
+
+        String payload = fence.optString("payload");
+        long expirationSeconds = fence.optLong("expirationSeconds", UNSET);
+
+        return new Fence(
+                fence.optString("uid"),
+                fence.optString("name"),
+                payload,
+                hash(payload.getBytes(StandardCharsets.UTF_8)),
+                lat,
+                lng,
+                (float) radius,
+                fence.optInt("monitor"),
+                fence.optLong("debounceSeconds", UNSET),
+                fence.optInt("responsivenessSeconds", UNSET),
+                fence.optInt("loiterDelaySeconds", UNSET),
+                expirationSeconds,
+                expirationSeconds != UNSET ? System.currentTimeMillis() + expirationSeconds * 1000 : UNSET,
+                fence.optInt("initialTrigger", UNSET),
+                extras == null ? null : extras.toString(),
+                readTags(fence.optJSONArray("tags")),
+                polygon);
+    }
+
+    /**
+     * The same fence without its payload, as it is kept in memory once the payload has been stored.
+     */
+    Fence withoutPayload() {
+        if(payload == null) {
+            return this;
+        }
+
+        return new Fence(uid, name, null, payloadHash, lat, lng, radius, monitor, debounceSeconds, responsivenessSeconds,
+                loiterDelaySeconds, expirationSeconds, expiresAt, initialTrigger, extras, tags, polygon);
+    }
+
+    boolean isExpired(long now) {
+        return expiresAt != UNSET && expiresAt <= now;
+    }
+
+    boolean isPolygon() {
+        return polygon != null;
+    }
+
+    /**
+     * True when the point lies inside the fence, its polygon for polygon fences and its circle otherwise.
+     */
+    boolean contains(double pointLat, double pointLng) {
+        if(FenceGrid.distanceMeters(lat, lng, pointLat, pointLng) > radius) {
+            return false;
+        }
+
+        return polygon == null || FencePolygons.contains(polygon, pointLat, pointLng);
+    }
+
+    boolean hasTag(String tag) {
+        for(String fenceTag : tags) {
+            if(fenceTag.equals(tag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    JSObject toJSObject() {
+        return toJSObject(null);
+    }
+
+    /**
+     * Builds the bridge object. When fields is given only those keys are written, so callers can leave out
+     * large values such as the payload.
+     */
+    JSObject toJSObject(@Nullable Set<String> fields) {
+        JSObject fence = new JSObject();
+
+        if(extras != null && fields == null) {
+            try {
+                JSONObject extraFields = new JSONObject(extras);
+                Iterator<String> keys = extraFields.keys();
+
+                while(keys.hasNext()) {
+                    String key = keys.next();
+                    fence.put(key, extraFields.opt(key));
+                }
+            }
+            catch (JSONException ignored) {}
+        }
+
+        if(fields == null || fields.contains("uid")) {
+            fence.put("uid", uid);
+        }
+        if(fields == null || fields.contains("name")) {
+            fence.put("name", name);
+        }
+        if(payload != null && (fields == null || fields.contains("payload"))) {
+            fence.put("payload", payload);
+        }
+        if(fields == null || fields.contains("lat")) {
+            fence.put("lat", lat);
+        }
+        if(fields == null || fields.contains("lng")) {
+            fence.put("lng", lng);
+        }
+        if(fields == null || fields.contains("radius")) {
+            fence.put("radius", radius);
+        }
+        if(fields == null || fields.contains("monitor")) {
+            fence.put("monitor", monitor);
+        }
+        if(tags.length > 0 && (fields == null || fields.contains("tags"))) {
+            fence.put("tags", new JSArray(Arrays.asList(tags)));
+        }
+        if(polygon != null && (fields == null || fields.contains("polygon"))) {
+            JSArray vertices = new JSArray();
+
+            for(int i = 0; i < polygon.length; i += 2) {
+                JSObject vertex = new JSObject();
+                vertex.put("lat", polygon[i]);
+                vertex.put("lng", polygon[i + 1]);
+                vertices.put(vertex);
+            }
+
+            fence.put("polygon", vertices);
+        }
+
+        putIfSet(fence, fields, "debounceSeconds", debounceSeconds);
+        putIfSet(fence, fields, "responsivenessSeconds", responsivenessSeconds);
+        putIfSet(fence, fields, "loiterDelaySeconds", loiterDelaySeconds);
+        putIfSet(fence, fields, "expirationSeconds", expirationSeconds);
+        putIfSet(fence, fields, "expiresAt", expiresAt);
+        putIfSet(fence, fields, "initialTrigger", initialTrigger);
+        return fence;
+    }
+
+    byte[] encode() {
+        return encode(true);
+    }
+
+    private byte[] encode(boolean withExpiry) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(80 + uid.length() + name.length());
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeByte(CODEC_VERSION);
+            writeString(out, uid);
+            writeString(out, name);
+            out.writeLong(payloadHash);
+            out.writeDouble(lat);
+            out.writeDouble(lng);
+            out.writeFloat(radius);
+            out.writeInt(monitor);
+            out.writeLong(debounceSeconds);
+            out.writeInt(responsivenessSeconds);
+            out.writeInt(loiterDelaySeconds);
+            out.writeLong(expirationSeconds);
+            out.writeInt(initialTrigger);
+            writeString(out, extras);
+            out.writeInt(tags.length);
+
+            for(String tag : tags) {
+                writeString(out, tag);
+            }
+
+            out.writeInt(polygon == null ? 0 : polygon.length);
+
+            if(polygon != null) {
+                for(double coordinate : polygon) {
+                    out.writeDouble(coordinate);
+                }
+            }
+
+            if(withExpiry) {
+                out.writeLong(expiresAt);
+            }
+        }
+        catch (IOException e) {
+            // ByteArrayOutputStream does not throw.
+            throw new IllegalStateException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the encoded fence. setFences treats two fences with the same uid and hash as unchanged.
+     * The encoding carries the payload hash, so a changed payload changes this too, with or without the payload.
+     * expiresAt is left out, so sending the same fence again keeps the expiry it was first given.
+     */
+    long contentHash() {
+        if(contentHash == 0) {
+            contentHash = hash(encode(false));
+        }
+
+        return contentHash;
+    }
+
+    private static long hash(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+
+        for(byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    /**
+     * Decodes a fence written by encode. The payload is not part of the record, so the fence comes back without it.
+     */
+    static Fence decode(byte[] body) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(body);
+
+        try {
+            byte version = in.get();
+
+            if(version != CODEC_VERSION) {
+                throw new IOException("Unknown fence codec version " + version);
+            }
+
+            String uid = readString(in);
+            String name = readString(in);
+            long payloadHash = in.getLong();
+            double lat = in.getDouble();
+            double lng = in.getDouble();
+            float radius = in.getFloat();
+            int monitor = in.getInt();
+            long debounceSeconds = in.getLong();
+            int responsivenessSeconds = in.getInt();
+            int loiterDelaySeconds = in.getInt();
+            long expirationSeconds = in.getLong();
+            int initialTrigger = in.getInt();
+            String extras = readString(in);
+            String[] tags = NO_TAGS;
+            int tagCount = in.getInt();
+            // Each tag takes at least its length prefix.
+            checkLength(in, tagCount, Integer.BYTES);
+
+            if(tagCount > 0) {
+                tags = new String[tagCount];
+
+                for(int i = 0; i < tagCount; i++) {
+                    String tag = readString(in);
+                    tags[i] = tag == null ? "" : tag;
+                }
+            }
+
+            double[] polygon = null;
+            int coordinateCount = in.getInt();
+            checkLength(in, coordinateCount, Double.BYTES);
+
+            if(coordinateCount > 0) {
+                polygon = new double[coordinateCount];
+
+                for(int i = 0; i < coordinateCount; i++) {
+                    polygon[i] = in.getDouble();
+                }
+            }
+
+            long expiresAt = in.getLong();
+
+            return new Fence(
+                    uid == null ? "" : uid,
+                    name == null ? "" : name,
+                    null,
+                    payloadHash,
+                    lat,
+                    lng,
+                    radius,
+                    monitor,
+                    debounceSeconds,
+                    responsivenessSeconds,
+                    loiterDelaySeconds,
+                    expirationSeconds,
+                    expiresAt,
+                    initialTrigger,
+                    extras,
+                    tags,
+                    polygon);
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("Truncated fence record", e);
+        }
+    }
+
+    private static boolean isKnownKey(String key) {
+        switch (key) {
+            case "uid":
+            case "name":
+            case "payload":
+            case "lat":
+            case "lng":
+            case "radius":
+            case "monitor":
+            case "debounceSeconds":
+            case "responsivenessSeconds":
+            case "loiterDelaySeconds":
+            case "expirationSeconds":
+            case "expiresAt":
+            case "initialTrigger":
+            case "tags":
+            case "polygon":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static String[] readTags(@Nullable JSONArray tagsJS) {
+        if(tagsJS == null || tagsJS.length() == 0) {
+            return NO_TAGS;
+        }
+
+        String[] tags = new String[tagsJS.length()];
+
+        for(int i = 0; i < tags.length; i++) {
+            tags[i] = tagsJS.optString(i).intern();
+        }
+
+        return tags;
+    }
+
+    private static void putIfSet(JSObject fence, @Nullable Set<String> fields, String key, long value) {
+        if(value != UNSET && (fields == null || fields.contains(key))) {
+            fence.put(key, value);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String value) throws IOException {
+        if(value == null) {
+            out.writeInt(UNSET);
+            return;
+        }
+
+        byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(encoded.length);
+        out.write(encoded);
+    }
+
+    @Nullable
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+
+        if(length == UNSET) {
+            return null;
+        }
+
+        checkLength(in, length, 1);
+        byte[] encoded = new byte[length];
+        in.get(encoded);
+        return new String(encoded, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks a count read from a record before anything is allocated for it, so a corrupt record fails to decode
+     * rather than running out of memory.
+     */
+    private static void checkLength(ByteBuffer in, int count, int minBytes) throws IOException {
+        if(count < 0 || (long) count * minBytes > in.remaining()) {
+            throw new IOException("Corrupt fence record, " + count + " entries do not fit in " + in.remaining() + " bytes");
+        }
+    }
+}
@@ -0,0 +1,159 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import static fyi.karm.perimeter.Constants.*;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persistent ring of fence events that fired while nothing in the app was listening. The file holds a fixed
+ * number of fixed-size slots, so it never grows; once full, the oldest event is overwritten.
+ *
+ * Only uids are queued, the fences themselves are read back from the fence store when the queue is drained.
+ */
+final class FenceEventQueue {
+
+    static final class QueuedEvent {
+        final long time;
+        final int transitionType;
+        final ArrayList<String> fenceUIDs;
+
+        QueuedEvent(long time, int transitionType, ArrayList<String> fenceUIDs) {
+            this.time = time;
+            this.transitionType = transitionType;
+            this.fenceUIDs = fenceUIDs;
+        }
+    }
+
+    private static final int MAGIC = 0x50455131; // PEQ1
+    private static final int HEADER_BYTES = 16;
+    private static final int SLOT_HEADER_BYTES = 14;
+
+    private static FenceEventQueue instance;
+
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int slotBytes;
+
+    private FenceEventQueue(File file, int capacity, int slotBytes) throws IOException {
+        this.capacity = capacity;
+        this.slotBytes = slotBytes;
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) capacity * slotBytes);
+        }
+
+        if(buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, 0);
+            buffer.putInt(8, 0);
+        }
+    }
+
+    static synchronized FenceEventQueue get(Context context) throws IOException {
+        if(instance == null) {
+            instance = new FenceEventQueue(new File(context.getFilesDir(), EVENT_QUEUE_FILE), EVENT_QUEUE_CAPACITY, EVENT_QUEUE_SLOT_BYTES);
+        }
+
+        return instance;
+    }
+
+    synchronized int size() {
+        return buffer.getInt(8);
+    }
+
+    /**
+     * Queues an event. Events with more uids than fit in one slot are split across several slots that share the same time and transition.
+     */
+    synchronized void append(long time, int transitionType, List<String> fenceUIDs) {
+        int index = 0;
+
+        do {
+            int head = buffer.getInt(4);
+            int count = buffer.getInt(8);
+            int slot = (head + count) % capacity;
+            int position = HEADER_BYTES + slot * slotBytes;
+            int end = position + slotBytes;
+            int cursor = position + SLOT_HEADER_BYTES;
+            short written = 0;
+
+            while(index < fenceUIDs.size()) {
+                byte[] encodedUID = fenceUIDs.get(index).getBytes(StandardCharsets.UTF_8);
+
+                if(cursor + 2 + encodedUID.length > end) {
+                    if(written == 0) {
+                        // A uid longer than a whole slot can never be queued, skip it rather than loop forever.
+                        index++;
+                        continue;
+                    }
+                    break;
+                }
+
+                buffer.putShort(cursor, (short) encodedUID.length);
+                for(int i = 0; i < encodedUID.length; i++) {
+                    buffer.put(cursor + 2 + i, encodedUID[i]);
+                }
+
+                cursor += 2 + encodedUID.length;
+                written++;
+                index++;
+            }
+
+            buffer.putLong(position, time);
+            buffer.putInt(position + 8, transitionType);
+            buffer.putShort(position + 12, written);
+
+            // The slot is complete before the header moves, so a kill mid-append only loses this event.
+            if(count == capacity) {
+                buffer.putInt(4, (head + 1) % capacity);
+            }
+            else {
+                buffer.putInt(8, count + 1);
+            }
+        } while(index < fenceUIDs.size());
+    }
+
+    /**
+     * Returns every queued event, oldest first, and empties the queue.
+     */
+    synchronized List<QueuedEvent> drain() {
+        int head = buffer.getInt(4);
+        int count = buffer.getInt(8);
+        ArrayList<QueuedEvent> events = new ArrayList<>(count);
+
+        for(int i = 0; i < count; i++) {
+            int position = HEADER_BYTES + ((head + i) % capacity) * slotBytes;
+            long time = buffer.getLong(position);
+            int transitionType = buffer.getInt(position + 8);
+            int uidCount = buffer.getShort(position + 12);
+            int cursor = position + SLOT_HEADER_BYTES;
+            ArrayList<String> fenceUIDs = new ArrayList<>(uidCount);
+
+            for(int k = 0; k < uidCount; k++) {
+                byte[] encodedUID = new byte[buffer.getShort(cursor)];
+                for(int b = 0; b < encodedUID.length; b++) {
+                    encodedUID[b] = buffer.get(cursor + 2 + b);
+                }
+                fenceUIDs.add(new String(encodedUID, StandardCharsets.UTF_8));
+                cursor += 2 + encodedUID.length;
+            }
+
+            events.add(new QueuedEvent(time, transitionType, fenceUIDs));
+        }
+
+        buffer.putInt(4, 0);
+        buffer.putInt(8, 0);
+        return events;
+    }
+}
@@ -0,0 +1,302 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A uniform lat/lng grid used as a spatial hash for fences. Each cell is a square of
+ * cellDegrees on a side, so lookups only touch the cells around a point instead of the whole set.
+ */
+final class FenceGrid<T> {
+
+    static final double EARTH_RADIUS_METERS = 6371008.8;
+    static final double METERS_PER_DEGREE = Math.PI * EARTH_RADIUS_METERS / 180;
+
+    static final class Entry<T> {
+        final String key;
+        final double lat;
+        final double lng;
+        final T value;
+
+        Entry(String key, double lat, double lng, T value) {
+            this.key = key;
+            this.lat = lat;
+            this.lng = lng;
+            this.value = value;
+        }
+    }
+
+    private final double cellDegrees;
+    private final int lngCellCount;
+    private final HashMap<Long, ArrayList<Entry<T>>> cells;
+    private int size;
+
+    FenceGrid(double cellDegrees) {
+        this.cellDegrees = cellDegrees;
+        this.lngCellCount = (int) Math.ceil(360 / cellDegrees);
+        this.cells = new HashMap<>();
+    }
+
+    /**
+     * A copy that can be changed without affecting this grid. Entries are immutable, so only the cells are copied.
+     */
+    FenceGrid(FenceGrid<T> other) {
+        this.cellDegrees = other.cellDegrees;
+        this.lngCellCount = other.lngCellCount;
+        this.cells = new HashMap<>(other.cells.size() * 2);
+        this.size = other.size;
+
+        for(Map.Entry<Long, ArrayList<Entry<T>>> cell : other.cells.entrySet()) {
+            cells.put(cell.getKey(), new ArrayList<>(cell.getValue()));
+        }
+    }
+
+    static double distanceMeters(double lat1, double lng1, double lat2, double lng2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+                Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    int size() {
+        return size;
+    }
+
+    void put(String key, double lat, double lng, T value) {
+        long cellKey = cellKey(latIndex(lat), lngIndex(lng));
+        ArrayList<Entry<T>> cell = cells.get(cellKey);
+
+        if(cell == null) {
+            cell = new ArrayList<>(4);
+            cells.put(cellKey, cell);
+        }
+
+        cell.add(new Entry<>(key, lat, lng, value));
+        size++;
+    }
+
+    boolean remove(String key, double lat, double lng) {
+        long cellKey = cellKey(latIndex(lat), lngIndex(lng));
+        ArrayList<Entry<T>> cell = cells.get(cellKey);
+
+        if(cell == null) {
+            return false;
+        }
+
+        for(int i = 0; i < cell.size(); i++) {
+            if(cell.get(i).key.equals(key)) {
+                cell.remove(i);
+                size--;
+                if(cell.isEmpty()) {
+                    cells.remove(cellKey);
+                }
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    void clear() {
+        cells.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the first entry with exactly these coordinates, or null.
+     */
+    Entry<T> findAt(double lat, double lng) {
+        ArrayList<Entry<T>> cell = cells.get(cellKey(latIndex(lat), lngIndex(lng)));
+
+        if(cell != null) {
+            for(Entry<T> entry : cell) {
+                if(entry.lat == lat && entry.lng == lng) {
+                    return entry;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns every entry whose coordinates lie within radiusMeters of the point.
+     */
+    List<Entry<T>> query(double lat, double lng, double radiusMeters) {
+        ArrayList<Entry<T>> found = new ArrayList<>();
+        int latSpan = (int) Math.ceil(radiusMeters / METERS_PER_DEGREE / cellDegrees);
+        int lngSpan = (int) Math.ceil(radiusMeters / (METERS_PER_DEGREE * Math.max(Math.cos(Math.toRadians(lat)), 0.01)) / cellDegrees);
+        int centerLat = latIndex(lat);
+        int centerLng = lngIndex(lng);
+
+        if((2L * latSpan + 1) * (2L * lngSpan + 1) > cells.size()) {
+            // Sparse grid, it is cheaper to walk the occupied cells than the covered ones.
+            for(ArrayList<Entry<T>> cell : cells.values()) {
+                collectWithin(cell, lat, lng, radiusMeters, found);
+            }
+            return found;
+        }
+
+        for(int i = centerLat - latSpan; i <= centerLat + latSpan; i++) {
+            for(int k = centerLng - lngSpan; k <= centerLng + lngSpan; k++) {
+                ArrayList<Entry<T>> cell = cells.get(cellKey(i, k));
+                if(cell != null) {
+                    collectWithin(cell, lat, lng, radiusMeters, found);
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Returns every entry whose coordinates lie inside the box. A box whose west edge is greater than its
+     * east edge crosses the antimeridian.
+     */
+    List<Entry<T>> queryBox(double south, double west, double north, double east) {
+        ArrayList<Entry<T>> found = new ArrayList<>();
+        int southIndex = latIndex(south);
+        int northIndex = latIndex(north);
+        int westIndex = lngIndex(west);
+        int eastIndex = lngIndex(east);
+
+        if(eastIndex < westIndex || (eastIndex == westIndex && east < west)) {
+            eastIndex = Math.min(eastIndex + lngCellCount, westIndex + lngCellCount - 1);
+        }
+
+        if((long) (northIndex - southIndex + 1) * (eastIndex - westIndex + 1) > cells.size()) {
+            // Sparse grid, it is cheaper to walk the occupied cells than the covered ones.
+            for(ArrayList<Entry<T>> cell : cells.values()) {
+                collectInBox(cell, south, west, north, east, found);
+            }
+            return found;
+        }
+
+        for(int i = southIndex; i <= northIndex; i++) {
+            for(int k = westIndex; k <= eastIndex; k++) {
+                ArrayList<Entry<T>> cell = cells.get(cellKey(i, k));
+                if(cell != null) {
+                    collectInBox(cell, south, west, north, east, found);
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Returns up to count entries ordered by distance from the point, nearest first. Cells are
+     * visited in rings around the point and the search stops once no unvisited ring can hold a closer entry.
+     */
+    List<Entry<T>> nearest(double lat, double lng, int count) {
+        if(count <= 0 || size == 0) {
+            return new ArrayList<>();
+        }
+
+        // Max heap on distance so the farthest candidate can be evicted in O(log count).
+        PriorityQueue<double[]> heap = new PriorityQueue<>(count + 1, (a, b) -> Double.compare(b[0], a[0]));
+        ArrayList<Entry<T>> candidates = new ArrayList<>();
+        int centerLat = latIndex(lat);
+        int centerLng = lngIndex(lng);
+        int visitedCells = 0;
+
+        for(int ring = 0; ; ring++) {
+            int ringCells = ring == 0 ? 1 : 8 * ring;
+
+            if(visitedCells + ringCells > cells.size() * 2 && ring > 0) {
+                // Sparse grid, fall back to scoring every occupied cell once.
+                heap.clear();
+                candidates.clear();
+                for(ArrayList<Entry<T>> cell : cells.values()) {
+                    offerAll(cell, lat, lng, count, heap, candidates);
+                }
+                break;
+            }
+
+            for(int i = centerLat - ring; i <= centerLat + ring; i++) {
+                for(int k = centerLng - ring; k <= centerLng + ring; k++) {
+                    if(Math.abs(i - centerLat) != ring && Math.abs(k - centerLng) != ring) {
+                        continue;
+                    }
+                    ArrayList<Entry<T>> cell = cells.get(cellKey(i, k));
+                    if(cell != null) {
+                        offerAll(cell, lat, lng, count, heap, candidates);
+                    }
+                }
+            }
+
+            visitedCells += ringCells;
+
+            if(heap.size() == count) {
+                double ringLat = Math.min(90, Math.abs(lat) + (ring + 1) * cellDegrees);
+                double nextRingMeters = ring * cellDegrees * METERS_PER_DEGREE * Math.max(Math.cos(Math.toRadians(ringLat)), 0.01);
+                if(heap.peek()[0] <= nextRingMeters) {
+                    break;
+                }
+            }
+        }
+
+        ArrayList<double[]> ordered = new ArrayList<>(heap);
+        Collections.sort(ordered, (a, b) -> Double.compare(a[0], b[0]));
+        ArrayList<Entry<T>> nearest = new ArrayList<>(ordered.size());
+
+        for(double[] scored : ordered) {
+            nearest.add(candidates.get((int) scored[1]));
+        }
+
+        return nearest;
+    }
+
+    private void offerAll(ArrayList<Entry<T>> cell, double lat, double lng, int count, PriorityQueue<double[]> heap, ArrayList<Entry<T>> candidates) {
+        for(Entry<T> entry : cell) {
+            double distance = distanceMeters(lat, lng, entry.lat, entry.lng);
+            if(heap.size() < count) {
+                heap.add(new double[]{ distance, candidates.size() });
+                candidates.add(entry);
+            }
+            else if(distance < heap.peek()[0]) {
+                heap.poll();
+                heap.add(new double[]{ distance, candidates.size() });
+                candidates.add(entry);
+            }
+        }
+    }
+
+    private void collectWithin(ArrayList<Entry<T>> cell, double lat, double lng, double radiusMeters, ArrayList<Entry<T>> found) {
+        for(Entry<T> entry : cell) {
+            if(distanceMeters(lat, lng, entry.lat, entry.lng) <= radiusMeters) {
+                found.add(entry);
+            }
+        }
+    }
+
+    private void collectInBox(ArrayList<Entry<T>> cell, double south, double west, double north, double east, ArrayList<Entry<T>> found) {
+        for(Entry<T> entry : cell) {
+            boolean inLng = west <= east ? entry.lng >= west && entry.lng <= east : entry.lng >= west || entry.lng <= east;
+            if(entry.lat >= south && entry.lat <= north && inLng) {
+                found.add(entry);
+            }
+        }
+    }
+
+    private int latIndex(double lat) {
+        return (int) Math.floor((lat + 90) / cellDegrees);
+    }
+
+    private int lngIndex(double lng) {
+        return (int) Math.floor((lng + 180) / cellDegrees);
+    }
+
+    private long cellKey(int latIndex, int lngIndex) {
+        // Wrap longitude so rings that cross the antimeridian still find their neighbours.
+        int wrappedLng = ((lngIndex % lngCellCount) + lngCellCount) % lngCellCount;
+        return ((long) latIndex << 32) | (wrappedLng & 0xffffffffL);
+    }
+}
@@ -0,0 +1,306 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import static fyi.karm.perimeter.Constants.*;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Persistent ring of every transition the receiver reports, one fixed-size slot per fence, so it never grows and
+ * the oldest entries are overwritten once it is full. Appends write straight into the mapped file and allocate
+ * nothing.
+ *
+ * Entries are numbered by a sequence that only moves forward. Receive times are kept non-decreasing in sequence
+ * order, so a range starts with a binary search, and each entry links to the previous entry for the same uid,
+ * so a query for one fence only visits that fence's entries. The newest entry per uid is tracked in memory and
+ * rebuilt from the ring when it is opened.
+ */
+final class FenceHistory {
+
+    static final class Entry {
+        final String fenceUID;
+        final int transitionType;
+        final long time;
+        final long receivedAt;
+        final float accuracy;
+
+        Entry(String fenceUID, int transitionType, long time, long receivedAt, float accuracy) {
+            this.fenceUID = fenceUID;
+            this.transitionType = transitionType;
+            this.time = time;
+            this.receivedAt = receivedAt;
+            this.accuracy = accuracy;
+        }
+    }
+
+    private static final int MAGIC = 0x50464831; // PFH1
+    private static final int HEADER_BYTES = 16;
+    // { sequence, time, receivedAt, previous sequence for the uid, uid hash, accuracy, transition, uid length }
+    private static final int SLOT_HEADER_BYTES = 50;
+    private static final long NO_SEQUENCE = -1;
+
+    private static FenceHistory instance;
+
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int slotBytes;
+    private final int maxUIDChars;
+
+    // Open addressing from uid hash to the newest sequence for it. Stale uids are only dropped when it is
+    // rebuilt, which happens once it is half full.
+    private final long[] latestKeys;
+    private final long[] latestSequences;
+    private int latestCount;
+    private long lastReceivedAt;
+
+    FenceHistory(File file, int capacity, int slotBytes) throws IOException {
+        this.capacity = capacity;
+        this.slotBytes = slotBytes;
+        this.maxUIDChars = (slotBytes - SLOT_HEADER_BYTES) / 2;
+        this.latestKeys = new long[Integer.highestOneBit(capacity) * 4];
+        this.latestSequences = new long[latestKeys.length];
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) capacity * slotBytes);
+        }
+
+        if(buffer.getInt(0) != MAGIC) {
+            buffer.putLong(8, 0);
+            buffer.putInt(0, MAGIC);
+        }
+
+        long nextSequence = buffer.getLong(8);
+
+        if(nextSequence > oldestSequence()) {
+            lastReceivedAt = buffer.getLong(slotPosition(nextSequence - 1) + 16);
+        }
+
+        rebuildLatest();
+    }
+
+    static synchronized FenceHistory get(Context context) throws IOException {
+        if(instance == null) {
+            instance = new FenceHistory(new File(context.getFilesDir(), HISTORY_FILE), HISTORY_CAPACITY, HISTORY_SLOT_BYTES);
+        }
+
+        return instance;
+    }
+
+    synchronized int size() {
+        return (int) (buffer.getLong(8) - oldestSequence());
+    }
+
+    /**
+     * Records one transition. Accuracy is in meters, or NaN when there was no fix behind it. Uids too long for a
+     * slot are skipped, the same as the event queue.
+     */
+    synchronized boolean append(String fenceUID, int transitionType, long time, long receivedAt, float accuracy) {
+        int uidLength = fenceUID.length();
+
+        if(uidLength > maxUIDChars) {
+            return false;
+        }
+
+        long sequence = buffer.getLong(8);
+        long uidHash = hash(fenceUID);
+        int position = slotPosition(sequence);
+        int cursor = position + SLOT_HEADER_BYTES;
+
+        // A clock set backwards must not break the ordering the range search depends on.
+        lastReceivedAt = Math.max(lastReceivedAt, receivedAt);
+
+        // The slot is marked empty until it is complete, so a kill mid-append never leaves a readable half entry.
+        buffer.putLong(position, NO_SEQUENCE);
+        buffer.putLong(position + 8, time);
+        buffer.putLong(position + 16, lastReceivedAt);
+        buffer.putLong(position + 24, findLatest(uidHash));
+        buffer.putLong(position + 32, uidHash);
+        buffer.putFloat(position + 40, accuracy);
+        buffer.putInt(position + 44, transitionType);
+        buffer.putShort(position + 48, (short) uidLength);
+
+        for(int i = 0; i < uidLength; i++) {
+            buffer.putChar(cursor + i * 2, fenceUID.charAt(i));
+        }
+
+        buffer.putLong(position, sequence);
+        buffer.putLong(8, sequence + 1);
+        putLatest(uidHash, sequence);
+        return true;
+    }
+
+    /**
+     * Entries whose triggering time falls within since and until, inclusive, oldest first. A null uid matches every fence.
+     */
+    synchronized List<Entry> query(long since, long until, @Nullable String fenceUID) {
+        ArrayList<Entry> entries = new ArrayList<>();
+        long oldest = oldestSequence();
+
+        if(fenceUID != null) {
+            long uidHash = hash(fenceUID);
+
+            // Newest first along the uid's links. An entry is received after it triggered, so once receive
+            // times drop below since nothing older can match.
+            for(long sequence = findLatest(uidHash); sequence >= oldest; ) {
+                int position = slotPosition(sequence);
+
+                if(buffer.getLong(position) != sequence || buffer.getLong(position + 16) < since) {
+                    break;
+                }
+
+                if(isInRange(position, since, until) && matches(position, fenceUID)) {
+                    entries.add(readEntry(position));
+                }
+
+                sequence = buffer.getLong(position + 24);
+            }
+
+            Collections.reverse(entries);
+            return entries;
+        }
+
+        for(long sequence = firstReceivedAtOrAfter(since); sequence < buffer.getLong(8); sequence++) {
+            int position = slotPosition(sequence);
+
+            if(buffer.getLong(position) == sequence && isInRange(position, since, until)) {
+                entries.add(readEntry(position));
+            }
+        }
+
+        return entries;
+    }
+
+    private long oldestSequence() {
+        return Math.max(0, buffer.getLong(8) - capacity);
+    }
+
+    private int slotPosition(long sequence) {
+        return HEADER_BYTES + (int) (sequence % capacity) * slotBytes;
+    }
+
+    private long firstReceivedAtOrAfter(long since) {
+        long low = oldestSequence();
+        long high = buffer.getLong(8);
+
+        while(low < high) {
+            long middle = (low + high) >>> 1;
+
+            if(buffer.getLong(slotPosition(middle) + 16) < since) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    private boolean isInRange(int position, long since, long until) {
+        long time = buffer.getLong(position + 8);
+        return time >= since && time <= until;
+    }
+
+    private boolean matches(int position, String fenceUID) {
+        if(buffer.getShort(position + 48) != fenceUID.length()) {
+            return false;
+        }
+
+        for(int i = 0; i < fenceUID.length(); i++) {
+            if(buffer.getChar(position + SLOT_HEADER_BYTES + i * 2) != fenceUID.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private Entry readEntry(int position) {
+        char[] uid = new char[buffer.getShort(position + 48)];
+
+        for(int i = 0; i < uid.length; i++) {
+            uid[i] = buffer.getChar(position + SLOT_HEADER_BYTES + i * 2);
+        }
+
+        return new Entry(
+                new String(uid),
+                buffer.getInt(position + 44),
+                buffer.getLong(position + 8),
+                buffer.getLong(position + 16),
+                buffer.getFloat(position + 40));
+    }
+
+    private long findLatest(long uidHash) {
+        int mask = latestKeys.length - 1;
+
+        for(int slot = (int) uidHash & mask; latestSequences[slot] != NO_SEQUENCE; slot = (slot + 1) & mask) {
+            if(latestKeys[slot] == uidHash) {
+                return latestSequences[slot];
+            }
+        }
+
+        return NO_SEQUENCE;
+    }
+
+    private void putLatest(long uidHash, long sequence) {
+        int mask = latestKeys.length - 1;
+        int slot = (int) uidHash & mask;
+
+        while(latestSequences[slot] != NO_SEQUENCE && latestKeys[slot] != uidHash) {
+            slot = (slot + 1) & mask;
+        }
+
+        if(latestSequences[slot] == NO_SEQUENCE && ++latestCount > latestKeys.length / 2) {
+            rebuildLatest();
+            return;
+        }
+
+        latestKeys[slot] = uidHash;
+        latestSequences[slot] = sequence;
+    }
+
+    /**
+     * Refills the uid table from the entries still in the ring. The table holds at least twice the ring's
+     * capacity, so after a rebuild it is never more than half full.
+     */
+    private void rebuildLatest() {
+        Arrays.fill(latestSequences, NO_SEQUENCE);
+        latestCount = 0;
+
+        for(long sequence = oldestSequence(); sequence < buffer.getLong(8); sequence++) {
+            int position = slotPosition(sequence);
+
+            if(buffer.getLong(position) == sequence) {
+                putLatest(buffer.getLong(position + 32), sequence);
+            }
+        }
+    }
+
+    /**
+     * FNV-1a over the uid's chars, read in place so nothing is encoded.
+     */
+    private static long hash(String fenceUID) {
+        long hash = 0xcbf29ce484222325L;
+
+        for(int i = 0; i < fenceUID.length(); i++) {
+            hash ^= fenceUID.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+}
@@ -0,0 +1,444 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import static fyi.karm.perimeter.Constants.*;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Streams fences out of a GeoJSON FeatureCollection or a CSV file, one row at a time, so only the row being read
+ * is ever held in memory. Each row comes back in the shape the bridge sends for addFence and is validated the same way.
+ *
+ * GeoJSON features take their uid from properties.uid or the feature id. Points use properties.radius, polygons
+ * use their outer ring. CSV files need a header row naming the fence keys; tags are separated by semicolons.
+ * Rows without a name are named after their uid, rows without a payload get an empty one and rows without
+ * a monitor watch both directions.
+ */
+final class FenceImporter implements Closeable {
+
+    static final String FORMAT_GEOJSON = "geojson";
+    static final String FORMAT_CSV = "csv";
+
+    private static final String[] NUMERIC_KEYS = {
+            "lat", "lng", "radius", "monitor", "debounceSeconds", "responsivenessSeconds",
+            "loiterDelaySeconds", "expirationSeconds", "initialTrigger"
+    };
+
+    private final CountingInputStream in;
+    private final boolean isGeoJSON;
+    @Nullable private JsonReader jsonReader;
+    @Nullable private Reader csvReader;
+    @Nullable private String[] csvHeader;
+    private boolean isFinished;
+
+    FenceImporter(InputStream in, String format) {
+        this.in = new CountingInputStream(in);
+        this.isGeoJSON = FORMAT_GEOJSON.equals(format);
+    }
+
+    static boolean isSupportedFormat(@Nullable String format) {
+        return FORMAT_GEOJSON.equals(format) || FORMAT_CSV.equals(format);
+    }
+
+    long getBytesRead() {
+        return in.count;
+    }
+
+    /**
+     * The next row, or null once the file is exhausted. A row that cannot become a fence still comes back,
+     * missing whatever could not be read, so it fails validation and is counted. Throws only when the file
+     * itself is unreadable.
+     */
+    @Nullable
+    JSONObject next() throws IOException {
+        if(isFinished) {
+            return null;
+        }
+
+        JSONObject row = isGeoJSON ? nextFeature() : nextCSVRow();
+
+        if(row == null) {
+            isFinished = true;
+            return null;
+        }
+
+        applyDefaults(row);
+        return row;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private static void applyDefaults(JSONObject row) {
+        try {
+            if(!row.has("name") && row.has("uid")) {
+                row.put("name", row.optString("uid"));
+            }
+            if(!row.has("payload")) {
+                row.put("payload", "");
+            }
+            if(!row.has("monitor")) {
+                row.put("monitor", MONITOR_BOTH);
+            }
+        }
+        catch (JSONException ignored) {
+            // Only thrown for non-finite numbers, none are put here.
+        }
+    }
+
+    /**
+     * Moves into the features array on the first call, skipping any other top level keys.
+     */
+    @Nullable
+    private JSONObject nextFeature() throws IOException {
+        if(jsonReader == null) {
+            jsonReader = new JsonReader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+            jsonReader.beginObject();
+
+            while(jsonReader.hasNext() && !jsonReader.nextName().equals("features")) {
+                jsonReader.skipValue();
+            }
+
+            if(jsonReader.peek() != JsonToken.BEGIN_ARRAY) {
+                return null;
+            }
+
+            jsonReader.beginArray();
+        }
+
+        if(!jsonReader.hasNext()) {
+            return null;
+        }
+
+        Object feature = readValue(jsonReader);
+        return feature instanceof JSONObject ? toFence((JSONObject) feature) : new JSONObject();
+    }
+
+    private static JSONObject toFence(JSONObject feature) {
+        JSONObject fence = new JSONObject();
+        JSONObject properties = feature.optJSONObject("properties");
+        JSONObject geometry = feature.optJSONObject("geometry");
+
+        try {
+            if(properties != null) {
+                Iterator<String> keys = properties.keys();
+
+                while(keys.hasNext()) {
+                    String key = keys.next();
+                    Object value = properties.opt(key);
+                    // A structured payload is kept as its JSON text.
+                    fence.put(key, key.equals("payload") && !(value instanceof String) ? String.valueOf(value) : value);
+                }
+            }
+
+            if(!fence.has("uid") && feature.has("id")) {
+                fence.put("uid", String.valueOf(feature.opt("id")));
+            }
+            else if(fence.has("uid")) {
+                fence.put("uid", String.valueOf(fence.opt("uid")));
+            }
+
+            if(geometry == null) {
+                return fence;
+            }
+
+            JSONArray coordinates = geometry.optJSONArray("coordinates");
+
+            if("Point".equals(geometry.optString("type")) && coordinates != null && coordinates.length() >= 2) {
+                fence.put("lng", coordinates.optDouble(0));
+                fence.put("lat", coordinates.optDouble(1));
+            }
+            else if("Polygon".equals(geometry.optString("type")) && coordinates != null) {
+                JSONArray ring = coordinates.optJSONArray(0);
+                fence.put("polygon", ring == null ? new JSONArray() : toVertices(ring));
+            }
+        }
+        catch (JSONException e) {
+            // Non-finite coordinates, leave them out so the row fails validation.
+        }
+
+        return fence;
+    }
+
+    /**
+     * GeoJSON rings are [lng, lat] pairs that repeat the first position at the end, fences take lat, lng objects without it.
+     */
+    private static JSONArray toVertices(JSONArray ring) throws JSONException {
+        JSONArray vertices = new JSONArray();
+        int count = ring.length();
+        JSONArray first = ring.optJSONArray(0);
+        JSONArray last = ring.optJSONArray(count - 1);
+
+        if(count > 1 && first != null && last != null &&
+                first.optDouble(0) == last.optDouble(0) && first.optDouble(1) == last.optDouble(1)) {
+            count--;
+        }
+
+        for(int i = 0; i < count; i++) {
+            JSONArray position = ring.optJSONArray(i);
+            JSONObject vertex = new JSONObject();
+
+            if(position != null && position.length() >= 2) {
+                vertex.put("lat", position.optDouble(1));
+                vertex.put("lng", position.optDouble(0));
+            }
+
+            vertices.put(vertex);
+        }
+
+        return vertices;
+    }
+
+    @Nullable
+    private static Object readValue(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT: {
+                JSONObject object = new JSONObject();
+                reader.beginObject();
+
+                while(reader.hasNext()) {
+                    String name = reader.nextName();
+                    Object value = readValue(reader);
+
+                    try {
+                        object.put(name, value);
+                    }
+                    catch (JSONException ignored) {
+                        // Non-finite numbers, dropped.
+                    }
+                }
+
+                reader.endObject();
+                return object;
+            }
+            case BEGIN_ARRAY: {
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+
+                while(reader.hasNext()) {
+                    array.put(readValue(reader));
+                }
+
+                reader.endArray();
+                return array;
+            }
+            case NUMBER:
+                return parseNumber(reader.nextString());
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return null;
+            default:
+                return reader.nextString();
+        }
+    }
+
+    @Nullable
+    private static Number parseNumber(String value) {
+        try {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            try {
+                return Double.parseDouble(value);
+            }
+            catch (NumberFormatException ignored) {
+                return null;
+            }
+        }
+    }
+
+    @Nullable
+    private JSONObject nextCSVRow() throws IOException {
+        if(csvReader == null) {
+            csvReader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            ArrayList<String> header = readCSVRecord(csvReader);
+
+            if(header == null) {
+                return null;
+            }
+
+            csvHeader = new String[header.size()];
+
+            for(int i = 0; i < header.size(); i++) {
+                csvHeader[i] = header.get(i).trim();
+            }
+
+            // A byte order mark is not part of the first column name.
+            if(csvHeader.length > 0 && csvHeader[0].startsWith("\uFEFF")) {
+                csvHeader[0] = csvHeader[0].substring(1);
+            }
+        }
+
+        ArrayList<String> fields;
+
+        do {
+            fields = readCSVRecord(csvReader);
+        } while(fields != null && fields.size() == 1 && fields.get(0).isEmpty());
+
+        return fields == null ? null : toFence(csvHeader, fields);
+    }
+
+    private static JSONObject toFence(String[] header, ArrayList<String> fields) {
+        JSONObject fence = new JSONObject();
+
+        try {
+            for(int i = 0; i < header.length && i < fields.size(); i++) {
+                String key = header[i];
+                String value = fields.get(i);
+
+                if(value.isEmpty()) {
+                    continue;
+                }
+                else if(key.equals("tags")) {
+                    JSONArray tags = new JSONArray();
+
+                    for(String tag : value.split(";")) {
+                        if(!tag.isEmpty()) {
+                            tags.put(tag);
+                        }
+                    }
+
+                    fence.put(key, tags);
+                }
+                else if(isNumeric(key)) {
+                    Number number = parseNumber(value.trim());
+
+                    // Unparseable numbers are left out so the row fails validation.
+                    if(number != null) {
+                        fence.put(key, number);
+                    }
+                }
+                else {
+                    fence.put(key, value);
+                }
+            }
+        }
+        catch (JSONException e) {
+            // Non-finite numbers, the row is returned without them.
+        }
+
+        return fence;
+    }
+
+    private static boolean isNumeric(String key) {
+        for(String numericKey : NUMERIC_KEYS) {
+            if(numericKey.equals(key)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Reads one RFC 4180 record. Quoted fields may hold commas, doubled quotes and line breaks. Returns null at the end of the file.
+     */
+    @Nullable
+    private static ArrayList<String> readCSVRecord(Reader reader) throws IOException {
+        ArrayList<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean isQuoted = false;
+        int c = reader.read();
+
+        if(c == -1) {
+            return null;
+        }
+
+        while(c != -1) {
+            if(isQuoted) {
+                if(c == '"') {
+                    reader.mark(1);
+
+                    if(reader.read() != '"') {
+                        reader.reset();
+                        isQuoted = false;
+                    }
+                    else {
+                        field.append('"');
+                    }
+                }
+                else {
+                    field.append((char) c);
+                }
+            }
+            else if(c == '"' && field.length() == 0) {
+                isQuoted = true;
+            }
+            else if(c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            }
+            else if(c == '\n') {
+                break;
+            }
+            else if(c != '\r') {
+                field.append((char) c);
+            }
+
+            c = reader.read();
+        }
+
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+
+            if(b != -1) {
+                count++;
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+
+            if(read > 0) {
+                count += read;
+            }
+
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,481 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of fence mutations layered on top of a FenceStore. Each add or remove costs one small
+ * append, and compaction folds the log back into the store. Every record carries its own length and CRC
+ * so a tail torn by a process kill is detected and dropped on replay.
+ *
+ * Journal files are numbered by generation. Compaction starts a new generation before writing the store,
+ * so appends made while it runs land in the new file and older files are deleted only once the store is durable.
+ *
+ * Lookups never replay the log. The offset of the newest record for each uid is kept in memory, built by the
+ * first replay or lookup in the process and updated on every append, so finding a fence is one read from the
+ * journal or one keyed read from the store.
+ */
+final class FenceJournal {
+
+    interface Replay {
+        void onPut(String fenceUID, byte[] body);
+        void onRemove(String fenceUID);
+        void onClear();
+    }
+
+    static final byte OP_PUT = 1;
+    static final byte OP_REMOVE = 2;
+    static final byte OP_CLEAR = 3;
+
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int MIN_COMPACTION_RECORDS = 64;
+    private static final int NO_GENERATION = -1;
+    private static final long REMOVED = -1;
+
+    private static final Replay NO_REPLAY = new Replay() {
+        @Override
+        public void onPut(String fenceUID, byte[] body) {}
+
+        @Override
+        public void onRemove(String fenceUID) {}
+
+        @Override
+        public void onClear() {}
+    };
+
+    /**
+     * Where the newest record for a uid sits, or REMOVED when that record is a remove.
+     */
+    private static final class Location {
+        final int generation;
+        final long offset;
+
+        Location(int generation, long offset) {
+            this.generation = generation;
+            this.offset = offset;
+        }
+    }
+
+    private final FenceStore store;
+    private final File directory;
+    private final String name;
+    private int generation;
+    private int recordCount;
+    private FileOutputStream out;
+    private long outLength;
+    @Nullable private HashMap<String, Location> index;
+    // The generation holding the newest clear. Uids missing from the index are not in the store while it is set.
+    private int clearedGeneration = NO_GENERATION;
+
+    FenceJournal(FenceStore store, File directory, String name) {
+        this.store = store;
+        this.directory = directory;
+        this.name = name;
+        List<Integer> generations = listGenerations();
+        this.generation = generations.isEmpty() ? 0 : generations.get(generations.size() - 1);
+    }
+
+    FenceStore getStore() {
+        return store;
+    }
+
+    synchronized void put(String fenceUID, byte[] body) throws IOException {
+        append(OP_PUT, fenceUID, body);
+    }
+
+    /**
+     * Appends a chunk of puts with a single write. A kill mid-write tears at most the tail of the chunk.
+     */
+    synchronized void putAll(List<String> fenceUIDs, List<byte[]> bodies) throws IOException {
+        if(fenceUIDs.isEmpty()) {
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        long[] offsets = new long[fenceUIDs.size()];
+
+        for(int i = 0; i < fenceUIDs.size(); i++) {
+            offsets[i] = bytes.size();
+            bytes.write(encode(OP_PUT, fenceUIDs.get(i), bodies.get(i)));
+        }
+
+        long start = write(bytes.toByteArray(), fenceUIDs.size());
+
+        for(int i = 0; i < fenceUIDs.size(); i++) {
+            indexRecord(OP_PUT, fenceUIDs.get(i), generation, start + offsets[i]);
+        }
+    }
+
+    synchronized void remove(String fenceUID) throws IOException {
+        append(OP_REMOVE, fenceUID, null);
+    }
+
+    synchronized void clear() throws IOException {
+        append(OP_CLEAR, "", null);
+    }
+
+    /**
+     * Compaction is worth it once the log holds more records than half the live fences. Records the store does not
+     * hold yet count too, so a bulk load is folded in after it doubles the fences rather than left for every new
+     * process to index.
+     */
+    synchronized boolean needsCompaction(int liveCount) {
+        return recordCount > Math.max(MIN_COMPACTION_RECORDS, liveCount / 2);
+    }
+
+    /**
+     * Starts a new journal generation and returns it. Pass it to finishCompaction with a snapshot
+     * taken after this call returned.
+     */
+    synchronized int beginCompaction() throws IOException {
+        closeOutput();
+        generation++;
+        recordCount = 0;
+        return generation;
+    }
+
+    /**
+     * Writes the snapshot to the store, then deletes every generation older than the one returned by beginCompaction.
+     */
+    void finishCompaction(int compactedGeneration, List<String> fenceUIDs, List<byte[]> bodies) throws IOException {
+        store.write(fenceUIDs, bodies);
+        dropCompactedGenerations(compactedGeneration);
+    }
+
+    /**
+     * Streams the snapshot into the store, then deletes every generation older than the one returned by
+     * beginCompaction. The snapshot may look records up through this journal while it is written.
+     */
+    void finishCompaction(int compactedGeneration, FenceStore.RecordSource snapshot) throws IOException {
+        store.write(snapshot);
+        dropCompactedGenerations(compactedGeneration);
+    }
+
+    private synchronized void dropCompactedGenerations(int compactedGeneration) {
+        for(int journalGeneration : listGenerations()) {
+            if(journalGeneration < compactedGeneration) {
+                journalFile(journalGeneration).delete();
+            }
+        }
+
+        // The store now holds everything the deleted generations said, including any clear in them.
+        if(index != null) {
+            Iterator<Location> locations = index.values().iterator();
+
+            while(locations.hasNext()) {
+                if(locations.next().generation < compactedGeneration) {
+                    locations.remove();
+                }
+            }
+        }
+
+        if(clearedGeneration < compactedGeneration) {
+            clearedGeneration = NO_GENERATION;
+        }
+    }
+
+    /**
+     * Replays the store followed by every journal generation in order. A torn record ends the replay of its
+     * file and the file is truncated back to the last complete record.
+     */
+    synchronized void replay(Replay replay) throws IOException {
+        store.forEach(replay::onPut);
+        replayJournal(replay);
+    }
+
+    /**
+     * Looks a single fence up without replaying into memory. The newest journal entry for the uid wins,
+     * otherwise the store is consulted.
+     */
+    @Nullable
+    synchronized byte[] lookup(String fenceUID) throws IOException {
+        return lookupAll(Collections.singleton(fenceUID)).get(fenceUID);
+    }
+
+    /**
+     * Looks several fences up through the journal index. Uids that are not stored are left out of the result.
+     */
+    synchronized HashMap<String, byte[]> lookupAll(Collection<String> fenceUIDs) throws IOException {
+        if(index == null) {
+            replayJournal(NO_REPLAY);
+        }
+
+        HashMap<String, byte[]> found = new HashMap<>();
+        HashMap<Integer, RandomAccessFile> files = new HashMap<>();
+
+        try {
+            for(String fenceUID : fenceUIDs) {
+                Location location = index.get(fenceUID);
+                byte[] body;
+
+                if(location != null) {
+                    body = location.offset == REMOVED ? null : readBody(files, location);
+                }
+                else {
+                    body = clearedGeneration == NO_GENERATION ? store.read(fenceUID) : null;
+                }
+
+                if(body != null) {
+                    found.put(fenceUID, body);
+                }
+            }
+        }
+        finally {
+            for(RandomAccessFile file : files.values()) {
+                file.close();
+            }
+        }
+
+        return found;
+    }
+
+    private void append(byte op, String fenceUID, @Nullable byte[] body) throws IOException {
+        // A single write per record keeps a kill mid-append down to one torn record at the tail.
+        long offset = write(encode(op, fenceUID, body), 1);
+        indexRecord(op, fenceUID, generation, offset);
+    }
+
+    /**
+     * Appends to the current generation and returns the offset the bytes start at. A failed write is cut back
+     * off the file, so later appends are not stranded behind a torn record.
+     */
+    private long write(byte[] encoded, int records) throws IOException {
+        File file = journalFile(generation);
+
+        if(out == null) {
+            outLength = file.length();
+            out = new FileOutputStream(file, true);
+        }
+
+        long offset = outLength;
+
+        try {
+            out.write(encoded);
+            out.flush();
+        }
+        catch (IOException e) {
+            closeOutput();
+
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                randomAccessFile.setLength(offset);
+            }
+            catch (IOException ignored) {
+                // Replay still stops at the torn record.
+            }
+
+            throw e;
+        }
+
+        outLength += encoded.length;
+        recordCount += records;
+        return offset;
+    }
+
+    private void indexRecord(byte op, String fenceUID, int journalGeneration, long offset) {
+        if(index == null) {
+            return;
+        }
+
+        if(op == OP_CLEAR) {
+            index.clear();
+            clearedGeneration = journalGeneration;
+        }
+        else {
+            index.put(fenceUID, new Location(journalGeneration, op == OP_PUT ? offset : REMOVED));
+        }
+    }
+
+    /**
+     * Replays every journal generation in order and rebuilds the index from it. A torn record ends the replay
+     * of its file and the file is truncated back to the last complete record.
+     */
+    private void replayJournal(Replay replay) throws IOException {
+        closeOutput();
+        recordCount = 0;
+        index = new HashMap<>();
+        clearedGeneration = NO_GENERATION;
+
+        for(int journalGeneration : listGenerations()) {
+            File file = journalFile(journalGeneration);
+            long validLength = replayFile(journalGeneration, replay);
+
+            if(validLength < file.length()) {
+                try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                    randomAccessFile.setLength(validLength);
+                }
+            }
+        }
+    }
+
+    private byte[] readBody(HashMap<Integer, RandomAccessFile> files, Location location) throws IOException {
+        RandomAccessFile file = files.get(location.generation);
+
+        if(file == null) {
+            file = new RandomAccessFile(journalFile(location.generation), "r");
+            files.put(location.generation, file);
+        }
+
+        file.seek(location.offset);
+        byte[] payload = new byte[file.readInt()];
+        file.readInt(); // CRC, checked when the record was indexed.
+        file.readFully(payload);
+
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+        record.readByte();
+        record.skipBytes(record.readUnsignedShort());
+        byte[] body = new byte[record.readInt()];
+        record.readFully(body);
+        return body;
+    }
+
+    private static byte[] encode(byte op, String fenceUID, @Nullable byte[] body) throws IOException {
+        byte[] encodedUID = fenceUID.getBytes(StandardCharsets.UTF_8);
+        int payloadLength = 1 + 2 + encodedUID.length + (body == null ? 0 : 4 + body.length);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(RECORD_HEADER_BYTES + payloadLength);
+        DataOutputStream record = new DataOutputStream(bytes);
+
+        record.writeInt(payloadLength);
+        record.writeInt(0); // CRC placeholder.
+        record.writeByte(op);
+        record.writeShort(encodedUID.length);
+        record.write(encodedUID);
+
+        if(body != null) {
+            record.writeInt(body.length);
+            record.write(body);
+        }
+
+        byte[] encoded = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(encoded, RECORD_HEADER_BYTES, payloadLength);
+        int checksum = (int) crc.getValue();
+        encoded[4] = (byte) (checksum >>> 24);
+        encoded[5] = (byte) (checksum >>> 16);
+        encoded[6] = (byte) (checksum >>> 8);
+        encoded[7] = (byte) checksum;
+        return encoded;
+    }
+
+    private long replayFile(int journalGeneration, Replay replay) throws IOException {
+        File file = journalFile(journalGeneration);
+        long validLength = 0;
+
+        if(!file.exists()) {
+            return validLength;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while(true) {
+                int payloadLength;
+                int checksum;
+                byte[] payload;
+
+                try {
+                    payloadLength = in.readInt();
+                    checksum = in.readInt();
+                    if(payloadLength < 3 || payloadLength > file.length()) {
+                        break;
+                    }
+                    payload = new byte[payloadLength];
+                    in.readFully(payload);
+                }
+                catch (EOFException e) {
+                    break;
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(payload, 0, payloadLength);
+                if((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                applyRecord(payload, replay, journalGeneration, validLength);
+                validLength += RECORD_HEADER_BYTES + payloadLength;
+                recordCount++;
+            }
+        }
+
+        return validLength;
+    }
+
+    private void applyRecord(byte[] payload, Replay replay, int journalGeneration, long offset) throws IOException {
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+        byte op = record.readByte();
+        byte[] encodedUID = new byte[record.readUnsignedShort()];
+        record.readFully(encodedUID);
+        String fenceUID = new String(encodedUID, StandardCharsets.UTF_8);
+
+        switch (op) {
+            case OP_PUT:
+                byte[] body = new byte[record.readInt()];
+                record.readFully(body);
+                replay.onPut(fenceUID, body);
+                break;
+            case OP_REMOVE:
+                replay.onRemove(fenceUID);
+                break;
+            case OP_CLEAR:
+                replay.onClear();
+                break;
+            default:
+                throw new IOException("Unknown journal op " + op);
+        }
+
+        indexRecord(op, fenceUID, journalGeneration, offset);
+    }
+
+    private void closeOutput() {
+        if(out != null) {
+            try {
+                out.close();
+            }
+            catch (IOException ignored) {}
+            out = null;
+        }
+    }
+
+    private File journalFile(int journalGeneration) {
+        return new File(directory, name + ".journal." + journalGeneration);
+    }
+
+    private List<Integer> listGenerations() {
+        ArrayList<Integer> generations = new ArrayList<>();
+        String prefix = name + ".journal.";
+        String[] files = directory.list();
+
+        if(files != null) {
+            for(String file : files) {
+                if(file.startsWith(prefix)) {
+                    try {
+                        generations.add(Integer.parseInt(file.substring(prefix.length())));
+                    }
+                    catch (NumberFormatException ignored) {}
+                }
+            }
+        }
+
+        Collections.sort(generations);
+        return generations;
+    }
+}
@@ -0,0 +1,319 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import static fyi.karm.perimeter.Constants.*;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.gms.common.api.ApiException;
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.location.GeofenceStatusCodes;
+import com.google.android.gms.tasks.Task;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Serializes adds and removes on the geofencing client. Operations submitted within a short window are coalesced
+ * per uid, so an add that is removed before it is sent never reaches the system, and what is left goes out as one
+ * remove call and one add call per initial trigger. Each call only decides the outcome of its own fences. A uid
+ * never has two calls in flight; transient failures are retried with exponential backoff, and a submission
+ * completes only once the system has confirmed or rejected all of it.
+ *
+ * All state is confined to the main thread, which is also where the client delivers its results.
+ */
+final class FenceOperationQueue {
+
+    interface Client {
+        Task<Void> add(List<Fence> fences);
+        Task<Void> remove(List<String> fenceUIDs);
+    }
+
+    interface Listener {
+        /**
+         * Called on the main thread. failedUIDs is empty and error null when everything was confirmed.
+         */
+        void onComplete(List<String> failedUIDs, @Nullable Exception error);
+    }
+
+    interface SettleListener {
+        /**
+         * Called on the main thread whenever the queue drains, with the fingerprint of the last submission.
+         * hasFailures is true if any operation failed for good since the queue last drained, in which case
+         * the system may not hold what that fingerprint describes.
+         */
+        void onSettled(long fingerprint, boolean hasFailures);
+    }
+
+    private static final class Submission {
+        final Listener listener;
+        final ArrayList<String> failedUIDs = new ArrayList<>();
+        int remaining;
+        Exception error;
+
+        Submission(Listener listener, int remaining) {
+            this.listener = listener;
+            this.remaining = remaining;
+        }
+    }
+
+    private static final class Operation {
+        final String fenceUID;
+        final ArrayList<Submission> submissions = new ArrayList<>();
+        @Nullable Fence fence;
+        // False only for adds of a uid the system cannot know yet, which a later remove cancels outright.
+        boolean isRegistered;
+        int attempts;
+        long notBefore;
+
+        Operation(String fenceUID) {
+            this.fenceUID = fenceUID;
+        }
+
+        boolean isAdd() {
+            return fence != null;
+        }
+    }
+
+    private final Client client;
+    private final SettleListener settleListener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final LinkedHashMap<String, Operation> pending = new LinkedHashMap<>();
+    private final HashSet<String> inFlightUIDs = new HashSet<>();
+    private int inFlightCalls;
+    private boolean isFlushScheduled;
+    private boolean hasFailures;
+    private long lastFingerprint;
+
+    FenceOperationQueue(Client client, SettleListener settleListener) {
+        this.client = client;
+        this.settleListener = settleListener;
+    }
+
+    /**
+     * Queues new fences, changed fences and removals. Changed fences replace what the system has under the same
+     * uid; new fences are assumed not to be registered, so removing one before it is sent cancels both.
+     * The fingerprint describes the fences the system should hold once this and every earlier submission land.
+     */
+    void submit(List<Fence> addedFences, List<Fence> updatedFences, List<String> removedUIDs, long fingerprint, Listener listener) {
+        handler.post(() -> {
+            lastFingerprint = fingerprint;
+            Submission submission = new Submission(listener, addedFences.size() + updatedFences.size() + removedUIDs.size());
+
+            if(submission.remaining == 0) {
+                listener.onComplete(submission.failedUIDs, null);
+                notifyIfSettled();
+                return;
+            }
+
+            for(Fence fence : addedFences) {
+                enqueue(fence.uid, fence, false, submission);
+            }
+            for(Fence fence : updatedFences) {
+                enqueue(fence.uid, fence, true, submission);
+            }
+            for(String fenceUID : removedUIDs) {
+                enqueue(fenceUID, null, true, submission);
+            }
+
+            scheduleFlush(OPERATION_COALESCE_MILLISECONDS);
+        });
+    }
+
+    private void enqueue(String fenceUID, @Nullable Fence fence, boolean isRegistered, Submission submission) {
+        Operation operation = pending.get(fenceUID);
+
+        if(operation == null) {
+            operation = new Operation(fenceUID);
+            operation.fence = fence;
+            operation.isRegistered = isRegistered || inFlightUIDs.contains(fenceUID);
+            operation.submissions.add(submission);
+            pending.put(fenceUID, operation);
+            return;
+        }
+
+        operation.submissions.add(submission);
+        operation.attempts = 0;
+        operation.notBefore = 0;
+
+        if(fence == null && operation.isAdd() && !operation.isRegistered) {
+            // The add was never sent, dropping both leaves the system as it was.
+            pending.remove(fenceUID);
+            complete(operation, null);
+            Log.d(PERIMETER_TAG, "Dropped add and remove of " + fenceUID + ", they cancel out.");
+            return;
+        }
+
+        // Adding under an existing uid replaces it, so the newest operation is the only one that needs sending.
+        operation.isRegistered |= isRegistered || !operation.isAdd();
+        operation.fence = fence;
+    }
+
+    private void scheduleFlush(long delayMillis) {
+        if(!isFlushScheduled) {
+            isFlushScheduled = true;
+            handler.postDelayed(this::flush, delayMillis);
+        }
+    }
+
+    private void flush() {
+        isFlushScheduled = false;
+
+        long now = SystemClock.elapsedRealtime();
+        long nextRetry = Long.MAX_VALUE;
+        LinkedHashMap<Integer, ArrayList<Operation>> adds = new LinkedHashMap<>();
+        ArrayList<Operation> removes = new ArrayList<>();
+
+        for(Operation operation : pending.values()) {
+            if(inFlightUIDs.contains(operation.fenceUID)) {
+                continue;
+            }
+            else if(operation.notBefore > now) {
+                nextRetry = Math.min(nextRetry, operation.notBefore);
+                continue;
+            }
+
+            if(!operation.isAdd()) {
+                removes.add(operation);
+                continue;
+            }
+
+            // A request carries a single initial trigger, so each one is its own call with its own result.
+            int initialTrigger = FenceRegistrar.getInitialTrigger(operation.fence);
+            ArrayList<Operation> group = adds.get(initialTrigger);
+
+            if(group == null) {
+                group = new ArrayList<>();
+                adds.put(initialTrigger, group);
+            }
+
+            group.add(operation);
+        }
+
+        if(!removes.isEmpty() && inFlightCalls < MAX_IN_FLIGHT_OPERATIONS) {
+            dispatch(removes, false);
+        }
+
+        for(ArrayList<Operation> group : adds.values()) {
+            if(inFlightCalls >= MAX_IN_FLIGHT_OPERATIONS) {
+                break;
+            }
+
+            dispatch(group, true);
+        }
+
+        if(nextRetry != Long.MAX_VALUE) {
+            scheduleFlush(nextRetry - now);
+        }
+
+        notifyIfSettled();
+    }
+
+    private void dispatch(List<Operation> operations, boolean isAdd) {
+        ArrayList<Fence> fences = new ArrayList<>();
+        ArrayList<String> fenceUIDs = new ArrayList<>();
+
+        for(Operation operation : operations) {
+            pending.remove(operation.fenceUID);
+            inFlightUIDs.add(operation.fenceUID);
+            fenceUIDs.add(operation.fenceUID);
+
+            if(isAdd) {
+                fences.add(operation.fence);
+            }
+        }
+
+        inFlightCalls++;
+        Task<Void> task;
+
+        try {
+            task = isAdd ? client.add(fences) : client.remove(fenceUIDs);
+        }
+        catch (RuntimeException e) {
+            onDispatched(operations, e);
+            return;
+        }
+
+        task.addOnCompleteListener(t -> onDispatched(operations, t.isSuccessful() ? null : t.getException()));
+    }
+
+    private void onDispatched(List<Operation> operations, @Nullable Exception error) {
+        inFlightCalls--;
+        long now = SystemClock.elapsedRealtime();
+
+        for(Operation operation : operations) {
+            inFlightUIDs.remove(operation.fenceUID);
+            Operation newer = pending.get(operation.fenceUID);
+
+            if(error == null) {
+                complete(operation, null);
+            }
+            else if(newer != null) {
+                // A later operation decides what ends up registered, its outcome is this one's as well.
+                newer.submissions.addAll(operation.submissions);
+            }
+            else if(isTransient(error) && operation.attempts + 1 < OPERATION_MAX_ATTEMPTS) {
+                operation.attempts++;
+                operation.notBefore = now + Math.min(OPERATION_RETRY_BASE_MILLISECONDS << (operation.attempts - 1), OPERATION_RETRY_MAX_MILLISECONDS);
+                pending.put(operation.fenceUID, operation);
+            }
+            else {
+                complete(operation, error);
+            }
+        }
+
+        if(error != null) {
+            Log.e(PERIMETER_TAG, "Geofencing client call for " + operations.size() + " fences failed: " + error.getLocalizedMessage());
+        }
+
+        if(!pending.isEmpty()) {
+            scheduleFlush(0);
+        }
+
+        notifyIfSettled();
+    }
+
+    private void notifyIfSettled() {
+        if(pending.isEmpty() && inFlightCalls == 0 && !isFlushScheduled) {
+            boolean hadFailures = hasFailures;
+            hasFailures = false;
+            settleListener.onSettled(lastFingerprint, hadFailures);
+        }
+    }
+
+    private void complete(Operation operation, @Nullable Exception error) {
+        hasFailures |= error != null;
+
+        for(Submission submission : operation.submissions) {
+            if(error != null) {
+                submission.failedUIDs.add(operation.fenceUID);
+                submission.error = error;
+            }
+
+            if(--submission.remaining == 0) {
+                submission.listener.onComplete(submission.failedUIDs, submission.error);
+            }
+        }
+    }
+
+    private static boolean isTransient(Exception error) {
+        if(!(error instanceof ApiException)) {
+            return false;
+        }
+
+        int statusCode = ((ApiException) error).getStatusCode();
+        return statusCode == CommonStatusCodes.NETWORK_ERROR ||
+                statusCode == CommonStatusCodes.INTERNAL_ERROR ||
+                statusCode == CommonStatusCodes.TIMEOUT ||
+                statusCode == CommonStatusCodes.API_NOT_CONNECTED ||
+                statusCode == GeofenceStatusCodes.GEOFENCE_REQUEST_TOO_FREQUENT;
+    }
+}
@@ -0,0 +1,174 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import static fyi.karm.perimeter.Constants.*;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Geometry for polygon fences. Vertices are stored flattened as lat, lng pairs. Polygons are small enough that
+ * they are projected onto a plane around a reference point, measured in meters, before any math is done.
+ */
+final class FencePolygons {
+
+    private FencePolygons() {}
+
+    /**
+     * Reads vertices from the bridge, or returns null if the array is not a list of at least three valid points.
+     */
+    @Nullable
+    static double[] fromJSArray(@Nullable JSONArray verticesJS) {
+        if(verticesJS == null || verticesJS.length() < 3 || verticesJS.length() > POLYGON_MAX_VERTICES) {
+            return null;
+        }
+
+        double[] vertices = new double[verticesJS.length() * 2];
+
+        for(int i = 0; i < verticesJS.length(); i++) {
+            JSONObject vertex = verticesJS.optJSONObject(i);
+
+            if(vertex == null || !vertex.has("lat") || !vertex.has("lng")) {
+                return null;
+            }
+
+            double lat = vertex.optDouble("lat");
+            double lng = vertex.optDouble("lng");
+
+            if(!(lat >= -90 && lat <= 90 && lng >= -180 && lng <= 180)) {
+                return null;
+            }
+
+            vertices[i * 2] = lat;
+            vertices[i * 2 + 1] = lng;
+        }
+
+        return vertices;
+    }
+
+    /**
+     * The smallest circle holding every vertex, as { lat, lng, radius in meters }. Polygons are capped at
+     * POLYGON_MAX_VERTICES, so the incremental form of Welzl's algorithm is cheap without shuffling.
+     */
+    static double[] boundingCircle(double[] vertices) {
+        int count = vertices.length / 2;
+        double originLat = vertices[0];
+        double originLng = vertices[1];
+        double[] x = new double[count];
+        double[] y = new double[count];
+
+        for(int i = 0; i < count; i++) {
+            x[i] = toX(originLat, originLng, vertices[i * 2 + 1]);
+            y[i] = toY(originLat, vertices[i * 2]);
+        }
+
+        // { center x, center y, radius }
+        double[] circle = { x[0], y[0], 0 };
+
+        for(int i = 1; i < count; i++) {
+            if(isInside(circle, x[i], y[i])) {
+                continue;
+            }
+
+            circle = new double[]{ x[i], y[i], 0 };
+
+            for(int j = 0; j < i; j++) {
+                if(isInside(circle, x[j], y[j])) {
+                    continue;
+                }
+
+                circle = circleFrom(x[i], y[i], x[j], y[j]);
+
+                for(int k = 0; k < j; k++) {
+                    if(!isInside(circle, x[k], y[k])) {
+                        circle = circleFrom(x[i], y[i], x[j], y[j], x[k], y[k]);
+                    }
+                }
+            }
+        }
+
+        double lat = originLat + circle[1] / FenceGrid.METERS_PER_DEGREE;
+        double lng = originLng + circle[0] / (FenceGrid.METERS_PER_DEGREE * Math.max(Math.cos(Math.toRadians(originLat)), 0.01));
+
+        if(lng > 180) {
+            lng -= 360;
+        }
+        else if(lng < -180) {
+            lng += 360;
+        }
+
+        return new double[]{ lat, lng, circle[2] };
+    }
+
+    /**
+     * Even-odd ray cast from the point. The polygon is projected around the point itself, so polygons that
+     * cross the antimeridian are handled.
+     */
+    static boolean contains(double[] vertices, double lat, double lng) {
+        int count = vertices.length / 2;
+        boolean inside = false;
+
+        for(int i = 0, j = count - 1; i < count; j = i++) {
+            double xi = toX(lat, lng, vertices[i * 2 + 1]);
+            double yi = toY(lat, vertices[i * 2]);
+            double xj = toX(lat, lng, vertices[j * 2 + 1]);
+            double yj = toY(lat, vertices[j * 2]);
+
+            if((yi > 0) != (yj > 0) && 0 < (xj - xi) * (0 - yi) / (yj - yi) + xi) {
+                inside = !inside;
+            }
+        }
+
+        return inside;
+    }
+
+    private static double toX(double originLat, double originLng, double lng) {
+        double dLng = lng - originLng;
+
+        if(dLng > 180) {
+            dLng -= 360;
+        }
+        else if(dLng < -180) {
+            dLng += 360;
+        }
+
+        return dLng * FenceGrid.METERS_PER_DEGREE * Math.max(Math.cos(Math.toRadians(originLat)), 0.01);
+    }
+
+    private static double toY(double originLat, double lat) {
+        return (lat - originLat) * FenceGrid.METERS_PER_DEGREE;
+    }
+
+    private static boolean isInside(double[] circle, double x, double y) {
+        // A millimeter of slack so vertices on the edge are not lost to rounding.
+        return Math.hypot(x - circle[0], y - circle[1]) <= circle[2] + 1e-3;
+    }
+
+    private static double[] circleFrom(double ax, double ay, double bx, double by) {
+        double cx = (ax + bx) / 2;
+        double cy = (ay + by) / 2;
+        return new double[]{ cx, cy, Math.hypot(ax - cx, ay - cy) };
+    }
+
+    private static double[] circleFrom(double ax, double ay, double bx, double by, double cx, double cy) {
+        double d = 2 * (ax * (by - cy) + bx * (cy - ay) + cx * (ay - by));
+
+        if(d == 0) {
+            // Collinear, the widest pair decides.
+            double[] ab = circleFrom(ax, ay, bx, by);
+            double[] ac = circleFrom(ax, ay, cx, cy);
+            double[] bc = circleFrom(bx, by, cx, cy);
+            return ab[2] >= ac[2] ? (ab[2] >= bc[2] ? ab : bc) : (ac[2] >= bc[2] ? ac : bc);
+        }
+
+        double a2 = ax * ax + ay * ay;
+        double b2 = bx * bx + by * by;
+        double c2 = cx * cx + cy * cy;
+        double ux = (a2 * (by - cy) + b2 * (cy - ay) + c2 * (ay - by)) / d;
+        double uy = (a2 * (cx - bx) + b2 * (ax - cx) + c2 * (bx - ax)) / d;
+        return new double[]{ ux, uy, Math.hypot(ax - ux, ay - uy) };
+    }
+}
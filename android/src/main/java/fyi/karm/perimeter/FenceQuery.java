@@ -0,0 +1,56 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import androidx.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * Filters for getActiveFences. Every filter that is set must match. Fences are matched by their center.
+ */
+final class FenceQuery {
+
+    static final class Page {
+        final List<Fence> fences;
+        // Sequence of the last fence returned, or 0 when there are no more pages.
+        final long nextCursor;
+
+        Page(List<Fence> fences, long nextCursor) {
+            this.fences = fences;
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    @Nullable String tag;
+
+    boolean hasBounds;
+    double south;
+    double west;
+    double north;
+    double east;
+
+    boolean hasNear;
+    double nearLat;
+    double nearLng;
+    double nearRadius;
+
+    boolean isEmpty() {
+        return tag == null && !hasBounds && !hasNear;
+    }
+
+    boolean matches(Fence fence) {
+        if(tag != null && !fence.hasTag(tag)) {
+            return false;
+        }
+
+        if(hasBounds) {
+            boolean inLng = west <= east ? fence.lng >= west && fence.lng <= east : fence.lng >= west || fence.lng <= east;
+            if(fence.lat < south || fence.lat > north || !inLng) {
+                return false;
+            }
+        }
+
+        return !hasNear || FenceGrid.distanceMeters(nearLat, nearLng, fence.lat, fence.lng) <= nearRadius;
+    }
+}
@@ -0,0 +1,519 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import static fyi.karm.perimeter.Constants.*;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.gms.location.Geofence;
+import com.google.android.gms.location.GeofencingClient;
+import com.google.android.gms.location.GeofencingRequest;
+import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
+
+import org.greenrobot.eventbus.EventBus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The process-wide link to the system's geofencing client, shared by every plugin instance and the receiver.
+ * Every add and remove goes through its one operation queue, so work started by the receiver is coalesced and
+ * ordered with the plugin's instead of racing it from a queue of its own. The work the receiver starts without a
+ * plugin, restoring fences at boot, evicting expired ones and rotating the virtual set, lives here as well.
+ *
+ * The client is only created once location permissions are known to be granted; until then isInitialized is false.
+ */
+final class FenceRegistrar {
+
+    private static FenceRegistrar instance;
+
+    private final Context context;
+    private final Class<? extends PerimeterReceiver> fenceReceiverClass;
+    private final FenceOperationQueue operationQueue;
+    // The queue settles on the main thread, the registration record is written on this one.
+    private final ExecutorService recordExecutor = Executors.newSingleThreadExecutor();
+    private volatile GeofencingClient geofencingClient;
+    private PendingIntent fencePendingIntent;
+
+    private FenceRegistrar(Context context) {
+        this.context = context;
+        this.fenceReceiverClass = ((PerimeterApplicationHooks) context).GetGeoFenceReceiverClass();
+        this.operationQueue = new FenceOperationQueue(new FenceOperationQueue.Client() {
+            @Override
+            public Task<Void> add(List<Fence> fences) {
+                return registerFences(fences);
+            }
+
+            @Override
+            public Task<Void> remove(List<String> fenceUIDs) {
+                return geofencingClient.removeGeofences(fenceUIDs);
+            }
+        }, (fingerprint, hasFailures) -> recordExecutor.execute(() -> {
+            RegistrationRecord registrationRecord = RegistrationRecord.get(context);
+
+            if(hasFailures) {
+                registrationRecord.invalidate();
+            }
+            else {
+                registrationRecord.record(fingerprint);
+            }
+        }));
+    }
+
+    static synchronized FenceRegistrar get(Context context) {
+        if(instance == null) {
+            instance = new FenceRegistrar(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    /**
+     * Creates the geofencing client. Callers check the location permissions first, the client is never dropped again.
+     */
+    synchronized void initialize() {
+        if(geofencingClient == null) {
+            geofencingClient = LocationServices.getGeofencingClient(context);
+            Log.d(PERIMETER_TAG, CLIENT_INITIALIZED);
+        }
+    }
+
+    boolean isInitialized() {
+        return geofencingClient != null;
+    }
+
+    Class<? extends PerimeterReceiver> getReceiverClass() {
+        return fenceReceiverClass;
+    }
+
+    FenceOperationQueue getOperationQueue() {
+        return operationQueue;
+    }
+
+    /**
+     * Reads the location permissions from the context, for callers that have no plugin to ask, such as the receiver.
+     */
+    static boolean hasLocationPermissions(Context context) {
+        boolean hasPermissions = false;
+
+        for (String standardLocationPermission : STANDARD_LOCATION_PERMISSIONS) {
+            hasPermissions = (context.checkSelfPermission(standardLocationPermission) == PackageManager.PERMISSION_GRANTED);
+        }
+
+        if(Build.VERSION.SDK_INT > Build.VERSION_CODES.Q) {
+            hasPermissions = (context.checkSelfPermission(Manifest.permission.ACCESS_BACKGROUND_LOCATION) == PackageManager.PERMISSION_GRANTED);
+        }
+
+        return hasPermissions;
+    }
+
+    @Nullable
+    Task<Void> restoreVirtualFences() {
+        VirtualFenceSet virtualFences = VirtualFenceSet.get(context);
+
+        if(virtualFences.size() > 0 && virtualFences.hasCenter()) {
+            PerimeterMetrics.RESTORES.incrementAndGet();
+            return rotateVirtualFences(virtualFences.getCenterLat(), virtualFences.getCenterLng(), true);
+        }
+
+        return null;
+    }
+
+    @SuppressLint("MissingPermission")
+    @Nullable
+    Task<Void> rotateVirtualFences(double lat, double lng, boolean isRestore) {
+        if(!isInitialized()) {
+            Log.e(PERIMETER_TAG, ERROR_MESSAGES.get(PERIMETER_ERROR.CLIENT_UNINITIALIZED.ordinal()));
+            return null;
+        }
+
+        VirtualFenceSet virtualFences = VirtualFenceSet.get(context);
+        // Slots neither the active fences nor the working set hold, lent to the working set when fences crowd the device.
+        int spareSlots = ANDROID_FENCE_LIMIT - 1 - virtualFences.getWorkingSetSize() - FenceState.get(context).read().size();
+        VirtualFenceSet.Rotation rotation = virtualFences.rotate(lat, lng, isRestore, spareSlots);
+        ArrayList<String> fencesToRemove = new ArrayList<>(rotation.fencesToRemove);
+        ArrayList<Fence> fencesToAdd = rotation.fencesToAdd;
+        fencesToRemove.add(REFRESH_FENCE_UID);
+        PerimeterPlugin.forgetFenceState(context, rotation.fencesToRemove);
+
+        // Free the slots first so the platform limit is never exceeded mid-rotation.
+        return submitToQueue(PerimeterPlugin.NO_FENCES, fencesToRemove)
+                .continueWithTask(task -> !task.isSuccessful() || fencesToAdd.isEmpty() ?
+                        task :
+                        submitToQueue(fencesToAdd, PerimeterPlugin.NO_FENCE_UIDS))
+                .continueWithTask(task -> {
+                    if(!task.isSuccessful() || !rotation.needsRefreshFence()) {
+                        return task;
+                    }
+
+                    ArrayList<Fence> refreshFence = new ArrayList<>();
+                    refreshFence.add(buildRefreshFence(rotation));
+                    return submitToQueue(refreshFence, PerimeterPlugin.NO_FENCE_UIDS);
+                })
+                .continueWithTask(task -> {
+                    // Committed before the task completes, so whoever awaits the rotation sees its working set.
+                    if(task.isSuccessful()) {
+                        virtualFences.commit(rotation);
+                    }
+                    else {
+                        virtualFences.abandon(rotation);
+                    }
+
+                    return task;
+                })
+                .addOnSuccessListener(v -> Log.d(PERIMETER_TAG, "Rotated virtual fences, added " + fencesToAdd.size() + " and removed " + rotation.fencesToRemove.size() + "."))
+                .addOnFailureListener(e -> onVirtualRotationFailed(e));
+    }
+
+    /**
+     * Queues fences the fence state does not track, such as virtual ones, and completes once the system has
+     * confirmed or rejected all of them.
+     */
+    private Task<Void> submitToQueue(List<Fence> addedFences, List<String> removedUIDs) {
+        TaskCompletionSource<Void> submitted = new TaskCompletionSource<>();
+        long fingerprint = FenceState.get(context).read().fingerprint();
+
+        operationQueue.submit(addedFences, PerimeterPlugin.NO_FENCES, removedUIDs, fingerprint, (failedUIDs, error) -> {
+            if(error == null) {
+                submitted.setResult(null);
+            }
+            else {
+                submitted.setException(error);
+            }
+        });
+
+        return submitted.getTask();
+    }
+
+    /**
+     * The refresh fence only reports exits, and the device is already inside it, so it must not fire on registration.
+     */
+    private static Fence buildRefreshFence(VirtualFenceSet.Rotation rotation) {
+        return new Fence(REFRESH_FENCE_UID, "", null, 0, rotation.lat, rotation.lng, rotation.refreshRadius, MONITOR_EXIT,
+                Fence.UNSET, 0, Fence.UNSET, Fence.UNSET, Fence.UNSET, 0, null, new String[0], null);
+    }
+
+    static void onVirtualRotationFailed(Exception e) {
+        int errorCode = ANDROID_PLATFORM_EVENT.FAILED_ROTATING_VIRTUAL_FENCES.getValue();
+        String errorMessage = ERROR_MESSAGES.get(errorCode);
+        Log.e(PERIMETER_TAG, errorMessage + " " + e.getLocalizedMessage());
+        PerimeterMetrics.ERRORS.incrementAndGet();
+        EventBus.getDefault().post(new PerimeterPlugin.PlatformEvent(errorCode, errorMessage, null));
+    }
+
+    /**
+     * Registers restored fences in batches at boot. Each batch is awaited on the calling worker thread and the
+     * restore stops once the deadline passes; whatever is left is registered the next time the app starts.
+     */
+    void restoreFencesAtBoot(long deadline) {
+        if(!isInitialized() || !loadExistingFences()) {
+            return;
+        }
+
+        FenceRegistry activeFences = FenceState.get(context).read();
+        List<Fence> fences = activeFences.snapshot();
+        PerimeterMetrics.RESTORES.incrementAndGet();
+
+        for(int start = 0; start < fences.size(); start += BOOT_RESTORE_BATCH_SIZE) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+
+            if(remaining <= 0) {
+                FenceState.get(context).requestRestore();
+                Log.w(PERIMETER_TAG, "Ran out of time restoring fences at boot, " + (fences.size() - start) + " will be restored when the app starts.");
+                return;
+            }
+
+            List<Fence> batch = fences.subList(start, Math.min(start + BOOT_RESTORE_BATCH_SIZE, fences.size()));
+
+            try {
+                Tasks.await(registerFences(batch), remaining, TimeUnit.MILLISECONDS);
+            }
+            catch (ExecutionException | InterruptedException | TimeoutException e) {
+                FenceState.get(context).requestRestore();
+                Log.e(PERIMETER_TAG, ERROR_MESSAGES.get(ANDROID_PLATFORM_EVENT.FAILED_RESTORING_FENCES.getValue()), e);
+                return;
+            }
+        }
+
+        RegistrationRecord.get(context).record(activeFences.fingerprint());
+        Log.d(PERIMETER_TAG, "Restored " + fences.size() + " fences at boot.");
+    }
+
+    /**
+     * Returns true if the caller should register the stored fences. The shared state loads them on first use
+     * and only one caller in the process is told to.
+     */
+    boolean loadExistingFences() {
+        if(!FenceState.get(context).claimRestore()) {
+            Log.d(PERIMETER_TAG, "No orphaned fences.");
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes every fence past its expiry from the active fences and the virtual set, then schedules the next
+     * check. The system drops expired fences by itself, but they are removed here too in case this runs first.
+     * Working set slots that were freed are refilled by rotating the virtual set; the returned task tracks that.
+     */
+    @Nullable
+    Task<Void> evictExpiredFences() {
+        long now = System.currentTimeMillis();
+        ArrayList<String> expiredUIDs = new ArrayList<>();
+
+        if(!FenceState.get(context).read().findExpired(now).isEmpty()) {
+            try {
+                FenceState.get(context).update(fences -> {
+                    long previousFingerprint = fences.fingerprint();
+
+                    for(Fence fence : fences.findExpired(now)) {
+                        fences.remove(fence.uid);
+                        expiredUIDs.add(fence.uid);
+                    }
+
+                    PerimeterPlugin.writeJournal(context, fences, (journal, payloads) -> {
+                        for(String fenceUID : expiredUIDs) {
+                            FenceStores.remove(journal, payloads, fenceUID);
+                        }
+                    });
+
+                    // The system is left holding the same fences as before, less the expired ones.
+                    RegistrationRecord registrationRecord = RegistrationRecord.get(context);
+
+                    if(registrationRecord.isCurrent(previousFingerprint)) {
+                        registrationRecord.record(fences.fingerprint());
+                    }
+
+                    return null;
+                });
+            }
+            catch (IOException e) {
+                // The stored fences could not be loaded, so there is nothing to evict them from yet.
+                Log.e(PERIMETER_TAG, "Skipping eviction of expired fences: " + e.getLocalizedMessage());
+            }
+        }
+
+        if(!expiredUIDs.isEmpty()) {
+            PerimeterPlugin.forgetFenceState(context, expiredUIDs);
+            Log.d(PERIMETER_TAG, "Removed " + expiredUIDs.size() + " expired fences.");
+
+            if(isInitialized()) {
+                submitToQueue(PerimeterPlugin.NO_FENCES, expiredUIDs);
+            }
+        }
+
+        VirtualFenceSet virtualFences = VirtualFenceSet.get(context);
+        int freedSlots = virtualFences.evictExpired(now);
+        Task<Void> rotation = null;
+
+        if(freedSlots > 0) {
+            virtualFences.save();
+            Log.d(PERIMETER_TAG, "Removed " + freedSlots + " expired virtual fences from the working set, rotating.");
+
+            if(virtualFences.hasCenter()) {
+                rotation = rotateVirtualFences(virtualFences.getCenterLat(), virtualFences.getCenterLng(), false);
+            }
+        }
+
+        scheduleExpiryCheck();
+        return rotation;
+    }
+
+    /**
+     * Wakes the receiver when the next fence expires, or cancels the wakeup when none do. The alarm does not wake
+     * the device, since the system already stops monitoring the fence on time; the slot is reclaimed on its next wake.
+     */
+    void scheduleExpiryCheck() {
+        long activeExpiry = FenceState.get(context).read().nextExpiry();
+        long virtualExpiry = VirtualFenceSet.get(context).nextExpiry();
+        long nextExpiry = activeExpiry == 0 ? virtualExpiry :
+                virtualExpiry == 0 ? activeExpiry :
+                Math.min(activeExpiry, virtualExpiry);
+
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        Intent intent = new Intent(context, fenceReceiverClass).setAction(ACTION_EXPIRE_FENCES);
+        PendingIntent expireIntent = PendingIntent.getBroadcast(context, EXPIRE_FENCES_REQUEST_CODE, intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+
+        if(nextExpiry == 0) {
+            alarmManager.cancel(expireIntent);
+        }
+        else {
+            alarmManager.set(AlarmManager.RTC, nextExpiry, expireIntent);
+        }
+    }
+
+    /**
+     * Registers fences with the system. A GeofencingRequest carries a single initial trigger, so fences are
+     * grouped by theirs and each group goes out as its own request; fences that share one still cost a single call.
+     * The groups are independent, so one failing leaves the others registered. They may have been registered before
+     * this call, as on a restore, and removing them would unregister fences the caller still holds. The task fails
+     * with the first error and the failed fences are logged; the queue only ever sends a single group.
+     */
+    @SuppressLint("MissingPermission")
+    Task<Void> registerFences(List<Fence> fences) {
+        LinkedHashMap<Integer, GeofencingRequest.Builder> requests = new LinkedHashMap<>();
+        LinkedHashMap<Integer, ArrayList<String>> groupUIDs = new LinkedHashMap<>();
+
+        for(Fence fence : fences) {
+            int initialTrigger = getInitialTrigger(fence);
+            GeofencingRequest.Builder builder = requests.get(initialTrigger);
+
+            if(builder == null) {
+                builder = new GeofencingRequest.Builder().setInitialTrigger(initialTrigger);
+                requests.put(initialTrigger, builder);
+                groupUIDs.put(initialTrigger, new ArrayList<>());
+            }
+
+            builder.addGeofence(buildNewFence(fence));
+            groupUIDs.get(initialTrigger).add(fence.uid);
+        }
+
+        ArrayList<Task<Void>> tasks = new ArrayList<>(requests.size());
+
+        for(GeofencingRequest.Builder builder : requests.values()) {
+            long start = SystemClock.elapsedRealtime();
+            Task<Void> task = geofencingClient.addGeofences(builder.build(), getFencePendingIntent());
+            task.addOnCompleteListener(t -> PerimeterMetrics.REGISTRATION.record(SystemClock.elapsedRealtime() - start));
+            tasks.add(task);
+        }
+
+        if(tasks.size() == 1) {
+            return tasks.get(0);
+        }
+
+        ArrayList<ArrayList<String>> uidsByTask = new ArrayList<>(groupUIDs.values());
+
+        return Tasks.whenAllComplete(tasks).continueWithTask(done -> {
+            ArrayList<String> failedUIDs = new ArrayList<>();
+            Exception error = null;
+
+            for(int i = 0; i < tasks.size(); i++) {
+                if(!tasks.get(i).isSuccessful()) {
+                    failedUIDs.addAll(uidsByTask.get(i));
+
+                    if(error == null) {
+                        error = tasks.get(i).getException();
+                    }
+                }
+            }
+
+            if(error == null) {
+                return Tasks.forResult(null);
+            }
+
+            Log.e(PERIMETER_TAG, "Failed to register " + failedUIDs.size() + " of " + fences.size() + " fences: " + String.join(", ", failedUIDs));
+            return Tasks.forException(error);
+        });
+    }
+
+    /**
+     * The initial trigger a fence is registered with, ENTER when it leaves it unset.
+     */
+    static int getInitialTrigger(Fence fence) {
+        return fence.initialTrigger != Fence.UNSET ? fence.initialTrigger : GeofencingRequest.INITIAL_TRIGGER_ENTER;
+    }
+
+    static int getConvertedTransitionType(int monitor) {
+        return switch (monitor) {
+            case MONITOR_ENTER -> Geofence.GEOFENCE_TRANSITION_ENTER;
+            case MONITOR_EXIT -> Geofence.GEOFENCE_TRANSITION_EXIT;
+            case MONITOR_BOTH -> Geofence.GEOFENCE_TRANSITION_ENTER | Geofence.GEOFENCE_TRANSITION_EXIT;
+            case MONITOR_DWELL -> Geofence.GEOFENCE_TRANSITION_DWELL;
+            default -> -1;
+        };
+    }
+
+    private static Geofence buildNewFence(Fence fence) {
+        return buildNewFence(
+                fence.uid,
+                fence.lat,
+                fence.lng,
+                fence.radius,
+                getExpirationMillis(fence),
+                fence.responsivenessSeconds != Fence.UNSET ? toDelayMillis(fence.responsivenessSeconds) : STANDARD_GEOFENCE_RESPONSIVENESS_MILLISECONDS,
+                fence.loiterDelaySeconds != Fence.UNSET ? toDelayMillis(fence.loiterDelaySeconds) : STANDARD_GEOFENCE_DWELL_DELAY_MILLISECONDS,
+                // The receiver needs both edges of a polygon's bounding circle and applies the monitor itself.
+                fence.isPolygon() ? MONITOR_BOTH : fence.monitor
+        );
+    }
+
+    /**
+     * Fences stored before the delays were bounded may still hold larger values, so this clamps rather than overflows.
+     */
+    private static int toDelayMillis(int seconds) {
+        return (int) Math.min(seconds * 1000L, Integer.MAX_VALUE);
+    }
+
+    private static Geofence buildNewFence(String identifier, double lat, double lang, float radiusInMeters, long expirationInMillis, int responsivenessInMillis, int loiteringDelayInMillis, int monitor) {
+        return new Geofence.Builder()
+            // Set the request ID of the geofence. This is a string to identify this
+            // geofence.
+            .setRequestId(identifier)
+
+            // Set circular region of the geofence
+            .setCircularRegion(lat, lang, radiusInMeters)
+
+            // How quickly the system should report transitions, larger values save battery.
+            .setNotificationResponsiveness(responsivenessInMillis)
+
+            // Set the expiration duration of the geofence.
+            .setExpirationDuration(expirationInMillis)
+
+            // How long the device has to stay inside before a dwell transition fires.
+            .setLoiteringDelay(loiteringDelayInMillis)
+
+            // Set the transition types we're interested in.
+            .setTransitionTypes(getConvertedTransitionType(monitor))
+
+            .build();
+    }
+
+    /**
+     * What is left of the fence's lifetime, so a fence registered again after a restart or rotation still
+     * expires when it was first meant to.
+     */
+    private static long getExpirationMillis(Fence fence) {
+        return fence.expiresAt != Fence.UNSET ? Math.max(1, fence.expiresAt - System.currentTimeMillis()) : Geofence.NEVER_EXPIRE;
+    }
+
+    private synchronized PendingIntent getFencePendingIntent() {
+
+        if(fencePendingIntent == null)
+        {
+            // The receiver reads triggered fences from the fence store, so the intent carries no extras.
+            Intent intent = new Intent(context, fenceReceiverClass);
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                fencePendingIntent = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_MUTABLE);
+            } else {
+                fencePendingIntent = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+            }
+
+        }
+
+        return fencePendingIntent;
+    }
+}
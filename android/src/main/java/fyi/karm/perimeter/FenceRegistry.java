@@ -0,0 +1,334 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * In-memory fence registry. Fences are keyed by uid for constant time lookups and mirrored into a
+ * FenceGrid so duplicate and overlap checks only look at nearby fences. Each fence is also given an
+ * increasing sequence number, which orders query results and serves as their paging cursor. Fences with an
+ * expiry are also kept ordered by it, so the next one to expire is always at the front.
+ */
+final class FenceRegistry {
+
+    private static final Comparator<Fence> BY_EXPIRY = (a, b) -> a.expiresAt != b.expiresAt ?
+            Long.compare(a.expiresAt, b.expiresAt) :
+            a.uid.compareTo(b.uid);
+
+    private final LinkedHashMap<String, Fence> fencesByUID;
+    private final FenceGrid<Fence> grid;
+    private final TreeMap<Long, Fence> fencesBySequence;
+    private final HashMap<String, Long> sequencesByUID;
+    private final HashMap<String, LinkedHashSet<String>> uidsByTag;
+    private final TreeSet<Fence> fencesByExpiry;
+    private long nextSequence = 1;
+    private double maxRadius;
+    private long fingerprint;
+    private List<Fence> snapshot;
+
+    FenceRegistry(double cellDegrees) {
+        fencesByUID = new LinkedHashMap<>();
+        grid = new FenceGrid<>(cellDegrees);
+        fencesBySequence = new TreeMap<>();
+        sequencesByUID = new HashMap<>();
+        uidsByTag = new HashMap<>();
+        fencesByExpiry = new TreeSet<>(BY_EXPIRY);
+    }
+
+    /**
+     * A copy that can be changed without affecting this registry. Sequence numbers carry over, so paging
+     * cursors stay valid across copies.
+     */
+    FenceRegistry(FenceRegistry other) {
+        fencesByUID = new LinkedHashMap<>(other.fencesByUID);
+        grid = new FenceGrid<>(other.grid);
+        fencesBySequence = new TreeMap<>(other.fencesBySequence);
+        sequencesByUID = new HashMap<>(other.sequencesByUID);
+        uidsByTag = new HashMap<>();
+        fencesByExpiry = new TreeSet<>(other.fencesByExpiry);
+        nextSequence = other.nextSequence;
+        maxRadius = other.maxRadius;
+        fingerprint = other.fingerprint;
+        snapshot = other.snapshot;
+
+        for(Map.Entry<String, LinkedHashSet<String>> tag : other.uidsByTag.entrySet()) {
+            uidsByTag.put(tag.getKey(), new LinkedHashSet<>(tag.getValue()));
+        }
+    }
+
+    int size() {
+        return fencesByUID.size();
+    }
+
+    boolean isEmpty() {
+        return fencesByUID.isEmpty();
+    }
+
+    boolean contains(String fenceUID) {
+        return fencesByUID.containsKey(fenceUID);
+    }
+
+    @Nullable
+    Fence get(String fenceUID) {
+        return fencesByUID.get(fenceUID);
+    }
+
+    /**
+     * True when a fence with the same uid or the exact same center is already registered.
+     */
+    boolean isAlreadyFenced(Fence fence) {
+        return fencesByUID.containsKey(fence.uid) || grid.findAt(fence.lat, fence.lng) != null;
+    }
+
+    /**
+     * Returns every registered fence whose circle intersects the given one.
+     */
+    List<Fence> findOverlapping(double lat, double lng, double radiusMeters) {
+        ArrayList<Fence> overlapping = new ArrayList<>();
+
+        for(FenceGrid.Entry<Fence> entry : grid.query(lat, lng, radiusMeters + maxRadius)) {
+            double distance = FenceGrid.distanceMeters(lat, lng, entry.lat, entry.lng);
+            if(distance < radiusMeters + entry.value.radius) {
+                overlapping.add(entry.value);
+            }
+        }
+
+        return overlapping;
+    }
+
+    /**
+     * Returns every registered fence that contains the point. Only grid cells within the largest registered
+     * radius are visited, then each candidate is checked against its own circle and, if it has one, its polygon.
+     */
+    List<Fence> findContaining(double lat, double lng) {
+        ArrayList<Fence> containing = new ArrayList<>();
+
+        if(fencesByUID.isEmpty()) {
+            return containing;
+        }
+
+        for(FenceGrid.Entry<Fence> entry : grid.query(lat, lng, maxRadius)) {
+            if(entry.value.contains(lat, lng)) {
+                containing.add(entry.value);
+            }
+        }
+
+        return containing;
+    }
+
+    List<FenceGrid.Entry<Fence>> nearest(double lat, double lng, int count) {
+        return grid.nearest(lat, lng, count);
+    }
+
+    boolean add(Fence fence) {
+        String fenceUID = fence.uid;
+
+        if(fencesByUID.containsKey(fenceUID)) {
+            return false;
+        }
+
+        fencesByUID.put(fenceUID, fence);
+        grid.put(fenceUID, fence.lat, fence.lng, fence);
+        fencesBySequence.put(nextSequence, fence);
+        sequencesByUID.put(fenceUID, nextSequence++);
+
+        for(String tag : fence.tags) {
+            LinkedHashSet<String> taggedUIDs = uidsByTag.get(tag);
+
+            if(taggedUIDs == null) {
+                taggedUIDs = new LinkedHashSet<>();
+                uidsByTag.put(tag, taggedUIDs);
+            }
+
+            taggedUIDs.add(fenceUID);
+        }
+
+        if(fence.expiresAt != Fence.UNSET) {
+            fencesByExpiry.add(fence);
+        }
+
+        maxRadius = Math.max(maxRadius, fence.radius);
+        fingerprint += mix(fence.contentHash());
+        snapshot = null;
+        return true;
+    }
+
+    @Nullable
+    Fence remove(String fenceUID) {
+        Fence fence = fencesByUID.remove(fenceUID);
+
+        if(fence != null) {
+            grid.remove(fenceUID, fence.lat, fence.lng);
+            fencesBySequence.remove(sequencesByUID.remove(fenceUID));
+
+            for(String tag : fence.tags) {
+                LinkedHashSet<String> taggedUIDs = uidsByTag.get(tag);
+
+                if(taggedUIDs != null) {
+                    taggedUIDs.remove(fenceUID);
+                    if(taggedUIDs.isEmpty()) {
+                        uidsByTag.remove(tag);
+                    }
+                }
+            }
+
+            fencesByExpiry.remove(fence);
+            fingerprint -= mix(fence.contentHash());
+            snapshot = null;
+        }
+
+        return fence;
+    }
+
+    void clear() {
+        fencesByUID.clear();
+        grid.clear();
+        fencesBySequence.clear();
+        sequencesByUID.clear();
+        uidsByTag.clear();
+        fencesByExpiry.clear();
+        maxRadius = 0;
+        fingerprint = 0;
+        snapshot = null;
+    }
+
+    /**
+     * The largest radius ever registered. It is not lowered on removal, so it is only an upper bound.
+     */
+    double getMaxRadius() {
+        return maxRadius;
+    }
+
+    /**
+     * A hash of every registered fence's content that does not depend on insertion order. It is kept up to
+     * date on each add and remove, so two registries holding the same fences always agree.
+     */
+    long fingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * When the next fence expires, or 0 if none of them do.
+     */
+    long nextExpiry() {
+        return fencesByExpiry.isEmpty() ? 0 : fencesByExpiry.first().expiresAt;
+    }
+
+    /**
+     * Every fence whose expiry is at or before now, soonest first. They are not removed.
+     */
+    List<Fence> findExpired(long now) {
+        ArrayList<Fence> expired = new ArrayList<>();
+
+        for(Fence fence : fencesByExpiry) {
+            if(!fence.isExpired(now)) {
+                break;
+            }
+
+            expired.add(fence);
+        }
+
+        return expired;
+    }
+
+    ArrayList<String> uids() {
+        return new ArrayList<>(fencesByUID.keySet());
+    }
+
+    /**
+     * Returns up to limit fences matching the query that were added after the cursor, in insertion order.
+     * Candidates come from the narrowest index the query allows: the tag index, then the grid, and only an
+     * unfiltered query walks the registry, starting at the cursor.
+     */
+    FenceQuery.Page query(FenceQuery query, long cursor, int limit) {
+        ArrayList<Fence> page = new ArrayList<>(Math.min(limit, fencesByUID.size()));
+        Collection<Fence> candidates;
+
+        if(query.isEmpty()) {
+            for(Map.Entry<Long, Fence> entry : fencesBySequence.tailMap(cursor, false).entrySet()) {
+                if(page.size() == limit) {
+                    return new FenceQuery.Page(page, sequencesByUID.get(page.get(limit - 1).uid));
+                }
+                page.add(entry.getValue());
+            }
+
+            return new FenceQuery.Page(page, 0);
+        }
+        else if(query.tag != null) {
+            LinkedHashSet<String> taggedUIDs = uidsByTag.get(query.tag);
+            candidates = new ArrayList<>();
+
+            if(taggedUIDs != null) {
+                for(String fenceUID : taggedUIDs) {
+                    candidates.add(fencesByUID.get(fenceUID));
+                }
+            }
+        }
+        else if(query.hasNear) {
+            candidates = values(grid.query(query.nearLat, query.nearLng, query.nearRadius));
+        }
+        else {
+            candidates = values(grid.queryBox(query.south, query.west, query.north, query.east));
+        }
+
+        TreeMap<Long, Fence> matches = new TreeMap<>();
+
+        for(Fence fence : candidates) {
+            long sequence = sequencesByUID.get(fence.uid);
+
+            if(sequence > cursor && query.matches(fence)) {
+                matches.put(sequence, fence);
+            }
+        }
+
+        for(Map.Entry<Long, Fence> entry : matches.entrySet()) {
+            if(page.size() == limit) {
+                return new FenceQuery.Page(page, sequencesByUID.get(page.get(limit - 1).uid));
+            }
+            page.add(entry.getValue());
+        }
+
+        return new FenceQuery.Page(page, 0);
+    }
+
+    /**
+     * A read-only view of the registered fences in insertion order. The same list is returned until the registry changes.
+     */
+    List<Fence> snapshot() {
+        if(snapshot == null) {
+            snapshot = Collections.unmodifiableList(new ArrayList<>(fencesByUID.values()));
+        }
+
+        return snapshot;
+    }
+
+    private static long mix(long hash) {
+        // Spreads the content hash out before it is summed, so unrelated sets rarely collide.
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+
+    private static ArrayList<Fence> values(List<FenceGrid.Entry<Fence>> entries) {
+        ArrayList<Fence> fences = new ArrayList<>(entries.size());
+
+        for(FenceGrid.Entry<Fence> entry : entries) {
+            fences.add(entry.value);
+        }
+
+        return fences;
+    }
+}
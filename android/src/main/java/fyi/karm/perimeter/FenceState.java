@@ -0,0 +1,145 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import static fyi.karm.perimeter.Constants.*;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.greenrobot.eventbus.EventBus;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.IOException;
+
+/**
+ * The process-wide set of active fences, shared by every plugin instance and the receiver. Reads return the
+ * current registry without locking and must treat it as read-only. Writes are serialized: each one copies
+ * the registry, changes the copy and publishes it, so a reader never sees a write half done.
+ *
+ * The fence store is replayed on first use rather than when the plugin loads, so whichever thread touches
+ * the state first pays for it and the others wait. Until it has been replayed successfully, reads see no fences
+ * and writes are refused, so a registry missing the stored fences is never published or compacted over the store.
+ */
+final class FenceState {
+
+    interface Mutation<T> {
+        T apply(FenceRegistry fences);
+    }
+
+    private static FenceState instance;
+
+    private final Context context;
+    private volatile FenceRegistry current = new FenceRegistry(ACTIVE_GRID_CELL_DEGREES);
+    private volatile boolean isLoaded;
+    private boolean isRestorePending;
+
+    private FenceState(Context context) {
+        this.context = context;
+    }
+
+    static synchronized FenceState get(Context context) {
+        if(instance == null) {
+            instance = new FenceState(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    /**
+     * The current fences. The returned registry is never changed afterwards, so it is safe to read from any thread.
+     */
+    FenceRegistry read() {
+        if(!isLoaded) {
+            load();
+        }
+
+        return current;
+    }
+
+    /**
+     * Applies the mutation to a copy of the current fences and publishes it. Throws without calling the
+     * mutation if the stored fences could not be loaded.
+     */
+    synchronized <T> T update(Mutation<T> mutation) throws IOException {
+        if(!load()) {
+            throw new IOException(ERROR_MESSAGES.get(ANDROID_PLATFORM_EVENT.FAILED_RESTORING_FENCES.getValue()));
+        }
+
+        FenceRegistry fences = new FenceRegistry(current);
+        T result = mutation.apply(fences);
+        current = fences;
+        return result;
+    }
+
+    /**
+     * Returns true once after the loaded fences need registering with the system, so only one caller restores them.
+     */
+    synchronized boolean claimRestore() {
+        load();
+        boolean wasPending = isRestorePending;
+        isRestorePending = false;
+        return wasPending;
+    }
+
+    /**
+     * Hands an unfinished restore to the next caller of claimRestore.
+     */
+    synchronized void requestRestore() {
+        isRestorePending = !current.isEmpty();
+    }
+
+    /**
+     * Replays the fence store the first time the state is used in this process and returns whether it has been.
+     * A failed load is reported and tried again on the next use.
+     */
+    private synchronized boolean load() {
+        if(isLoaded) {
+            return true;
+        }
+
+        FenceRegistry fences = new FenceRegistry(ACTIVE_GRID_CELL_DEGREES);
+
+        try {
+            FenceJournal journal = FenceStores.active(context);
+            FenceJournal payloads = FenceStores.activePayloads(context);
+            migrateSavedFences(journal, payloads);
+            FenceStores.replayInto(journal, fences);
+        }
+        catch (IOException | JSONException e) {
+            int errorCode = ANDROID_PLATFORM_EVENT.FAILED_RESTORING_FENCES.getValue();
+            String errorMessage = ERROR_MESSAGES.get(errorCode);
+            Log.e(PERIMETER_TAG, errorMessage);
+            EventBus.getDefault().post(new PerimeterPlugin.PlatformEvent(errorCode, errorMessage, null));
+            return false;
+        }
+
+        current = fences;
+        isLoaded = true;
+        isRestorePending = !fences.isEmpty();
+        return true;
+    }
+
+    /**
+     * Moves fences saved by earlier releases, which kept the whole list in SharedPreferences, into the journal.
+     */
+    private void migrateSavedFences(FenceJournal journal, FenceJournal payloads) throws IOException, JSONException {
+        SharedPreferences prefs = context.getSharedPreferences("Perimeter", Context.MODE_PRIVATE);
+        String stateString = prefs.getString("activeFencesJSON", "");
+
+        if(stateString.isEmpty()) {
+            return;
+        }
+
+        JSONArray lastSavedFences = new JSONArray(stateString);
+
+        for(int i = 0; i < lastSavedFences.length(); i++) {
+            FenceStores.put(journal, payloads, Fence.fromJSObject(lastSavedFences.getJSONObject(i)));
+        }
+
+        prefs.edit().remove("activeFencesJSON").apply();
+        Log.d(PERIMETER_TAG, "Migrated " + lastSavedFences.length() + " fences from SharedPrefs.");
+    }
+}
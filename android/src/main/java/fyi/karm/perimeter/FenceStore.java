@@ -0,0 +1,279 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact random-access fence file. A sorted table of uid hashes sits in front of the records, so a single
+ * fence can be found with a binary search over the memory-mapped file without reading the others.
+ *
+ * Layout: magic, version, count, count * (uid hash, record offset), then count * (uid length, uid, body length, body).
+ */
+final class FenceStore {
+
+    interface RecordConsumer {
+        void accept(String fenceUID, byte[] body);
+    }
+
+    interface RecordWriter {
+        void write(String fenceUID, byte[] body) throws IOException;
+    }
+
+    interface RecordSource {
+        void writeTo(RecordWriter writer) throws IOException;
+    }
+
+    /**
+     * Appends records to the side file of a write, keeping the uid hash and relative offset of each.
+     */
+    private static final class RecordsFile implements RecordWriter {
+        private final DataOutputStream out;
+        long[] hashAndPosition = new long[64];
+        int[] offsets = new int[64];
+        int count;
+        long length;
+
+        RecordsFile(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(String fenceUID, byte[] body) throws IOException {
+            if(count == offsets.length) {
+                hashAndPosition = Arrays.copyOf(hashAndPosition, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+
+            byte[] encodedUID = fenceUID.getBytes(StandardCharsets.UTF_8);
+            hashAndPosition[count] = ((long) fenceUID.hashCode() << 32) | count;
+            offsets[count] = (int) length;
+            out.writeShort(encodedUID.length);
+            out.write(encodedUID);
+            out.writeInt(body.length);
+            out.write(body);
+            length += 2 + encodedUID.length + 4 + body.length;
+            count++;
+        }
+    }
+
+    private static final int MAGIC = 0x50465331; // PFS1
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 12;
+    private static final int INDEX_ENTRY_BYTES = 8;
+
+    private final File file;
+    private MappedByteBuffer mapped;
+
+    FenceStore(File file) {
+        this.file = file;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Replaces the whole store with the given records.
+     */
+    void write(List<String> fenceUIDs, List<byte[]> bodies) throws IOException {
+        write(writer -> {
+            for(int i = 0; i < fenceUIDs.size(); i++) {
+                writer.write(fenceUIDs.get(i), bodies.get(i));
+            }
+        });
+    }
+
+    /**
+     * Replaces the whole store with the records the source writes. Records are streamed to a side file as they
+     * arrive, so only their hashes and offsets are held in memory. The index and the records are then written next
+     * to the old store and renamed over it, so readers never observe a partial store.
+     *
+     * The source runs without the store lock, so it may read through a journal backed by this store. Only one write
+     * may run at a time.
+     */
+    void write(RecordSource source) throws IOException {
+        File recordsFile = new File(file.getPath() + ".records");
+        File tempFile = new File(file.getPath() + ".tmp");
+
+        try {
+            RecordsFile records;
+
+            try (FileOutputStream fileOut = new FileOutputStream(recordsFile);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+                records = new RecordsFile(out);
+                source.writeTo(records);
+                out.flush();
+            }
+
+            long[] hashAndPosition = Arrays.copyOf(records.hashAndPosition, records.count);
+            long recordsStart = HEADER_BYTES + (long) records.count * INDEX_ENTRY_BYTES;
+
+            if(recordsStart + records.length > Integer.MAX_VALUE) {
+                throw new IOException("Too many records for " + file.getName());
+            }
+
+            // Sorting hash << 32 | position keeps equal hashes adjacent for the collision scan in read.
+            Arrays.sort(hashAndPosition);
+
+            try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                 FileChannel in = new FileInputStream(recordsFile).getChannel()) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(records.count);
+
+                for(long entry : hashAndPosition) {
+                    out.writeInt((int) (entry >> 32));
+                    out.writeInt((int) recordsStart + records.offsets[(int) entry]);
+                }
+
+                out.flush();
+
+                for(long position = 0; position < in.size(); ) {
+                    position += in.transferTo(position, in.size() - position, fileOut.getChannel());
+                }
+
+                fileOut.getFD().sync();
+            }
+        }
+        finally {
+            recordsFile.delete();
+        }
+
+        synchronized (this) {
+            if(!tempFile.renameTo(file)) {
+                throw new IOException("Failed to replace " + file.getName());
+            }
+
+            mapped = null;
+        }
+    }
+
+    @Nullable
+    synchronized byte[] read(String fenceUID) throws IOException {
+        ByteBuffer buffer = map();
+
+        if(buffer == null) {
+            return null;
+        }
+
+        int count = buffer.getInt(8);
+        int hash = fenceUID.hashCode();
+        int low = 0;
+        int high = count - 1;
+
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int midHash = buffer.getInt(HEADER_BYTES + mid * INDEX_ENTRY_BYTES);
+
+            if(midHash < hash) {
+                low = mid + 1;
+            }
+            else if(midHash > hash) {
+                high = mid - 1;
+            }
+            else {
+                // Walk back to the first entry with this hash, then check each candidate's uid.
+                while(mid > 0 && buffer.getInt(HEADER_BYTES + (mid - 1) * INDEX_ENTRY_BYTES) == hash) {
+                    mid--;
+                }
+
+                byte[] encodedUID = fenceUID.getBytes(StandardCharsets.UTF_8);
+
+                for(int i = mid; i < count && buffer.getInt(HEADER_BYTES + i * INDEX_ENTRY_BYTES) == hash; i++) {
+                    int offset = buffer.getInt(HEADER_BYTES + i * INDEX_ENTRY_BYTES + 4);
+                    if(uidEquals(buffer, offset, encodedUID)) {
+                        int bodyOffset = offset + 2 + encodedUID.length;
+                        byte[] body = new byte[buffer.getInt(bodyOffset)];
+                        ByteBuffer view = buffer.duplicate();
+                        view.position(bodyOffset + 4);
+                        view.get(body);
+                        return body;
+                    }
+                }
+
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    synchronized void forEach(RecordConsumer consumer) throws IOException {
+        ByteBuffer buffer = map();
+
+        if(buffer == null) {
+            return;
+        }
+
+        ByteBuffer view = buffer.duplicate();
+        int count = view.getInt(8);
+        view.position(HEADER_BYTES + count * INDEX_ENTRY_BYTES);
+
+        for(int i = 0; i < count; i++) {
+            byte[] encodedUID = new byte[view.getShort() & 0xffff];
+            view.get(encodedUID);
+            byte[] body = new byte[view.getInt()];
+            view.get(body);
+            consumer.accept(new String(encodedUID, StandardCharsets.UTF_8), body);
+        }
+    }
+
+    synchronized List<String> uids() throws IOException {
+        ArrayList<String> fenceUIDs = new ArrayList<>();
+        forEach((fenceUID, body) -> fenceUIDs.add(fenceUID));
+        return fenceUIDs;
+    }
+
+    private static boolean uidEquals(ByteBuffer buffer, int offset, byte[] encodedUID) {
+        if((buffer.getShort(offset) & 0xffff) != encodedUID.length) {
+            return false;
+        }
+
+        for(int i = 0; i < encodedUID.length; i++) {
+            if(buffer.get(offset + 2 + i) != encodedUID[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Nullable
+    private MappedByteBuffer map() throws IOException {
+        if(mapped == null) {
+            if(!file.exists()) {
+                return null;
+            }
+
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+                 FileChannel channel = randomAccessFile.getChannel()) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+                if(channel.size() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                    throw new IOException("Unrecognized fence store " + file.getName());
+                }
+
+                mapped = buffer;
+            }
+        }
+
+        return mapped;
+    }
+}
@@ -0,0 +1,291 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import static fyi.karm.perimeter.Constants.*;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process-wide fence journals shared by the plugin and the receiver, plus the helpers that move
+ * fences in and out of them. Each fence journal has a payload journal next to it, keyed by the same uids,
+ * so payloads are written once and only read when asked for.
+ */
+final class FenceStores {
+
+    private static FenceJournal activeJournal;
+    private static FenceJournal virtualJournal;
+    private static FenceJournal activePayloadJournal;
+    private static FenceJournal virtualPayloadJournal;
+    private static ExecutorService compactionExecutor;
+
+    private FenceStores() {}
+
+    static synchronized FenceJournal active(Context context) {
+        if(activeJournal == null) {
+            activeJournal = openJournal(context, ACTIVE_FENCE_STORE_NAME);
+        }
+
+        return activeJournal;
+    }
+
+    static synchronized FenceJournal virtual(Context context) {
+        if(virtualJournal == null) {
+            virtualJournal = openJournal(context, VIRTUAL_FENCE_STORE_NAME);
+        }
+
+        return virtualJournal;
+    }
+
+    static synchronized FenceJournal activePayloads(Context context) {
+        if(activePayloadJournal == null) {
+            activePayloadJournal = openJournal(context, ACTIVE_PAYLOAD_STORE_NAME);
+        }
+
+        return activePayloadJournal;
+    }
+
+    static synchronized FenceJournal virtualPayloads(Context context) {
+        if(virtualPayloadJournal == null) {
+            virtualPayloadJournal = openJournal(context, VIRTUAL_PAYLOAD_STORE_NAME);
+        }
+
+        return virtualPayloadJournal;
+    }
+
+    private static FenceJournal openJournal(Context context, String name) {
+        File directory = context.getFilesDir();
+        return new FenceJournal(new FenceStore(new File(directory, name + ".bin")), directory, name);
+    }
+
+    static void put(FenceJournal journal, Fence fence) throws IOException {
+        journal.put(fence.uid, fence.encode());
+    }
+
+    /**
+     * Writes the fence and, if it still carries one, its payload.
+     */
+    static void put(FenceJournal journal, FenceJournal payloads, Fence fence) throws IOException {
+        journal.put(fence.uid, fence.encode());
+
+        if(fence.payload != null) {
+            putPayload(payloads, fence.uid, fence.payload);
+        }
+    }
+
+    /**
+     * Chunked form of put, one write per journal.
+     */
+    static void putAll(FenceJournal journal, FenceJournal payloads, List<Fence> fences) throws IOException {
+        ArrayList<String> fenceUIDs = new ArrayList<>(fences.size());
+        ArrayList<byte[]> bodies = new ArrayList<>(fences.size());
+        ArrayList<String> payloadUIDs = new ArrayList<>(fences.size());
+        ArrayList<byte[]> payloadBodies = new ArrayList<>(fences.size());
+
+        for(Fence fence : fences) {
+            fenceUIDs.add(fence.uid);
+            bodies.add(fence.encode());
+
+            if(fence.payload != null) {
+                payloadUIDs.add(fence.uid);
+                payloadBodies.add(fence.payload.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        journal.putAll(fenceUIDs, bodies);
+        payloads.putAll(payloadUIDs, payloadBodies);
+    }
+
+    static void putPayload(FenceJournal payloads, String fenceUID, String payload) throws IOException {
+        payloads.put(fenceUID, payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void remove(FenceJournal journal, FenceJournal payloads, String fenceUID) throws IOException {
+        journal.remove(fenceUID);
+        payloads.remove(fenceUID);
+    }
+
+    static void clear(FenceJournal journal, FenceJournal payloads) throws IOException {
+        journal.clear();
+        payloads.clear();
+    }
+
+    static HashMap<String, String> readPayloads(FenceJournal payloads, Collection<String> fenceUIDs) throws IOException {
+        HashMap<String, String> found = new HashMap<>();
+
+        for(Map.Entry<String, byte[]> entry : payloads.lookupAll(fenceUIDs).entrySet()) {
+            found.put(entry.getKey(), new String(entry.getValue(), StandardCharsets.UTF_8));
+        }
+
+        return found;
+    }
+
+    /**
+     * Looks payloads up by uid in the active fences, then in the virtual catalog for any not found there.
+     */
+    static HashMap<String, String> findPayloads(Context context, Collection<String> fenceUIDs) throws IOException {
+        HashMap<String, String> found = readPayloads(activePayloads(context), fenceUIDs);
+
+        if(found.size() < fenceUIDs.size()) {
+            ArrayList<String> missingUIDs = new ArrayList<>();
+
+            for(String fenceUID : fenceUIDs) {
+                if(!found.containsKey(fenceUID)) {
+                    missingUIDs.add(fenceUID);
+                }
+            }
+
+            found.putAll(readPayloads(virtualPayloads(context), missingUIDs));
+        }
+
+        return found;
+    }
+
+    @Nullable
+    static Fence readFence(FenceJournal journal, String fenceUID) throws IOException {
+        byte[] body = journal.lookup(fenceUID);
+        return body == null ? null : Fence.decode(body);
+    }
+
+    /**
+     * Looks a fence up by uid in the active fences, then in the virtual catalog.
+     */
+    @Nullable
+    static Fence findFence(Context context, String fenceUID) throws IOException {
+        Fence fence = readFence(active(context), fenceUID);
+
+        if(fence == null) {
+            fence = readFence(virtual(context), fenceUID);
+        }
+
+        return fence;
+    }
+
+    /**
+     * Replays a journal into the registry. Unreadable records are skipped so one bad fence cannot block a restore.
+     */
+    static void replayInto(FenceJournal journal, FenceRegistry registry) throws IOException {
+        journal.replay(new FenceJournal.Replay() {
+            @Override
+            public void onPut(String fenceUID, byte[] body) {
+                Fence fence;
+
+                try {
+                    fence = Fence.decode(body);
+                }
+                catch (IOException e) {
+                    Log.e(PERIMETER_TAG, "Skipping unreadable fence " + fenceUID + ".");
+                    return;
+                }
+
+                registry.remove(fenceUID);
+                registry.add(fence);
+            }
+
+            @Override
+            public void onRemove(String fenceUID) {
+                registry.remove(fenceUID);
+            }
+
+            @Override
+            public void onClear() {
+                registry.clear();
+            }
+        });
+    }
+
+    /**
+     * Folds each journal back into its store once it has grown past the live fence count. Only the registry's
+     * snapshot list and uids are taken on the calling thread, which must hold the registry still. The stores are
+     * written in the background, streaming one fence at a time and reading payloads back from their journal
+     * COMPACTION_CHUNK_SIZE at a time, so neither the encoded fences nor the payloads are ever all in memory.
+     */
+    static void compactIfNeeded(FenceJournal journal, FenceJournal payloads, FenceRegistry registry) throws IOException {
+        if(journal.needsCompaction(registry.size())) {
+            compact(journal, registry);
+        }
+
+        if(payloads.needsCompaction(registry.size())) {
+            compactPayloads(payloads, registry);
+        }
+    }
+
+    private static void compact(FenceJournal journal, FenceRegistry registry) throws IOException {
+        int generation = journal.beginCompaction();
+        // The snapshot is never changed once returned, so it can be read from the compaction thread.
+        List<Fence> snapshot = registry.snapshot();
+
+        getCompactionExecutor().execute(() -> {
+            try {
+                journal.finishCompaction(generation, writer -> {
+                    for(Fence fence : snapshot) {
+                        writer.write(fence.uid, fence.encode());
+                    }
+                });
+                Log.d(PERIMETER_TAG, "Compacted " + snapshot.size() + " fences into the fence store.");
+            }
+            catch (IOException e) {
+                Log.e(PERIMETER_TAG, ERROR_MESSAGES.get(ANDROID_PLATFORM_EVENT.FAILED_WRITING_FENCE_STORE.getValue()), e);
+            }
+        });
+    }
+
+    private static void compactPayloads(FenceJournal payloads, FenceRegistry registry) throws IOException {
+        int generation = payloads.beginCompaction();
+        ArrayList<String> fenceUIDs = registry.uids();
+
+        getCompactionExecutor().execute(() -> {
+            try {
+                // Entries written after beginCompaction may be picked up here as well; they are replayed on top anyway.
+                payloads.finishCompaction(generation, writer -> {
+                    for(int start = 0; start < fenceUIDs.size(); start += COMPACTION_CHUNK_SIZE) {
+                        List<String> chunk = fenceUIDs.subList(start, Math.min(start + COMPACTION_CHUNK_SIZE, fenceUIDs.size()));
+                        HashMap<String, byte[]> found = payloads.lookupAll(chunk);
+
+                        for(String fenceUID : chunk) {
+                            byte[] body = found.get(fenceUID);
+
+                            if(body != null) {
+                                writer.write(fenceUID, body);
+                            }
+                        }
+                    }
+                });
+                Log.d(PERIMETER_TAG, "Compacted the payloads of " + fenceUIDs.size() + " fences into the payload store.");
+            }
+            catch (IOException e) {
+                Log.e(PERIMETER_TAG, ERROR_MESSAGES.get(ANDROID_PLATFORM_EVENT.FAILED_WRITING_FENCE_STORE.getValue()), e);
+            }
+        });
+    }
+
+    /**
+     * Blocks until every compaction queued so far has finished.
+     */
+    static void awaitCompactions() throws InterruptedException, ExecutionException {
+        getCompactionExecutor().submit(() -> {}).get();
+    }
+
+    private static synchronized ExecutorService getCompactionExecutor() {
+        if(compactionExecutor == null) {
+            compactionExecutor = Executors.newSingleThreadExecutor();
+        }
+
+        return compactionExecutor;
+    }
+}
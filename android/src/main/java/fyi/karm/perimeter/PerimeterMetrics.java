@@ -0,0 +1,103 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import com.getcapacitor.JSObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide latency histograms and pipeline counters. Recording is lock-free so it is safe from the
+ * receiver workers, the event executor and Play Services callbacks at once.
+ */
+final class PerimeterMetrics {
+
+    /**
+     * Millisecond histogram with power of two buckets. Bucket i holds values in [2^(i-1), 2^i), bucket 0 holds 0.
+     */
+    static final class Histogram {
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long millis) {
+            long value = Math.max(0, millis);
+            buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+
+            long currentMax;
+            while(value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {}
+        }
+
+        /**
+         * The upper bound of the bucket holding the given quantile.
+         */
+        long quantile(double quantile) {
+            long total = count.get();
+            long target = (long) Math.ceil(total * quantile);
+            long seen = 0;
+
+            for(int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if(total > 0 && seen >= target) {
+                    return i == 0 ? 0 : Math.min(max.get(), (1L << i) - 1);
+                }
+            }
+
+            return 0;
+        }
+
+        JSObject toJSObject() {
+            long total = count.get();
+            JSObject histogram = new JSObject();
+            histogram.put("count", total);
+            histogram.put("mean", total == 0 ? 0 : (double) sum.get() / total);
+            histogram.put("max", max.get());
+            histogram.put("p50", quantile(0.5));
+            histogram.put("p90", quantile(0.9));
+            histogram.put("p99", quantile(0.99));
+            return histogram;
+        }
+    }
+
+    // Trigger location timestamp to the receiver handling the broadcast.
+    static final Histogram TRIGGER_TO_RECEIVER = new Histogram();
+    // Trigger location timestamp to the event being handed to the bridge.
+    static final Histogram TRIGGER_TO_JS = new Histogram();
+    // addGeofences call to its completion.
+    static final Histogram REGISTRATION = new Histogram();
+
+    static final AtomicLong TRIGGERS = new AtomicLong();
+    static final AtomicLong DEBOUNCED = new AtomicLong();
+    static final AtomicLong DROPPED = new AtomicLong();
+    static final AtomicLong QUEUED = new AtomicLong();
+    static final AtomicLong ERRORS = new AtomicLong();
+    static final AtomicLong RESTORES = new AtomicLong();
+
+    private PerimeterMetrics() {}
+
+    static JSObject toJSObject() {
+        JSObject histograms = new JSObject();
+        histograms.put("triggerToReceiver", TRIGGER_TO_RECEIVER.toJSObject());
+        histograms.put("triggerToJS", TRIGGER_TO_JS.toJSObject());
+        histograms.put("registration", REGISTRATION.toJSObject());
+
+        JSObject counters = new JSObject();
+        counters.put("triggers", TRIGGERS.get());
+        counters.put("debounced", DEBOUNCED.get());
+        counters.put("dropped", DROPPED.get());
+        counters.put("queued", QUEUED.get());
+        counters.put("errors", ERRORS.get());
+        counters.put("restores", RESTORES.get());
+
+        JSObject metrics = new JSObject();
+        metrics.put("histograms", histograms);
+        metrics.put("counters", counters);
+        return metrics;
+    }
+}
@@ -7,11 +7,8 @@ import static fyi.karm.perimeter.Constants.*;
 import android.Manifest;
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
-import android.app.PendingIntent;
 import android.content.Context;
-import android.content.Intent;
-import android.content.SharedPreferences;
-import android.content.pm.PackageManager;
+import android.net.Uri;
 import android.os.Build;
 import android.util.Log;
 
@@ -27,18 +24,39 @@ import com.getcapacitor.PluginMethod;
 import com.getcapacitor.annotation.CapacitorPlugin;
 import com.getcapacitor.annotation.Permission;
 import com.getcapacitor.annotation.PermissionCallback;
-import com.google.android.gms.location.Geofence;
-import com.google.android.gms.location.GeofencingClient;
-import com.google.android.gms.location.GeofencingRequest;
+import com.google.android.gms.location.FusedLocationProviderClient;
 import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.location.Priority;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 @TargetApi(30)
 @CapacitorPlugin(
@@ -97,40 +115,30 @@ public final class PerimeterPlugin extends Plugin {
         }
     }
 
-    private GeofencingClient geofencingClient;
-    private PendingIntent fencePendingIntent;
-    private ArrayList<JSObject> activeFences;
-    private Class<? extends PerimeterReceiver> fenceReceiverClass;
-
-    public PerimeterPlugin()
-    {
-        activeFences = new ArrayList<JSObject>();
-    }
+    // Events are marshalled and sent to JS on this thread, never on the UI thread. Only created once the plugin is loaded.
+    private ScheduledExecutorService eventExecutor;
+    // Imports stream whole files, so they get their own thread rather than holding up the bridge or events.
+    private ExecutorService importExecutor;
+    private JSArray pendingFenceEvents = new JSArray();
+    private volatile long eventBatchWindowMillis = 0;
+    private ScheduledFuture<?> metricsTask;
 
     @Override
     public void load() {
         super.load();
-        tryGetCustomReceiver(getContext());
-        tryInitClient(getContext(), false);
+        eventExecutor = Executors.newSingleThreadScheduledExecutor();
+        importExecutor = Executors.newSingleThreadExecutor();
+        tryInitClient();
     }
 
-    void tryInitClient(Context context, boolean isBoot)
+    private void tryInitClient()
     {
-        boolean hasPermissions = isBoot ? hasLocationPermissionsAtBoot(context) : hasLocationPermissions();
-
-        if(hasPermissions && geofencingClient == null)
+        if(hasLocationPermissions())
         {
-            geofencingClient = LocationServices.getGeofencingClient(context);
-            Log.d(PERIMETER_TAG, CLIENT_INITIALIZED);
+            FenceRegistrar.get(getContext()).initialize();
         }
     }
 
-    void tryGetCustomReceiver(Context context)
-    {
-        PerimeterApplicationHooks capApp = (PerimeterApplicationHooks) context.getApplicationContext();
-        this.fenceReceiverClass = capApp.GetGeoFenceReceiverClass();
-    }
-
     private boolean hasForegroundPermissions() { return (getPermissionState(FOREGROUND_ALIAS) == PermissionState.GRANTED); };
 
     private boolean hasBackgroundPermissions() {
@@ -142,20 +150,6 @@ public final class PerimeterPlugin extends Plugin {
         return Build.VERSION.SDK_INT < Build.VERSION_CODES.Q ? hasForegroundPermissions() : hasForegroundPermissions() && hasBackgroundPermissions();
     }
 
-    boolean hasLocationPermissionsAtBoot(Context context) {
-        boolean hasPermissions = false;
-
-        for (String standardLocationPermission : STANDARD_LOCATION_PERMISSIONS) {
-            hasPermissions = (context.checkSelfPermission(standardLocationPermission) == PackageManager.PERMISSION_GRANTED);
-        }
-
-        if(Build.VERSION.SDK_INT > Build.VERSION_CODES.Q) {
-            hasPermissions = (context.checkSelfPermission(Manifest.permission.ACCESS_BACKGROUND_LOCATION) == PackageManager.PERMISSION_GRANTED);
-        }
-
-        return hasPermissions;
-    }
-
     @PluginMethod
     public void requestForegroundPermissions(PluginCall call) {
         requestPermissionForAlias(FOREGROUND_ALIAS, call, "locationPermissionsCallback");
@@ -197,12 +191,12 @@ public final class PerimeterPlugin extends Plugin {
     @PermissionCallback
     private void locationPermissionsCallback(PluginCall call) {
         checkPermissions(call);
-        tryInitClient(getContext(), false);
+        tryInitClient();
     }
 
     @PermissionCallback
     private void backgroundPermissionsCallback(PluginCall call) {
-        tryInitClient(getContext(), false);
+        tryInitClient();
     }
 
     @PluginMethod()
@@ -210,345 +204,1846 @@ public final class PerimeterPlugin extends Plugin {
     {
         if(!hasLocationPermissions())
         {
-            call.reject(ERROR_MESSAGES.get(PERIMETER_ERROR.INCORRECT_PERMISSIONS), PERIMETER_ERROR.INCORRECT_PERMISSIONS.name());
+            reject(call, PERIMETER_ERROR.INCORRECT_PERMISSIONS);
+            return;
+        }
+        else if(!FenceRegistrar.get(getContext()).isInitialized())
+        {
+            reject(call, PERIMETER_ERROR.CLIENT_UNINITIALIZED);
             return;
         }
-        else if(geofencingClient == null)
+
+        JSObject fenceJS = call.getData();
+        PERIMETER_ERROR fenceError = validateFenceShape(fenceJS);
+        Fence fence = fenceError == null ? Fence.fromJSObject(fenceJS) : null;
+
+        if(fence != null) {
+            try {
+                // Checked again under the write so a concurrent change cannot slip in between.
+                fenceError = FenceState.get(getContext()).update(fences -> {
+                    PERIMETER_ERROR addError = validateFence(fences, fence);
+
+                    if(addError == null && !fences.add(fence.withoutPayload())) {
+                        addError = PERIMETER_ERROR.ALREADY_FENCED;
+                    }
+                    else if(addError == null) {
+                        writeJournal(getContext(), fences, (journal, payloads) -> FenceStores.put(journal, payloads, fence));
+                    }
+
+                    return addError;
+                });
+            }
+            catch (IOException e) {
+                call.reject(e.getLocalizedMessage(), PERIMETER_ERROR.GENERIC_PLATFORM_ERROR.name());
+                return;
+            }
+        }
+
+        if(fenceError != null)
         {
-            call.reject(ERROR_MESSAGES.get(PERIMETER_ERROR.CLIENT_UNINITIALIZED), PERIMETER_ERROR.CLIENT_UNINITIALIZED.name());
+            reject(call, fenceError);
             return;
         }
-        else if(!call.hasOption("name") &&
-                !call.hasOption("uid") &&
-                !call.hasOption("payload") &&
-                !call.hasOption("lat") &&
-                !call.hasOption("lng") &&
-                !call.hasOption("radius") &&
-                !call.hasOption("monitor"))
+
+        ArrayList<Fence> fenceToAdd = new ArrayList<>();
+        fenceToAdd.add(fence);
+
+        submitToClient(fenceToAdd, NO_FENCES, NO_FENCE_UIDS, (failedUIDs, error) -> {
+            if(error == null)
+            {
+                call.resolve();
+                Log.d(PERIMETER_TAG, "Began monitoring for " + fence.uid + ".");
+                return;
+            }
+
+            revertFenceState(fences -> {
+                fences.remove(fence.uid);
+                writeJournal(getContext(), fences, (journal, payloads) -> FenceStores.remove(journal, payloads, fence.uid));
+                return null;
+            });
+            call.reject(error.getLocalizedMessage(), PERIMETER_ERROR.GENERIC_PLATFORM_ERROR.name());
+        });
+    }
+
+    @PluginMethod()
+    public void addFences(PluginCall call)
+    {
+        if(!hasLocationPermissions())
         {
-            call.reject(ERROR_MESSAGES.get(PERIMETER_ERROR.INVALID_FENCE_OBJ), PERIMETER_ERROR.INVALID_FENCE_OBJ.name());
+            reject(call, PERIMETER_ERROR.INCORRECT_PERMISSIONS);
             return;
         }
-        else if(!((call.getInt("radius") >= MIN_FENCE_RADIUS) && (call.getInt("radius") <= MAX_FENCE_RADIUS)))  {
-            call.reject(ERROR_MESSAGES.get(PERIMETER_ERROR.INVALID_FENCE_OBJ), PERIMETER_ERROR.INVALID_FENCE_OBJ.name());
+        else if(!FenceRegistrar.get(getContext()).isInitialized())
+        {
+            reject(call, PERIMETER_ERROR.CLIENT_UNINITIALIZED);
             return;
         }
-        else if(activeFences.size() >= ANDROID_FENCE_LIMIT) {
-            call.reject(ERROR_MESSAGES.get(PERIMETER_ERROR.TOO_MANY_FENCES), PERIMETER_ERROR.TOO_MANY_FENCES.name());
+        else if(call.getArray("fences") == null)
+        {
+            reject(call, PERIMETER_ERROR.NO_OR_INVALID_ARGS);
             return;
         }
 
-        for (JSObject fence : activeFences) {
-            if(fence.optString("uid").equals(call.getString("uid")) ||
-                    (fence.optDouble("lat") == call.getDouble("lat") &&
-                    fence.optDouble("lng") == call.getDouble("lng"))) {
-                        call.reject(ERROR_MESSAGES.get(PERIMETER_ERROR.ALREADY_FENCED), PERIMETER_ERROR.ALREADY_FENCED.name());
-                    return;
+        JSArray requestedFences = call.getArray("fences");
+        ArrayList<JSObject> results = new ArrayList<>();
+        ArrayList<JSObject> acceptedResults = new ArrayList<>();
+        ArrayList<Fence> acceptedFences = new ArrayList<>();
+        Fence[] requestedShapes = new Fence[requestedFences.length()];
+
+        // Shapes are checked up front, the limit and overlaps only under the write below.
+        for(int i = 0; i < requestedFences.length(); i++)
+        {
+            JSONObject fenceJS = null;
+            PERIMETER_ERROR fenceError;
+
+            try {
+                fenceJS = requestedFences.getJSONObject(i);
+                fenceError = validateFenceShape(fenceJS);
+
+                if(fenceError == null) {
+                    requestedShapes[i] = Fence.fromJSObject(fenceJS);
+                }
+            }
+            catch (JSONException e) {
+                fenceError = PERIMETER_ERROR.INVALID_FENCE_OBJ;
             }
+
+            results.add(getFenceResult(fenceJS == null ? null : fenceJS.optString("uid", null), fenceError));
         }
 
-        Geofence newFence = buildNewFence(
-                call.getString("uid"),
-                call.getString("payload"),
-                call.getDouble("lat"),
-                call.getDouble("lng"),
-                call.getFloat("radius"),
-                Geofence.NEVER_EXPIRE,
-                call.getInt("monitor")
-        );
+        try {
+            // Validated and added in one write so a concurrent change cannot slip in between, while the
+            // whole batch still reaches Play Services as a single request.
+            FenceState.get(getContext()).update(fences -> {
+                for(int i = 0; i < requestedShapes.length; i++)
+                {
+                    Fence fence = requestedShapes[i];
 
-        ArrayList<Geofence>fenceToAdd = new ArrayList<>();
-        fenceToAdd.add(newFence);
-        activeFences.add(call.getData());
-        addFencesToClient(call, fenceToAdd, getContext());
-    }
+                    if(fence == null) {
+                        continue;
+                    }
 
-    @SuppressLint("MissingPermission")
-    private void addFencesToClient(@Nullable PluginCall call, ArrayList<Geofence> fencesToAdd, Context context) {
-
-        geofencingClient.addGeofences(getGeoFencingRequest(fencesToAdd), getFencePendingIntent(context))
-                .addOnSuccessListener(v -> { if( call != null) { call.resolve(); }})
-                .addOnFailureListener(e -> {
-                    Log.e(PERIMETER_TAG, e.getLocalizedMessage());
-                    if(call != null) {
-                        call.reject(e.getLocalizedMessage(), PERIMETER_ERROR.GENERIC_PLATFORM_ERROR.name());
+                    PERIMETER_ERROR fenceError = validateFence(fences, fence);
+
+                    if(fenceError == null && !fences.add(fence.withoutPayload())) {
+                        fenceError = PERIMETER_ERROR.ALREADY_FENCED;
+                    }
+
+                    if(fenceError != null) {
+                        results.set(i, getFenceResult(fence.uid, fenceError));
+                        continue;
+                    }
+
+                    acceptedResults.add(results.get(i));
+                    acceptedFences.add(fence);
+                }
+
+                if(!acceptedFences.isEmpty()) {
+                    writeJournal(getContext(), fences, (journal, payloads) -> {
+                        for(Fence fence : acceptedFences) {
+                            FenceStores.put(journal, payloads, fence);
+                        }
+                    });
+                }
+
+                return null;
+            });
+        }
+        catch (IOException e) {
+            call.reject(e.getLocalizedMessage(), PERIMETER_ERROR.GENERIC_PLATFORM_ERROR.name());
+            return;
+        }
+
+        JSObject batchResult = new JSObject();
+
+        if(acceptedFences.isEmpty())
+        {
+            batchResult.put("results", new JSArray(results));
+            call.resolve(batchResult);
+            return;
+        }
+
+        submitToClient(acceptedFences, NO_FENCES, NO_FENCE_UIDS, (failedUIDs, error) -> {
+            for(JSObject result : acceptedResults) {
+                if(failedUIDs.contains(result.getString("uid"))) {
+                    result.put("error", PERIMETER_ERROR.GENERIC_PLATFORM_ERROR.name());
+                }
+                else {
+                    result.put("success", true);
+                }
+            }
+
+            if(!failedUIDs.isEmpty())
+            {
+                revertFenceState(fences -> {
+                    for(String fenceUID : failedUIDs) {
+                        fences.remove(fenceUID);
                     }
+                    writeJournal(getContext(), fences, (journal, payloads) -> {
+                        for(String fenceUID : failedUIDs) {
+                            FenceStores.remove(journal, payloads, fenceUID);
+                        }
+                    });
+                    return null;
                 });
-        if(call != null) {
-            Log.d(PERIMETER_TAG, "Began monitoring for " + call.getString("uid") + ".");
+            }
+
+            batchResult.put("results", new JSArray(results));
+            call.resolve(batchResult);
+            Log.d(PERIMETER_TAG, "Began monitoring for " + (acceptedFences.size() - failedUIDs.size()) + " fences.");
+        });
+    }
+
+    /**
+     * Queues client calls for a change already applied to the fence state, tagged with the state's fingerprint.
+     * The listener runs on the event executor, since rolling back a failed submission writes the journal.
+     */
+    private void submitToClient(List<Fence> addedFences, List<Fence> updatedFences, List<String> removedUIDs, FenceOperationQueue.Listener listener) {
+        long fingerprint = FenceState.get(getContext()).read().fingerprint();
+        FenceRegistrar.get(getContext()).getOperationQueue().submit(addedFences, updatedFences, removedUIDs, fingerprint,
+                (failedUIDs, error) -> runOffMainThread(() -> listener.onComplete(failedUIDs, error)));
+
+        if(!addedFences.isEmpty() || !updatedFences.isEmpty()) {
+            FenceRegistrar.get(getContext()).scheduleExpiryCheck();
         }
     }
 
+    /**
+     * Registers fences restored from the store. They may still be registered from before, so they go in as updates.
+     */
+    private void addFencesToClient(Context context, List<Fence> fencesToAdd, long fingerprint) {
+
+        FenceRegistrar.get(context).getOperationQueue().submit(NO_FENCES, fencesToAdd, NO_FENCE_UIDS, fingerprint, (failedUIDs, error) -> {
+            if(error != null) {
+                Log.e(PERIMETER_TAG, "Failed to register " + failedUIDs.size() + " restored fences: " + error.getLocalizedMessage());
+            }
+        });
+    }
+
     @PluginMethod()
     public void removeFence(PluginCall call)
     {
         if(!hasLocationPermissions())
         {
-            call.reject(ERROR_MESSAGES.get(PERIMETER_ERROR.INCORRECT_PERMISSIONS), PERIMETER_ERROR.INCORRECT_PERMISSIONS.name());
+            reject(call, PERIMETER_ERROR.INCORRECT_PERMISSIONS);
             return;
         }
-        else if(geofencingClient == null)
+        else if(!FenceRegistrar.get(getContext()).isInitialized())
         {
-            call.reject(ERROR_MESSAGES.get(PERIMETER_ERROR.CLIENT_UNINITIALIZED), PERIMETER_ERROR.CLIENT_UNINITIALIZED.name());
+            reject(call, PERIMETER_ERROR.CLIENT_UNINITIALIZED);
             return;
         }
         else if(!call.hasOption("fenceUID"))
         {
-            call.reject(ERROR_MESSAGES.get(PERIMETER_ERROR.NO_OR_INVALID_ARGS), PERIMETER_ERROR.NO_OR_INVALID_ARGS.name());
+            reject(call, PERIMETER_ERROR.NO_OR_INVALID_ARGS);
             return;
         }
 
         String fenceUID = call.getString("fenceUID");
-        int foundInActive = -1;
-
-        for(int i = 0; i < activeFences.size(); i++)
-        {
-            JSObject fence = activeFences.get(i);
-
-            if(fenceUID.equals(fence.getString("uid")))
-            {
-                foundInActive = i;
-            }
+        HashMap<String, String> removedPayloads = new HashMap<>();
+        Fence removedFence;
+
+        try {
+            removedFence = FenceState.get(getContext()).update(fences -> {
+                Fence fence = fences.remove(fenceUID);
+
+                if(fence != null) {
+                    writeJournal(getContext(), fences, (journal, payloads) -> {
+                        // Kept so a failed removal can put the payload back.
+                        removedPayloads.putAll(FenceStores.readPayloads(payloads, Collections.singletonList(fenceUID)));
+                        FenceStores.remove(journal, payloads, fenceUID);
+                    });
+                }
+
+                return fence;
+            });
+        }
+        catch (IOException e) {
+            call.reject(e.getLocalizedMessage(), PERIMETER_ERROR.GENERIC_PLATFORM_ERROR.name());
+            return;
         }
 
-        if(foundInActive == -1)
+        if(removedFence == null)
         {
-            call.reject(ERROR_MESSAGES.get(PERIMETER_ERROR.FENCE_NOT_FOUND), PERIMETER_ERROR.FENCE_NOT_FOUND.name());
+            reject(call, PERIMETER_ERROR.FENCE_NOT_FOUND);
         }
         else
         {
             ArrayList<String> fenceToRemove = new ArrayList<>();
             fenceToRemove.add(fenceUID);
-            activeFences.remove(foundInActive);
+            forgetFenceState(getContext(), fenceToRemove);
 
-            geofencingClient.removeGeofences(fenceToRemove);
-            call.resolve();
-            Log.d(PERIMETER_TAG, "Successfully removed fence " + fenceUID + ".");
+            submitToClient(NO_FENCES, NO_FENCES, fenceToRemove, (failedUIDs, error) -> {
+                if(error != null) {
+                    restoreRemovedFences(Collections.singletonList(removedFence), removedPayloads);
+                    call.reject(error.getLocalizedMessage(), PERIMETER_ERROR.GENERIC_PLATFORM_ERROR.name());
+                    return;
+                }
+
+                call.resolve();
+                Log.d(PERIMETER_TAG, "Successfully removed fence " + fenceUID + ".");
+            });
         }
     }
 
     @PluginMethod()
-    public void removeAllFences(PluginCall call)
+    public void removeFences(PluginCall call)
     {
         if(!hasLocationPermissions())
         {
-            call.reject(ERROR_MESSAGES.get(PERIMETER_ERROR.INCORRECT_PERMISSIONS), PERIMETER_ERROR.INCORRECT_PERMISSIONS.name());
+            reject(call, PERIMETER_ERROR.INCORRECT_PERMISSIONS);
             return;
         }
-        else if(geofencingClient == null)
+        else if(!FenceRegistrar.get(getContext()).isInitialized())
         {
-            call.reject(ERROR_MESSAGES.get(PERIMETER_ERROR.CLIENT_UNINITIALIZED), PERIMETER_ERROR.CLIENT_UNINITIALIZED.name());
+            reject(call, PERIMETER_ERROR.CLIENT_UNINITIALIZED);
             return;
         }
-        else if (activeFences.size() == 0)
+        else if(call.getArray("fenceUIDs") == null)
         {
-            call.resolve();
-            Log.d(PERIMETER_TAG, "There are no active fences.");
+            reject(call, PERIMETER_ERROR.NO_OR_INVALID_ARGS);
+            return;
+        }
+
+        JSArray requestedUIDs = call.getArray("fenceUIDs");
+        ArrayList<JSObject> results = new ArrayList<>();
+        ArrayList<JSObject> foundResults = new ArrayList<>();
+        ArrayList<String> fencesToRemove = new ArrayList<>();
+        LinkedHashMap<String, Fence> removedFences = new LinkedHashMap<>();
+        HashMap<String, String> removedPayloads = new HashMap<>();
+
+        try {
+            FenceState.get(getContext()).update(fences -> {
+                for(int i = 0; i < requestedUIDs.length(); i++)
+                {
+                    String fenceUID = requestedUIDs.optString(i, null);
+                    Fence foundFence = fenceUID == null ? null : fences.remove(fenceUID);
+                    JSObject result = getFenceResult(fenceUID, foundFence == null ? PERIMETER_ERROR.FENCE_NOT_FOUND : null);
+                    results.add(result);
+
+                    if(foundFence != null)
+                    {
+                        foundResults.add(result);
+                        fencesToRemove.add(fenceUID);
+                        removedFences.put(fenceUID, foundFence);
+                    }
+                }
+
+                writeJournal(getContext(), fences, (journal, payloads) -> {
+                    // Kept so a failed removal can put the payloads back.
+                    removedPayloads.putAll(FenceStores.readPayloads(payloads, fencesToRemove));
+
+                    for(String fenceUID : fencesToRemove) {
+                        FenceStores.remove(journal, payloads, fenceUID);
+                    }
+                });
+                return null;
+            });
+        }
+        catch (IOException e) {
+            call.reject(e.getLocalizedMessage(), PERIMETER_ERROR.GENERIC_PLATFORM_ERROR.name());
             return;
         }
 
-        ArrayList<String> activeFenceUIDs = new ArrayList<>();
+        JSObject batchResult = new JSObject();
 
-        for(JSObject fence : activeFences)
+        if(fencesToRemove.isEmpty())
         {
-            String UID = fence.getString("uid");
-            activeFenceUIDs.add(UID);
-            Log.d(PERIMETER_TAG, UID);
+            batchResult.put("results", new JSArray(results));
+            call.resolve(batchResult);
+            return;
         }
 
-        geofencingClient.removeGeofences(activeFenceUIDs);
-        activeFences.clear();
-        call.resolve();
-        Log.d(PERIMETER_TAG, "Successfully removed all fences.");
-    }
+        forgetFenceState(getContext(), fencesToRemove);
 
-    @PluginMethod()
-    public void getActiveFences(PluginCall call) {
-        //TODO Verify this output on the other side.
-        JSObject activeFenceDict = new JSObject();
-        activeFenceDict.put("fences", activeFences);
-        call.resolve(activeFenceDict);
+        submitToClient(NO_FENCES, NO_FENCES, fencesToRemove, (failedUIDs, error) -> {
+            for(JSObject result : foundResults) {
+                if(failedUIDs.contains(result.getString("uid"))) {
+                    result.put("error", PERIMETER_ERROR.GENERIC_PLATFORM_ERROR.name());
+                }
+                else {
+                    result.put("success", true);
+                }
+            }
+
+            if(!failedUIDs.isEmpty())
+            {
+                ArrayList<Fence> failedFences = new ArrayList<>(failedUIDs.size());
+
+                for(String fenceUID : failedUIDs) {
+                    failedFences.add(removedFences.get(fenceUID));
+                }
+
+                restoreRemovedFences(failedFences, removedPayloads);
+            }
+
+            batchResult.put("results", new JSArray(results));
+            call.resolve(batchResult);
+            Log.d(PERIMETER_TAG, "Successfully removed " + (fencesToRemove.size() - failedUIDs.size()) + " fences.");
+        });
     }
 
-    private int getConvertedTransitionType(int monitor)
+    @PluginMethod()
+    public void removeAllFences(PluginCall call)
     {
-        return switch (monitor) {
-            case MONITOR_ENTER -> Geofence.GEOFENCE_TRANSITION_ENTER;
-            case MONITOR_EXIT -> Geofence.GEOFENCE_TRANSITION_EXIT;
-            case MONITOR_BOTH -> Geofence.GEOFENCE_TRANSITION_ENTER | Geofence.GEOFENCE_TRANSITION_EXIT;
-            default -> -1;
-        };
-    }
+        if(!hasLocationPermissions())
+        {
+            reject(call, PERIMETER_ERROR.INCORRECT_PERMISSIONS);
+            return;
+        }
+        else if(!FenceRegistrar.get(getContext()).isInitialized())
+        {
+            reject(call, PERIMETER_ERROR.CLIENT_UNINITIALIZED);
+            return;
+        }
+
+        LinkedHashMap<String, Fence> removedFences = new LinkedHashMap<>();
+        HashMap<String, String> removedPayloads = new HashMap<>();
+        ArrayList<String> activeFenceUIDs;
 
-    private Geofence buildNewFence(String identifier, String type, double lat, double lang, float radiusInMeters, long expirationInMillis, int monitor) {
-        return new Geofence.Builder()
-            // Set the request ID of the geofence. This is a string to identify this
-            // geofence.
-            .setRequestId(identifier)
+        try {
+            activeFenceUIDs = FenceState.get(getContext()).update(fences -> {
+                ArrayList<String> fenceUIDs = fences.uids();
 
-            // Set circular region of the geofence
-            .setCircularRegion(lat, lang, radiusInMeters)
+                if(!fenceUIDs.isEmpty()) {
+                    for(Fence fence : fences.snapshot()) {
+                        removedFences.put(fence.uid, fence);
+                    }
+
+                    fences.clear();
+                    writeJournal(getContext(), fences, (journal, payloads) -> {
+                        // Kept so a failed removal can put the payloads back.
+                        removedPayloads.putAll(FenceStores.readPayloads(payloads, fenceUIDs));
+                        FenceStores.clear(journal, payloads);
+                    });
+                }
+
+                return fenceUIDs;
+            });
+        }
+        catch (IOException e) {
+            call.reject(e.getLocalizedMessage(), PERIMETER_ERROR.GENERIC_PLATFORM_ERROR.name());
+            return;
+        }
 
-            //TODO Functionality : Loiter delay and expiration should be set by API consumers.
+        if(activeFenceUIDs.isEmpty())
+        {
+            call.resolve();
+            Log.d(PERIMETER_TAG, "There are no active fences.");
+            return;
+        }
 
-            .setNotificationResponsiveness(STANDARD_GEOFENCE_RESPONSIVENESS_MILLISECONDS)
+        forgetFenceState(getContext(), activeFenceUIDs);
 
-            // Set the expiration duration of the geofence.
-            .setExpirationDuration(expirationInMillis)
+        submitToClient(NO_FENCES, NO_FENCES, activeFenceUIDs, (failedUIDs, error) -> {
+            if(error != null) {
+                ArrayList<Fence> failedFences = new ArrayList<>(failedUIDs.size());
 
-//            .setLoiteringDelay(STANDARD_GEOFENCE_DWELL_DELAY_MILLISECONDS)
+                for(String fenceUID : failedUIDs) {
+                    failedFences.add(removedFences.get(fenceUID));
+                }
 
-            // Set the transition types we're interested in.
-            // We track entry and exit transitions.
-            .setTransitionTypes(getConvertedTransitionType(monitor))
+                restoreRemovedFences(failedFences, removedPayloads);
+                call.reject(error.getLocalizedMessage(), PERIMETER_ERROR.GENERIC_PLATFORM_ERROR.name());
+                return;
+            }
 
-            .build();
+            call.resolve();
+            Log.d(PERIMETER_TAG, "Successfully removed all fences.");
+        });
     }
 
-    private PendingIntent getFencePendingIntent(Context context) {
+    /**
+     * Makes the active fences match the given list. Fences are diffed by uid and content hash so only the
+     * ones that were added, changed or dropped reach Play Services, each kind in a single request.
+     */
+    @PluginMethod()
+    public void setFences(PluginCall call)
+    {
+        if(!hasLocationPermissions())
+        {
+            reject(call, PERIMETER_ERROR.INCORRECT_PERMISSIONS);
+            return;
+        }
+        else if(!FenceRegistrar.get(getContext()).isInitialized())
+        {
+            reject(call, PERIMETER_ERROR.CLIENT_UNINITIALIZED);
+            return;
+        }
+        else if(call.getArray("fences") == null)
+        {
+            reject(call, PERIMETER_ERROR.NO_OR_INVALID_ARGS);
+            return;
+        }
+
+        JSArray requestedFences = call.getArray("fences");
+        ArrayList<JSObject> results = new ArrayList<>();
+        LinkedHashMap<String, JSObject> acceptedResults = new LinkedHashMap<>();
+        FenceRegistry desiredFences = new FenceRegistry(ACTIVE_GRID_CELL_DEGREES);
+        int availableSlots = ANDROID_FENCE_LIMIT - VirtualFenceSet.get(getContext()).getReservedSlots();
 
-        if(fencePendingIntent == null)
+        for(int i = 0; i < requestedFences.length(); i++)
         {
-            Intent intent = new Intent(context, fenceReceiverClass);
+            JSONObject fenceJS = null;
+            Fence fence = null;
+            PERIMETER_ERROR fenceError;
 
             try {
-                intent.putExtra(ALL_ACTIVE_FENCES_EXTRA, new JSArray(activeFences.toArray()).toString());
+                fenceJS = requestedFences.getJSONObject(i);
+                fenceError = validateFenceShape(fenceJS);
+
+                if(fenceError == null) {
+                    fence = Fence.fromJSObject(fenceJS);
+
+                    // The desired set replaces the active one, so it is only checked against itself.
+                    if(desiredFences.size() >= availableSlots) {
+                        fenceError = PERIMETER_ERROR.TOO_MANY_FENCES;
+                    }
+                    else if(desiredFences.isAlreadyFenced(fence) || VirtualFenceSet.get(getContext()).getFence(fence.uid) != null) {
+                        fenceError = PERIMETER_ERROR.ALREADY_FENCED;
+                    }
+                }
             }
-            catch(JSONException e)
-            {
-                int errorCode = ANDROID_PLATFORM_EVENT.FAILED_PACK_INTENT.getValue();
-                String errorMessage = ERROR_MESSAGES.get(errorCode);
-                Log.e(PERIMETER_TAG, errorMessage);
-                PlatformEvent errorEvent = new PerimeterPlugin.PlatformEvent(errorCode, errorMessage, null);
-                onPlatformEvent(errorEvent);
+            catch (JSONException e) {
+                fenceError = PERIMETER_ERROR.INVALID_FENCE_OBJ;
             }
 
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                fencePendingIntent = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_MUTABLE);
-            } else {
-                fencePendingIntent = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
-            }
+            JSObject result = getFenceResult(fenceJS == null ? null : fenceJS.optString("uid", null), fenceError);
+            results.add(result);
 
+            if(fenceError == null)
+            {
+                acceptedResults.put(fence.uid, result);
+                desiredFences.add(fence);
+            }
         }
 
-        return fencePendingIntent;
-    }
+        ArrayList<String> fencesToRemove = new ArrayList<>();
+        ArrayList<Fence> fencesToAdd = new ArrayList<>();
+        ArrayList<Fence> fencesToUpdate = new ArrayList<>();
+        ArrayList<Fence> fencesToRegister = new ArrayList<>();
+        ArrayList<String> addedUIDs = new ArrayList<>();
+        ArrayList<String> updatedUIDs = new ArrayList<>();
+        LinkedHashMap<String, Fence> replacedFences = new LinkedHashMap<>();
+        HashMap<String, String> replacedPayloads = new HashMap<>();
+        LinkedHashMap<String, Fence> removedFences = new LinkedHashMap<>();
+        HashMap<String, String> removedPayloads = new HashMap<>();
+
+        long now = System.currentTimeMillis();
+
+        try {
+            // The diff is taken and applied in one write so nothing else can change the fences in between.
+            FenceState.get(getContext()).update(fences -> {
+                for(Fence activeFence : fences.snapshot())
+                {
+                    Fence desiredFence = desiredFences.get(activeFence.uid);
+
+                    if(desiredFence == null) {
+                        removedFences.put(activeFence.uid, activeFence);
+                        fencesToRemove.add(activeFence.uid);
+                    }
+                    // A fence past its expiry that is sent again is registered anew, with a fresh expiry.
+                    else if(desiredFence.contentHash() != activeFence.contentHash() || activeFence.isExpired(now)) {
+                        replacedFences.put(activeFence.uid, activeFence);
+                        updatedUIDs.add(activeFence.uid);
+                        fencesToUpdate.add(desiredFence);
+                    }
+                }
 
-    private GeofencingRequest getGeoFencingRequest(ArrayList<Geofence> geofences) {
-        GeofencingRequest.Builder builder = new GeofencingRequest.Builder();
-        builder.setInitialTrigger(GeofencingRequest.INITIAL_TRIGGER_ENTER);
-        builder.addGeofences(geofences);
-        return builder.build();
-    }
+                for(Fence desiredFence : desiredFences.snapshot())
+                {
+                    if(!fences.contains(desiredFence.uid)) {
+                        addedUIDs.add(desiredFence.uid);
+                        fencesToAdd.add(desiredFence);
+                    }
+                }
 
-    void checkForExistingFences(Context context) {
-            SharedPreferences prefs = context.getSharedPreferences("Perimeter", Context.MODE_PRIVATE);
-            String stateString = prefs.getString("activeFencesJSON", "");
+                fencesToRegister.addAll(fencesToAdd);
+                fencesToRegister.addAll(fencesToUpdate);
 
-            if(!stateString.isEmpty() && activeFences.size() == 0) {
+                if(fencesToRemove.isEmpty() && fencesToRegister.isEmpty()) {
+                    return null;
+                }
 
-                try {
+                for(String fenceUID : fencesToRemove) {
+                    fences.remove(fenceUID);
+                }
+
+                for(Fence fence : fencesToRegister) {
+                    fences.remove(fence.uid);
+                    fences.add(fence.withoutPayload());
+                }
+
+                ArrayList<String> changedPayloadUIDs = new ArrayList<>();
+
+                for(Fence fence : fencesToUpdate) {
+                    if(fence.payloadHash != replacedFences.get(fence.uid).payloadHash) {
+                        changedPayloadUIDs.add(fence.uid);
+                    }
+                }
+
+                writeJournal(getContext(), fences, (journal, payloads) -> {
+                    // Kept so a failed update or removal can put the old payload back.
+                    replacedPayloads.putAll(FenceStores.readPayloads(payloads, changedPayloadUIDs));
+                    removedPayloads.putAll(FenceStores.readPayloads(payloads, fencesToRemove));
+
+                    for(String fenceUID : fencesToRemove) {
+                        FenceStores.remove(journal, payloads, fenceUID);
+                    }
+                    for(Fence fence : fencesToRegister) {
+                        FenceStores.put(journal, payloads, fence);
+                    }
+                });
+                return null;
+            });
+        }
+        catch (IOException e) {
+            call.reject(e.getLocalizedMessage(), PERIMETER_ERROR.GENERIC_PLATFORM_ERROR.name());
+            return;
+        }
 
-                    JSArray lastSavedFences = new JSArray(stateString);
+        int unchanged = desiredFences.size() - addedUIDs.size() - updatedUIDs.size();
 
-                    if(lastSavedFences.length() > 0) {
+        for(JSObject result : acceptedResults.values()) {
+            result.put("success", true);
+        }
 
-                        ArrayList<Geofence> fencesToAdd = new ArrayList<>();
+        if(fencesToRemove.isEmpty() && fencesToRegister.isEmpty())
+        {
+            call.resolve(getSyncResult(results, addedUIDs, updatedUIDs, fencesToRemove, unchanged));
+            Log.d(PERIMETER_TAG, "Active fences are already in sync.");
+            return;
+        }
 
-                        for(int i = 0; i < lastSavedFences.length(); i++) {
-                            JSObject jsFence = JSObject.fromJSONObject((JSONObject) lastSavedFences.get(i));
+        ArrayList<String> forgottenUIDs = new ArrayList<>(fencesToRemove);
+        forgottenUIDs.addAll(updatedUIDs);
+        forgetFenceState(getContext(), forgottenUIDs);
 
-                            Geofence newFence = buildNewFence(
-                                    jsFence.getString("uid"),
-                                    jsFence.getString("payload"),
-                                    jsFence.getDouble("lat"),
-                                    jsFence.getDouble("lng"),
-                                    (float) jsFence.getDouble("radius"), // We don't care about narrowing conversion bc radius is at most one or two decimal place.
-                                    Geofence.NEVER_EXPIRE,
-                                    jsFence.getInt("monitor")
-                            );
+        // Registering a geofence under an existing request id replaces it, so updates need no removal of their own.
+        submitToClient(fencesToAdd, fencesToUpdate, fencesToRemove, (failedUIDs, error) -> {
+            ArrayList<String> removedUIDs = new ArrayList<>(fencesToRemove);
+            ArrayList<String> restoredUIDs = new ArrayList<>();
+            ArrayList<Fence> failedRemovals = new ArrayList<>();
 
-                            activeFences.add(jsFence);
-                            fencesToAdd.add(newFence);
-                        }
+            for(String fenceUID : failedUIDs)
+            {
+                JSObject result = acceptedResults.get(fenceUID);
 
-                        addFencesToClient(null, fencesToAdd, context);
-                        int eventCode = ANDROID_PLATFORM_EVENT.FOREGROUND_WITH_EXISTING_FENCES.getValue();
-                        Log.d(PERIMETER_TAG, "Now loading existing fences from geofence store.");
-                        PlatformEvent event = new PerimeterPlugin.PlatformEvent(eventCode, "", lastSavedFences); // Kind of a waste of CPU cycles...
-                        onPlatformEvent(event);
+                if(removedUIDs.remove(fenceUID)) {
+                    results.add(getFenceResult(fenceUID, PERIMETER_ERROR.GENERIC_PLATFORM_ERROR));
+                    failedRemovals.add(removedFences.get(fenceUID));
+                    continue;
+                }
 
-                    }
-                    else {
-                        Log.d(PERIMETER_TAG, "No orphaned fences.");
-                    }
+                result.put("success", false);
+                result.put("error", PERIMETER_ERROR.GENERIC_PLATFORM_ERROR.name());
+                addedUIDs.remove(fenceUID);
 
-                } catch (JSONException e) {
-                    int errorCode = ANDROID_PLATFORM_EVENT.FAILED_RESTORING_FENCES.getValue();
-                    String errorMessage = ERROR_MESSAGES.get(errorCode);
-                    Log.e(PERIMETER_TAG, errorMessage);
-                    PlatformEvent errorEvent = new PerimeterPlugin.PlatformEvent(errorCode, errorMessage, null);
-                    onPlatformEvent(errorEvent);
-                };
+                if(updatedUIDs.remove(fenceUID)) {
+                    restoredUIDs.add(fenceUID);
+                }
             }
-            else {
-                Log.d(PERIMETER_TAG, "No orphaned fences.");
+
+            if(!failedUIDs.isEmpty())
+            {
+                revertFenceState(fences -> {
+                    for(String fenceUID : failedUIDs)
+                    {
+                        if(restoredUIDs.contains(fenceUID)) {
+                            fences.remove(fenceUID);
+                            fences.add(replacedFences.get(fenceUID));
+                        }
+                        else if(!fencesToRemove.contains(fenceUID)) {
+                            fences.remove(fenceUID);
+                        }
+                    }
+                    writeJournal(getContext(), fences, (journal, payloads) -> {
+                        for(String fenceUID : failedUIDs) {
+                            if(restoredUIDs.contains(fenceUID)) {
+                                FenceStores.put(journal, replacedFences.get(fenceUID));
+
+                                if(replacedPayloads.containsKey(fenceUID)) {
+                                    FenceStores.putPayload(payloads, fenceUID, replacedPayloads.get(fenceUID));
+                                }
+                            }
+                            else if(!fencesToRemove.contains(fenceUID)) {
+                                FenceStores.remove(journal, payloads, fenceUID);
+                            }
+                        }
+                    });
+                    return null;
+                });
+            }
+
+            // The system still monitors these, so they stay active.
+            if(!failedRemovals.isEmpty()) {
+                restoreRemovedFences(failedRemovals, removedPayloads);
             }
+
+            call.resolve(getSyncResult(results, addedUIDs, updatedUIDs, removedUIDs, unchanged));
+            Log.d(PERIMETER_TAG, "Synced fences: " + addedUIDs.size() + " added, " + updatedUIDs.size() + " updated, " + removedUIDs.size() + " removed, " + unchanged + " unchanged.");
+        });
     }
 
-    private void saveExistingFences() {
-        SharedPreferences prefs = getActivity().getSharedPreferences("Perimeter", Context.MODE_PRIVATE);
+    private JSObject getSyncResult(List<JSObject> results, List<String> addedUIDs, List<String> updatedUIDs, List<String> removedUIDs, int unchanged)
+    {
+        JSObject syncResult = new JSObject();
+        syncResult.put("results", new JSArray(results));
+        syncResult.put("added", new JSArray(addedUIDs));
+        syncResult.put("updated", new JSArray(updatedUIDs));
+        syncResult.put("removed", new JSArray(removedUIDs));
+        syncResult.put("unchanged", unchanged);
+        return syncResult;
+    }
 
-        if(activeFences.size() > 0) {
-            try {
-                prefs.edit()
-                        .putString("activeFencesJSON", new JSArray(activeFences.toArray()).toString())
-                        .apply();
-                Log.d(PERIMETER_TAG, "Updating geofence store before resigning foreground.");
-            } catch (JSONException e) {
-                throw new RuntimeException(e);
-            };
+    @PluginMethod()
+    public void addVirtualFences(PluginCall call)
+    {
+        if(!hasLocationPermissions())
+        {
+            reject(call, PERIMETER_ERROR.INCORRECT_PERMISSIONS);
+            return;
         }
-        else {
-            prefs.edit()
-                    .clear()
-                    .apply();
+        else if(!FenceRegistrar.get(getContext()).isInitialized())
+        {
+            reject(call, PERIMETER_ERROR.CLIENT_UNINITIALIZED);
+            return;
+        }
+        else if(call.getArray("fences") == null)
+        {
+            reject(call, PERIMETER_ERROR.NO_OR_INVALID_ARGS);
+            return;
         }
-    }
 
-    @Override
-    protected void handleOnStart() {
-        super.handleOnStart();
-        checkForExistingFences(getContext());
-        EventBus.getDefault().register(this);
-    }
+        VirtualFenceSet virtualFences = VirtualFenceSet.get(getContext());
+        Integer workingSetSize = call.getInt("workingSetSize");
 
-    @Override
-    protected void handleOnStop() {
-        super.handleOnStop();
-        saveExistingFences();
-        EventBus.getDefault().unregister(this);
+        if(workingSetSize != null)
+        {
+            // One slot is always held back for the refresh fence.
+            if(workingSetSize < 1 || workingSetSize > ANDROID_FENCE_LIMIT - 1 - FenceState.get(getContext()).read().size())
+            {
+                reject(call, PERIMETER_ERROR.TOO_MANY_FENCES);
+                return;
+            }
+
+            virtualFences.setWorkingSetSize(workingSetSize);
+        }
+        else if(virtualFences.getWorkingSetSize() > ANDROID_FENCE_LIMIT - 1 - FenceState.get(getContext()).read().size())
+        {
+            reject(call, PERIMETER_ERROR.TOO_MANY_FENCES);
+            return;
+        }
+
+        JSArray requestedFences = call.getArray("fences");
+        ArrayList<JSObject> results = new ArrayList<>();
+
+        for(int i = 0; i < requestedFences.length(); i++)
+        {
+            JSONObject fenceJS = null;
+            PERIMETER_ERROR fenceError;
+
+            try {
+                fenceJS = requestedFences.getJSONObject(i);
+                fenceError = validateFenceShape(fenceJS);
+
+                if(fenceError == null && isActiveFence(fenceJS.optString("uid"))) {
+                    fenceError = PERIMETER_ERROR.ALREADY_FENCED;
+                }
+                else if(fenceError == null) {
+                    fenceError = virtualFences.add(Fence.fromJSObject(fenceJS));
+                }
+            }
+            catch (JSONException e) {
+                fenceError = PERIMETER_ERROR.INVALID_FENCE_OBJ;
+            }
+
+            JSObject result = getFenceResult(fenceJS == null ? null : fenceJS.optString("uid", null), fenceError);
+            result.put("success", fenceError == null);
+            results.add(result);
+        }
+
+        virtualFences.save();
+
+        JSObject batchResult = new JSObject();
+        batchResult.put("results", new JSArray(results));
+        resolveAfterRefresh(getContext(), call, batchResult);
     }
 
-    @Subscribe(threadMode = ThreadMode.MAIN)
-    public void onFenceEvent(FenceEvent event) {
-        JSObject fenceEventJS = new JSObject();
+    /**
+     * Streams fences from a GeoJSON or CSV file into the virtual set without passing them over the bridge.
+     * Rows are validated like addVirtualFences and written in chunks of IMPORT_CHUNK_SIZE, with an
+     * ImportProgress event after each chunk. The path may be a plain file path or a file or content uri.
+     */
+    @PluginMethod()
+    public void importFences(PluginCall call)
+    {
+        if(!hasLocationPermissions())
+        {
+            reject(call, PERIMETER_ERROR.INCORRECT_PERMISSIONS);
+            return;
+        }
+        else if(!FenceRegistrar.get(getContext()).isInitialized())
+        {
+            reject(call, PERIMETER_ERROR.CLIENT_UNINITIALIZED);
+            return;
+        }
+        else if(call.getString("path") == null || !FenceImporter.isSupportedFormat(call.getString("format")))
+        {
+            reject(call, PERIMETER_ERROR.NO_OR_INVALID_ARGS);
+            return;
+        }
+        else if(VirtualFenceSet.get(getContext()).getWorkingSetSize() > ANDROID_FENCE_LIMIT - 1 - FenceState.get(getContext()).read().size())
+        {
+            reject(call, PERIMETER_ERROR.TOO_MANY_FENCES);
+            return;
+        }
+
+        importExecutor.execute(() -> importFences(call, call.getString("path"), call.getString("format")));
+    }
+
+    /**
+     * Runs on the import executor. Only the current chunk and the first IMPORT_MAX_REPORTED_ERRORS
+     * rejections are kept in memory.
+     */
+    private void importFences(PluginCall call, String path, String format)
+    {
+        Context context = getContext();
+        VirtualFenceSet virtualFences = VirtualFenceSet.get(context);
+        Uri uri = Uri.parse(path);
+        long totalBytes = uri.getScheme() == null ? new File(path).length() :
+                "file".equals(uri.getScheme()) ? new File(uri.getPath()).length() :
+                -1;
+        ArrayList<Fence> chunk = new ArrayList<>(IMPORT_CHUNK_SIZE);
+        ArrayList<Integer> chunkRows = new ArrayList<>(IMPORT_CHUNK_SIZE);
+        JSArray errors = new JSArray();
+        int row = 0;
+        int imported = 0;
+        int rejected = 0;
+
+        try (InputStream in = openImportFile(context, uri, path);
+             FenceImporter importer = new FenceImporter(in, format))
+        {
+            JSONObject fenceJS;
+
+            while((fenceJS = importer.next()) != null)
+            {
+                PERIMETER_ERROR fenceError = validateFenceShape(fenceJS);
+
+                if(fenceError == null && isActiveFence(fenceJS.optString("uid"))) {
+                    fenceError = PERIMETER_ERROR.ALREADY_FENCED;
+                }
+
+                if(fenceError == null)
+                {
+                    chunk.add(Fence.fromJSObject(fenceJS));
+                    chunkRows.add(row);
+                }
+                else
+                {
+                    rejected++;
+                    addImportError(errors, row, fenceJS.optString("uid", null), fenceError);
+                }
+
+                row++;
+
+                if(chunk.size() == IMPORT_CHUNK_SIZE)
+                {
+                    int added = addImportChunk(virtualFences, chunk, chunkRows, errors);
+                    imported += added;
+                    rejected += IMPORT_CHUNK_SIZE - added;
+                    notifyImportProgress(path, imported, rejected, importer.getBytesRead(), totalBytes);
+                }
+            }
+
+            int remaining = chunk.size();
+            int added = addImportChunk(virtualFences, chunk, chunkRows, errors);
+            imported += added;
+            rejected += remaining - added;
+            notifyImportProgress(path, imported, rejected, importer.getBytesRead(), totalBytes);
+        }
+        catch (IOException | IllegalStateException | SecurityException e)
+        {
+            // Chunks written before the failure stay in the virtual set and are still registered.
+            Log.e(PERIMETER_TAG, "Failed to import fences from " + path + " after " + row + " rows.", e);
+            call.reject(e.getLocalizedMessage(), PERIMETER_ERROR.NO_OR_INVALID_ARGS.name());
+
+            if(imported > 0) {
+                refreshVirtualFences(context);
+            }
+            return;
+        }
+
+        Log.d(PERIMETER_TAG, "Imported " + imported + " virtual fences from " + path + ", rejected " + rejected + ".");
+
+        JSObject result = new JSObject();
+        result.put("imported", imported);
+        result.put("rejected", rejected);
+        result.put("errors", errors);
+        resolveAfterRefresh(context, call, result);
+    }
+
+    private InputStream openImportFile(Context context, Uri uri, String path) throws FileNotFoundException
+    {
+        if(uri.getScheme() == null) {
+            return new FileInputStream(path);
+        }
+
+        InputStream in = context.getContentResolver().openInputStream(uri);
+
+        if(in == null) {
+            throw new FileNotFoundException(path);
+        }
+
+        return in;
+    }
+
+    /**
+     * Adds the chunk to the virtual set, reports the fences it turned down and empties it. Returns how many were added.
+     */
+    private int addImportChunk(VirtualFenceSet virtualFences, ArrayList<Fence> chunk, ArrayList<Integer> chunkRows, JSArray errors)
+    {
+        ArrayList<PERIMETER_ERROR> chunkErrors = virtualFences.addAll(chunk);
+        int added = 0;
+
+        for(int i = 0; i < chunkErrors.size(); i++)
+        {
+            if(chunkErrors.get(i) == null) {
+                added++;
+            }
+            else {
+                addImportError(errors, chunkRows.get(i), chunk.get(i).uid, chunkErrors.get(i));
+            }
+        }
+
+        chunk.clear();
+        chunkRows.clear();
+        virtualFences.save();
+        return added;
+    }
+
+    private void addImportError(JSArray errors, int row, @Nullable String fenceUID, PERIMETER_ERROR error)
+    {
+        if(errors.length() >= IMPORT_MAX_REPORTED_ERRORS) {
+            return;
+        }
+
+        JSObject errorJS = new JSObject();
+        errorJS.put("row", row);
+        errorJS.put("uid", fenceUID);
+        errorJS.put("error", error.name());
+        errors.put(errorJS);
+    }
+
+    private void notifyImportProgress(String path, int imported, int rejected, long bytesRead, long totalBytes)
+    {
+        JSObject progressJS = new JSObject();
+        progressJS.put("path", path);
+        progressJS.put("imported", imported);
+        progressJS.put("rejected", rejected);
+        progressJS.put("bytesRead", bytesRead);
+
+        if(totalBytes >= 0) {
+            progressJS.put("totalBytes", totalBytes);
+        }
+
+        notifyListeners("ImportProgress", progressJS);
+    }
+
+    @PluginMethod()
+    public void removeVirtualFences(PluginCall call)
+    {
+        if(!hasLocationPermissions())
+        {
+            reject(call, PERIMETER_ERROR.INCORRECT_PERMISSIONS);
+            return;
+        }
+        else if(!FenceRegistrar.get(getContext()).isInitialized())
+        {
+            reject(call, PERIMETER_ERROR.CLIENT_UNINITIALIZED);
+            return;
+        }
+        else if(call.getArray("fenceUIDs") == null)
+        {
+            reject(call, PERIMETER_ERROR.NO_OR_INVALID_ARGS);
+            return;
+        }
+
+        VirtualFenceSet virtualFences = VirtualFenceSet.get(getContext());
+        JSArray requestedUIDs = call.getArray("fenceUIDs");
+        ArrayList<JSObject> results = new ArrayList<>();
+
+        for(int i = 0; i < requestedUIDs.length(); i++)
+        {
+            String fenceUID = requestedUIDs.optString(i, null);
+            PERIMETER_ERROR removeError = fenceUID == null ? PERIMETER_ERROR.FENCE_NOT_FOUND : virtualFences.remove(fenceUID);
+            JSObject result = getFenceResult(fenceUID, removeError);
+            result.put("success", removeError == null);
+            results.add(result);
+        }
+
+        virtualFences.save();
+
+        JSObject batchResult = new JSObject();
+        batchResult.put("results", new JSArray(results));
+        resolveAfterRefresh(getContext(), call, batchResult);
+    }
+
+    @PluginMethod()
+    public void removeAllVirtualFences(PluginCall call)
+    {
+        if(!hasLocationPermissions())
+        {
+            reject(call, PERIMETER_ERROR.INCORRECT_PERMISSIONS);
+            return;
+        }
+        else if(!FenceRegistrar.get(getContext()).isInitialized())
+        {
+            reject(call, PERIMETER_ERROR.CLIENT_UNINITIALIZED);
+            return;
+        }
+
+        VirtualFenceSet virtualFences = VirtualFenceSet.get(getContext());
+        ArrayList<String> registeredUIDs = virtualFences.clear();
+
+        if(registeredUIDs == null)
+        {
+            reject(call, PERIMETER_ERROR.GENERIC_PLATFORM_ERROR);
+            return;
+        }
+
+        ArrayList<String> fencesToRemove = new ArrayList<>(registeredUIDs);
+        forgetFenceState(getContext(), registeredUIDs);
+        fencesToRemove.add(REFRESH_FENCE_UID);
+        long fingerprint = FenceState.get(getContext()).read().fingerprint();
+
+        FenceRegistrar.get(getContext()).getOperationQueue().submit(NO_FENCES, NO_FENCES, fencesToRemove, fingerprint, (failedUIDs, error) -> {
+            if(error != null) {
+                // The system may still hold them, so the next rotation removes them again.
+                ArrayList<String> remainingUIDs = new ArrayList<>(failedUIDs);
+                remainingUIDs.remove(REFRESH_FENCE_UID);
+                virtualFences.abandonClear(remainingUIDs);
+                call.reject(error.getLocalizedMessage(), PERIMETER_ERROR.GENERIC_PLATFORM_ERROR.name());
+                return;
+            }
+
+            call.resolve();
+            Log.d(PERIMETER_TAG, "Successfully removed all virtual fences.");
+        });
+    }
+
+    /**
+     * Resolves the call once the virtual set has been rotated onto the system, or rejects it if that failed.
+     */
+    private void resolveAfterRefresh(Context context, PluginCall call, JSObject result)
+    {
+        refreshVirtualFences(context).addOnCompleteListener(task -> {
+            if(task.isSuccessful()) {
+                call.resolve(result);
+            }
+            else {
+                call.reject(task.getException().getLocalizedMessage(), PERIMETER_ERROR.GENERIC_PLATFORM_ERROR.name());
+            }
+        });
+    }
+
+    /**
+     * Rotates the virtual set around its last center, or the device's location if it has none. The task completes
+     * once the system has confirmed the rotation. With no location known yet nothing is registered and it succeeds.
+     */
+    @SuppressLint("MissingPermission")
+    private Task<Void> refreshVirtualFences(Context context)
+    {
+        VirtualFenceSet virtualFences = VirtualFenceSet.get(context);
+        FenceRegistrar.get(context).scheduleExpiryCheck();
+
+        if(virtualFences.hasCenter())
+        {
+            return orUninitialized(FenceRegistrar.get(context).rotateVirtualFences(virtualFences.getCenterLat(), virtualFences.getCenterLng(), false));
+        }
+
+        FusedLocationProviderClient locationClient = LocationServices.getFusedLocationProviderClient(context);
+
+        return locationClient.getLastLocation()
+                .continueWithTask(task -> task.getResult() != null ?
+                        task :
+                        locationClient.getCurrentLocation(Priority.PRIORITY_BALANCED_POWER_ACCURACY, null))
+                .continueWithTask(task -> {
+                    if(!task.isSuccessful()) {
+                        FenceRegistrar.onVirtualRotationFailed(task.getException());
+                        return Tasks.forException(task.getException());
+                    }
+                    else if(task.getResult() == null) {
+                        Log.e(PERIMETER_TAG, "No location available to pick the nearest virtual fences.");
+                        return Tasks.forResult(null);
+                    }
+
+                    return orUninitialized(FenceRegistrar.get(context).rotateVirtualFences(task.getResult().getLatitude(), task.getResult().getLongitude(), false));
+                });
+    }
+
+    private static Task<Void> orUninitialized(@Nullable Task<Void> task)
+    {
+        return task != null ?
+                task :
+                Tasks.forException(new IllegalStateException(ERROR_MESSAGES.get(PERIMETER_ERROR.CLIENT_UNINITIALIZED.ordinal())));
+    }
+
+    @PluginMethod()
+    public void setTransitionDebounce(PluginCall call)
+    {
+        Integer debounceSeconds = call.getInt("seconds");
+
+        if(debounceSeconds == null || !isDelaySeconds(debounceSeconds))
+        {
+            reject(call, PERIMETER_ERROR.NO_OR_INVALID_ARGS);
+            return;
+        }
+
+        TransitionFilter.get(getContext()).setDefaultDebounceMillis(debounceSeconds * 1000L);
+        call.resolve();
+        Log.d(PERIMETER_TAG, "Transition debounce set to " + debounceSeconds + " seconds.");
+    }
+
+    /**
+     * Returns the active fences, optionally filtered by tag, bounding box or distance from a point and split into
+     * pages. The cursor returned with a page resumes after its last fence even if fences were added or removed since.
+     */
+    @PluginMethod()
+    public void getActiveFences(PluginCall call) {
+        FenceQuery query = new FenceQuery();
+        JSObject bounds = call.getObject("bounds");
+        JSObject near = call.getObject("near");
+        Integer pageSize = call.getInt("pageSize");
+        String cursorString = call.getString("cursor");
+        Set<String> fields = getRequestedFields(call);
+        long cursor = 0;
+
+        query.tag = call.getString("tag");
+
+        if(bounds != null)
+        {
+            if(!bounds.has("south") || !bounds.has("west") || !bounds.has("north") || !bounds.has("east"))
+            {
+                reject(call, PERIMETER_ERROR.NO_OR_INVALID_ARGS);
+                return;
+            }
+
+            query.hasBounds = true;
+            query.south = bounds.optDouble("south");
+            query.west = bounds.optDouble("west");
+            query.north = bounds.optDouble("north");
+            query.east = bounds.optDouble("east");
+
+            if(!(query.south <= query.north))
+            {
+                reject(call, PERIMETER_ERROR.NO_OR_INVALID_ARGS);
+                return;
+            }
+        }
+
+        if(near != null)
+        {
+            query.hasNear = true;
+            query.nearLat = near.optDouble("lat");
+            query.nearLng = near.optDouble("lng");
+            query.nearRadius = near.optDouble("radius");
+
+            if(Double.isNaN(query.nearLat) || Double.isNaN(query.nearLng) || !(query.nearRadius > 0))
+            {
+                reject(call, PERIMETER_ERROR.NO_OR_INVALID_ARGS);
+                return;
+            }
+        }
+
+        if(pageSize != null && pageSize <= 0)
+        {
+            reject(call, PERIMETER_ERROR.NO_OR_INVALID_ARGS);
+            return;
+        }
+
+        if(cursorString != null)
+        {
+            try {
+                cursor = Long.parseLong(cursorString);
+            }
+            catch (NumberFormatException e) {
+                reject(call, PERIMETER_ERROR.NO_OR_INVALID_ARGS);
+                return;
+            }
+        }
+
+        JSObject activeFenceDict = new JSObject();
+        FenceRegistry activeFences = FenceState.get(getContext()).read();
+
+        if(query.isEmpty() && pageSize == null && cursor == 0)
+        {
+            activeFenceDict.put("fences", toJSArray(activeFences.snapshot(), fields));
+            call.resolve(activeFenceDict);
+            return;
+        }
+
+        FenceQuery.Page page = activeFences.query(query, cursor, pageSize == null ? Integer.MAX_VALUE : pageSize);
+        activeFenceDict.put("fences", toJSArray(page.fences, fields));
+
+        if(page.nextCursor != 0) {
+            activeFenceDict.put("cursor", Long.toString(page.nextCursor));
+        }
+
+        call.resolve(activeFenceDict);
+    }
+
+    /**
+     * Returns the fences whose circle contains the point. Virtual fences are included when includeVirtual is set.
+     */
+    @PluginMethod()
+    public void queryFencesAt(PluginCall call)
+    {
+        Double lat = call.getDouble("lat");
+        Double lng = call.getDouble("lng");
+
+        if(!isValidPoint(lat, lng))
+        {
+            reject(call, PERIMETER_ERROR.NO_OR_INVALID_ARGS);
+            return;
+        }
+
+        JSObject result = new JSObject();
+        result.put("fences", toJSArray(findFencesAt(lat, lng, call.getBoolean("includeVirtual", false)), getRequestedFields(call)));
+        call.resolve(result);
+    }
+
+    /**
+     * Batch form of queryFencesAt. Results are returned in the same order as the points.
+     */
+    @PluginMethod()
+    public void queryFencesAtPoints(PluginCall call)
+    {
+        JSArray points = call.getArray("points");
+
+        if(points == null)
+        {
+            reject(call, PERIMETER_ERROR.NO_OR_INVALID_ARGS);
+            return;
+        }
+
+        boolean includeVirtual = call.getBoolean("includeVirtual", false);
+        Set<String> fields = getRequestedFields(call);
+        JSArray results = new JSArray();
+
+        for(int i = 0; i < points.length(); i++)
+        {
+            JSONObject point = points.optJSONObject(i);
+            Double lat = point == null || !point.has("lat") ? null : point.optDouble("lat");
+            Double lng = point == null || !point.has("lng") ? null : point.optDouble("lng");
+
+            if(!isValidPoint(lat, lng))
+            {
+                reject(call, PERIMETER_ERROR.NO_OR_INVALID_ARGS);
+                return;
+            }
+
+            JSObject result = new JSObject();
+            result.put("lat", lat);
+            result.put("lng", lng);
+            result.put("fences", toJSArray(findFencesAt(lat, lng, includeVirtual), fields));
+            results.put(result);
+        }
+
+        JSObject batchResult = new JSObject();
+        batchResult.put("results", results);
+        call.resolve(batchResult);
+    }
+
+    /**
+     * Payloads are not sent with events or fence listings. This reads them for the given uids from the active
+     * fences first, then the virtual catalog; uids with no stored payload are left out.
+     */
+    @PluginMethod()
+    public void getFencePayloads(PluginCall call)
+    {
+        JSArray requestedUIDs = call.getArray("fenceUIDs");
+
+        if(requestedUIDs == null)
+        {
+            reject(call, PERIMETER_ERROR.NO_OR_INVALID_ARGS);
+            return;
+        }
+
+        ArrayList<String> fenceUIDs = new ArrayList<>();
+
+        for(int i = 0; i < requestedUIDs.length(); i++)
+        {
+            String fenceUID = requestedUIDs.optString(i, null);
+
+            if(fenceUID != null) {
+                fenceUIDs.add(fenceUID);
+            }
+        }
+
+        HashMap<String, String> payloads;
+
+        try {
+            payloads = FenceStores.findPayloads(getContext(), fenceUIDs);
+        }
+        catch (IOException e) {
+            Log.e(PERIMETER_TAG, ERROR_MESSAGES.get(ANDROID_PLATFORM_EVENT.FAILED_RESTORING_FENCES.getValue()), e);
+            call.reject(e.getLocalizedMessage(), PERIMETER_ERROR.GENERIC_PLATFORM_ERROR.name());
+            return;
+        }
+
+        JSObject payloadsJS = new JSObject();
+
+        for(String fenceUID : fenceUIDs) {
+            if(payloads.containsKey(fenceUID)) {
+                payloadsJS.put(fenceUID, payloads.get(fenceUID));
+            }
+        }
+
+        JSObject result = new JSObject();
+        result.put("payloads", payloadsJS);
+        call.resolve(result);
+    }
+
+    /**
+     * Transitions recorded by the receiver whose triggering time falls within since and until, oldest first.
+     */
+    @PluginMethod()
+    public void getFenceHistory(PluginCall call)
+    {
+        long since = call.getLong("since", 0L);
+        long until = call.getLong("until", Long.MAX_VALUE);
+        String fenceUID = call.getString("uid");
+
+        if(since > until)
+        {
+            reject(call, PERIMETER_ERROR.NO_OR_INVALID_ARGS);
+            return;
+        }
+
+        List<FenceHistory.Entry> entries;
+
+        try {
+            entries = FenceHistory.get(getContext()).query(since, until, fenceUID);
+        }
+        catch (IOException e) {
+            Log.e(PERIMETER_TAG, ERROR_MESSAGES.get(ANDROID_PLATFORM_EVENT.FAILED_RECORDING_HISTORY.getValue()), e);
+            call.reject(e.getLocalizedMessage(), PERIMETER_ERROR.GENERIC_PLATFORM_ERROR.name());
+            return;
+        }
+
+        JSArray entriesJS = new JSArray();
+
+        for(FenceHistory.Entry entry : entries) {
+            JSObject entryJS = new JSObject();
+            entryJS.put("uid", entry.fenceUID);
+            entryJS.put("transitionType", entry.transitionType);
+            entryJS.put("time", entry.time);
+            entryJS.put("receivedAt", entry.receivedAt);
+
+            if(!Float.isNaN(entry.accuracy)) {
+                entryJS.put("accuracy", entry.accuracy);
+            }
+
+            entriesJS.put(entryJS);
+        }
+
+        JSObject result = new JSObject();
+        result.put("entries", entriesJS);
+        call.resolve(result);
+    }
+
+    private List<Fence> findFencesAt(double lat, double lng, boolean includeVirtual)
+    {
+        List<Fence> containing = FenceState.get(getContext()).read().findContaining(lat, lng);
+
+        if(!includeVirtual) {
+            return containing;
+        }
+
+        LinkedHashMap<String, Fence> fencesByUID = new LinkedHashMap<>();
+
+        for(Fence fence : containing) {
+            fencesByUID.put(fence.uid, fence);
+        }
+
+        for(Fence fence : VirtualFenceSet.get(getContext()).findContaining(lat, lng)) {
+            if(!fencesByUID.containsKey(fence.uid)) {
+                fencesByUID.put(fence.uid, fence);
+            }
+        }
+
+        return new ArrayList<>(fencesByUID.values());
+    }
+
+    private static boolean isValidPoint(@Nullable Double lat, @Nullable Double lng)
+    {
+        return lat != null && lng != null && lat >= -90 && lat <= 90 && lng >= -180 && lng <= 180;
+    }
+
+    @Nullable
+    private static Set<String> getRequestedFields(PluginCall call)
+    {
+        JSArray fieldsJS = call.getArray("fields");
+
+        if(fieldsJS == null) {
+            return null;
+        }
+
+        HashSet<String> fields = new HashSet<>();
+
+        for(int i = 0; i < fieldsJS.length(); i++) {
+            fields.add(fieldsJS.optString(i));
+        }
+
+        return fields;
+    }
+
+    private static JSArray toJSArray(List<Fence> fences)
+    {
+        return toJSArray(fences, null);
+    }
+
+    private static JSArray toJSArray(List<Fence> fences, @Nullable Set<String> fields)
+    {
+        JSArray fencesJS = new JSArray();
+
+        for(Fence fence : fences) {
+            fencesJS.put(fence.toJSObject(fields));
+        }
+
+        return fencesJS;
+    }
+
+    private void reject(PluginCall call, PERIMETER_ERROR error)
+    {
+        call.reject(ERROR_MESSAGES.get(error.ordinal()), error.name());
+    }
+
+    private JSObject getFenceResult(@Nullable String fenceUID, @Nullable PERIMETER_ERROR error)
+    {
+        JSObject result = new JSObject();
+        result.put("uid", fenceUID);
+        result.put("success", false);
+
+        if(error != null) {
+            result.put("error", error.name());
+        }
+
+        return result;
+    }
+
+    @Nullable
+    private PERIMETER_ERROR validateFence(FenceRegistry activeFences, Fence fence)
+    {
+        int availableSlots = ANDROID_FENCE_LIMIT - VirtualFenceSet.get(getContext()).getReservedSlots();
+
+        if(activeFences.size() >= availableSlots) {
+            return PERIMETER_ERROR.TOO_MANY_FENCES;
+        }
+        else if(activeFences.isAlreadyFenced(fence)) {
+            return PERIMETER_ERROR.ALREADY_FENCED;
+        }
+        // Both sets register under the same request ids, so a uid can only belong to one of them.
+        else if(VirtualFenceSet.get(getContext()).getFence(fence.uid) != null) {
+            return PERIMETER_ERROR.ALREADY_FENCED;
+        }
+
+        return null;
+    }
+
+    /**
+     * Virtual fences register under the same request ids as active ones, so they may not take an active fence's uid.
+     */
+    private boolean isActiveFence(String fenceUID)
+    {
+        return FenceState.get(getContext()).read().contains(fenceUID);
+    }
+
+    @Nullable
+    private PERIMETER_ERROR validateFenceShape(JSONObject fence)
+    {
+        boolean isPolygon = fence.has("polygon");
+
+        if(!fence.has("name") ||
+                !fence.has("uid") ||
+                !fence.has("payload") ||
+                (!isPolygon && (!fence.has("lat") || !fence.has("lng") || !fence.has("radius"))) ||
+                !fence.has("monitor"))
+        {
+            return PERIMETER_ERROR.INVALID_FENCE_OBJ;
+        }
+        // The refresh fence of the virtual set is registered under this uid.
+        else if(REFRESH_FENCE_UID.equals(fence.optString("uid"))) {
+            return PERIMETER_ERROR.INVALID_FENCE_OBJ;
+        }
+        else if(!isPolygon && !((fence.optInt("radius") >= MIN_FENCE_RADIUS) && (fence.optInt("radius") <= MAX_FENCE_RADIUS)))  {
+            return PERIMETER_ERROR.INVALID_FENCE_OBJ;
+        }
+        else if(isPolygon) {
+            double[] polygon = FencePolygons.fromJSArray(fence.optJSONArray("polygon"));
+
+            // Polygons are confirmed by entering and leaving them, dwell is not supported.
+            if(polygon == null || fence.optInt("monitor") == MONITOR_DWELL || FencePolygons.boundingCircle(polygon)[2] > MAX_FENCE_RADIUS) {
+                return PERIMETER_ERROR.INVALID_FENCE_OBJ;
+            }
+        }
+
+        if(FenceRegistrar.getConvertedTransitionType(fence.optInt("monitor")) == -1) {
+            return PERIMETER_ERROR.INVALID_FENCE_OBJ;
+        }
+        else if((fence.has("debounceSeconds") && !isDelaySeconds(fence.optLong("debounceSeconds", -1))) ||
+                (fence.has("responsivenessSeconds") && !isDelaySeconds(fence.optLong("responsivenessSeconds", -1))) ||
+                (fence.has("loiterDelaySeconds") && !isDelaySeconds(fence.optLong("loiterDelaySeconds", -1))) ||
+                (fence.has("expirationSeconds") && !isExpirationSeconds(fence.optLong("expirationSeconds", 0)))) {
+            return PERIMETER_ERROR.INVALID_FENCE_OBJ;
+        }
+        else if(fence.has("initialTrigger") && (fence.optInt("initialTrigger", -1) & ~INITIAL_TRIGGER_MASK) != 0) {
+            return PERIMETER_ERROR.INVALID_FENCE_OBJ;
+        }
+        else if(fence.has("tags")) {
+            JSONArray tags = fence.optJSONArray("tags");
+
+            if(tags == null) {
+                return PERIMETER_ERROR.INVALID_FENCE_OBJ;
+            }
+
+            for(int i = 0; i < tags.length(); i++) {
+                if(!(tags.opt(i) instanceof String)) {
+                    return PERIMETER_ERROR.INVALID_FENCE_OBJ;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean isDelaySeconds(long seconds) {
+        return seconds >= 0 && seconds <= MAX_FENCE_DELAY_SECONDS;
+    }
+
+    private static boolean isExpirationSeconds(long seconds) {
+        return seconds > 0 && seconds <= MAX_FENCE_EXPIRATION_SECONDS;
+    }
+
+    /**
+     * Registers the stored fences after a process start, unless the system already holds exactly these fences
+     * from earlier in the same boot. Runs on the event executor so the store is read off the main thread.
+     */
+    void checkForExistingFences(Context context) {
+        FenceRegistrar registrar = FenceRegistrar.get(context);
+        registrar.evictExpiredFences();
+
+        if(!registrar.isInitialized() || !registrar.loadExistingFences()) {
+            return;
+        }
+
+        FenceRegistry activeFences = FenceState.get(context).read();
+        List<Fence> fences = activeFences.snapshot();
+
+        if(RegistrationRecord.get(context).isCurrent(activeFences.fingerprint())) {
+            Log.d(PERIMETER_TAG, "Existing fences are still registered, skipping restore.");
+        }
+        else {
+            PerimeterMetrics.RESTORES.incrementAndGet();
+            addFencesToClient(context, fences, activeFences.fingerprint());
+        }
+
+        int eventCode = ANDROID_PLATFORM_EVENT.FOREGROUND_WITH_EXISTING_FENCES.getValue();
+        Log.d(PERIMETER_TAG, "Now loading existing fences from geofence store.");
+        PlatformEvent event = new PerimeterPlugin.PlatformEvent(eventCode, "", toJSArray(fences));
+        onPlatformEvent(event);
+    }
+
+    /**
+     * Drops the debounce and polygon state kept for fences that are no longer monitored.
+     */
+    static void forgetFenceState(Context context, Collection<String> fenceUIDs) {
+        TransitionFilter.get(context).forget(fenceUIDs);
+        PolygonTracker.get(context).forget(fenceUIDs);
+    }
+
+    static final List<Fence> NO_FENCES = new ArrayList<>();
+    static final List<String> NO_FENCE_UIDS = new ArrayList<>();
+
+    interface JournalWrite {
+        void write(FenceJournal journal, FenceJournal payloads) throws IOException;
+    }
+
+    /**
+     * Takes back part of a change the client failed to carry out. The change loaded the fence state, so the
+     * write cannot be refused here; if it is anyway it is only logged.
+     */
+    private void revertFenceState(FenceState.Mutation<Void> mutation) {
+        try {
+            FenceState.get(getContext()).update(mutation);
+        }
+        catch (IOException e) {
+            Log.e(PERIMETER_TAG, "Failed to revert the fence state: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Puts back fences the client failed to remove, since the system still monitors them. A fence added again
+     * under the same uid in the meantime is left as it is.
+     */
+    private void restoreRemovedFences(List<Fence> removedFences, Map<String, String> removedPayloads) {
+        revertFenceState(fences -> {
+            ArrayList<Fence> restoredFences = new ArrayList<>(removedFences.size());
+
+            for(Fence fence : removedFences) {
+                if(fences.add(fence)) {
+                    restoredFences.add(fence);
+                }
+            }
+
+            writeJournal(getContext(), fences, (journal, payloads) -> {
+                for(Fence fence : restoredFences) {
+                    FenceStores.put(journal, fence);
+
+                    if(removedPayloads.containsKey(fence.uid)) {
+                        FenceStores.putPayload(payloads, fence.uid, removedPayloads.get(fence.uid));
+                    }
+                }
+            });
+            return null;
+        });
+    }
+
+    /**
+     * Moves disk work out of a callback the main thread delivers. Once the plugin is torn down the executor no
+     * longer takes work, so it runs in place rather than being lost.
+     */
+    private void runOffMainThread(Runnable work) {
+        try {
+            eventExecutor.execute(work);
+        }
+        catch (RejectedExecutionException e) {
+            work.run();
+        }
+    }
+
+    /**
+     * Records a mutation of the fence state as it happens, so nothing is lost if the process is killed before onStop.
+     * Called from inside the FenceState write with the registry being published, which keeps journal order and any
+     * compaction snapshot in step with it.
+     */
+    static void writeJournal(Context context, FenceRegistry fences, JournalWrite write) {
+        try {
+            FenceJournal journal = FenceStores.active(context);
+            FenceJournal payloads = FenceStores.activePayloads(context);
+            write.write(journal, payloads);
+            FenceStores.compactIfNeeded(journal, payloads, fences);
+        }
+        catch (IOException e) {
+            int errorCode = ANDROID_PLATFORM_EVENT.FAILED_WRITING_FENCE_STORE.getValue();
+            String errorMessage = ERROR_MESSAGES.get(errorCode);
+            Log.e(PERIMETER_TAG, errorMessage, e);
+            PerimeterMetrics.ERRORS.incrementAndGet();
+            EventBus.getDefault().post(new PerimeterPlugin.PlatformEvent(errorCode, errorMessage, null));
+        }
+    }
+
+    @Override
+    protected void handleOnStart() {
+        super.handleOnStart();
+        Context context = getContext();
+        eventExecutor.execute(() -> checkForExistingFences(context));
+
+        FenceEventQueue eventQueue;
+
+        try {
+            eventQueue = FenceEventQueue.get(context);
+        }
+        catch (IOException e) {
+            int errorCode = ANDROID_PLATFORM_EVENT.FAILED_QUEUEING_FENCE_EVENT.getValue();
+            Log.e(PERIMETER_TAG, ERROR_MESSAGES.get(errorCode), e);
+            EventBus.getDefault().register(this);
+            onPlatformEvent(new PerimeterPlugin.PlatformEvent(errorCode, ERROR_MESSAGES.get(errorCode), null));
+            return;
+        }
+
+        List<FenceEventQueue.QueuedEvent> queuedEvents;
+
+        // The replay is queued before the lock is released, so it reaches JS ahead of any live event.
+        synchronized (eventQueue) {
+            EventBus.getDefault().register(this);
+            queuedEvents = eventQueue.drain();
+
+            if(!queuedEvents.isEmpty()) {
+                eventExecutor.execute(() -> replayQueuedEvents(context, queuedEvents));
+            }
+        }
+    }
+
+    /**
+     * Sends every fence event queued while the app was stopped to JS in a single FenceEventBatch.
+     * Fences removed since their event fired are reported by uid only. Runs on the event executor.
+     */
+    private void replayQueuedEvents(Context context, List<FenceEventQueue.QueuedEvent> queuedEvents) {
+        JSArray eventsJS = new JSArray();
+
+        for(FenceEventQueue.QueuedEvent queuedEvent : queuedEvents) {
+            JSArray fencesJS = new JSArray();
+
+            for(String fenceUID : queuedEvent.fenceUIDs) {
+                Fence fence = null;
+
+                try {
+                    fence = FenceStores.findFence(context, fenceUID);
+                }
+                catch (IOException e) {
+                    Log.e(PERIMETER_TAG, ERROR_MESSAGES.get(ANDROID_PLATFORM_EVENT.FAILED_PARSING_INTENT_EXTRAS.getValue()), e);
+                }
+
+                if(fence != null) {
+                    fencesJS.put(fence.toJSObject());
+                }
+                else {
+                    JSObject removedFence = new JSObject();
+                    removedFence.put("uid", fenceUID);
+                    fencesJS.put(removedFence);
+                }
+            }
+
+            JSObject fenceEventJS = new JSObject();
+            fenceEventJS.put("fences", fencesJS);
+            fenceEventJS.put("time", queuedEvent.time);
+            fenceEventJS.put("transitionType", queuedEvent.transitionType);
+            eventsJS.put(fenceEventJS);
+        }
+
+        JSObject batchJS = new JSObject();
+        batchJS.put("events", eventsJS);
+
+        Log.d(PERIMETER_TAG, "Replaying " + queuedEvents.size() + " fence events queued while the app was stopped.");
+        notifyListeners("FenceEventBatch", batchJS, true);
+    }
+
+    @Override
+    protected void handleOnStop() {
+        super.handleOnStop();
+        EventBus.getDefault().unregister(this);
+    }
+
+    @Override
+    protected void handleOnDestroy() {
+        super.handleOnDestroy();
+
+        // Events posted after this would find the executor shut down.
+        if(EventBus.getDefault().isRegistered(this)) {
+            EventBus.getDefault().unregister(this);
+        }
+
+        eventExecutor.execute(this::flushFenceEvents);
+        eventExecutor.shutdown();
+        importExecutor.shutdown();
+    }
+
+    @PluginMethod()
+    public void setEventBatchWindow(PluginCall call)
+    {
+        Integer windowMillis = call.getInt("milliseconds");
+
+        if(windowMillis == null || windowMillis < 0)
+        {
+            reject(call, PERIMETER_ERROR.NO_OR_INVALID_ARGS);
+            return;
+        }
+
+        eventBatchWindowMillis = windowMillis;
+        call.resolve();
+        Log.d(PERIMETER_TAG, "Fence event batch window set to " + windowMillis + " ms.");
+    }
+
+    @PluginMethod()
+    public void getMetrics(PluginCall call)
+    {
+        call.resolve(PerimeterMetrics.toJSObject());
+    }
+
+    @PluginMethod()
+    public void setMetricsInterval(PluginCall call)
+    {
+        Integer intervalSeconds = call.getInt("seconds");
+
+        if(intervalSeconds == null || intervalSeconds < 0)
+        {
+            reject(call, PERIMETER_ERROR.NO_OR_INVALID_ARGS);
+            return;
+        }
+
+        if(metricsTask != null) {
+            metricsTask.cancel(false);
+            metricsTask = null;
+        }
+
+        if(intervalSeconds > 0) {
+            metricsTask = eventExecutor.scheduleAtFixedRate(
+                    () -> notifyListeners("MetricsEvent", PerimeterMetrics.toJSObject()),
+                    intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+
+        call.resolve();
+        Log.d(PERIMETER_TAG, "Metrics interval set to " + intervalSeconds + " seconds.");
+    }
+
+    @Subscribe(threadMode = ThreadMode.POSTING)
+    public void onFenceEvent(FenceEvent event) {
+        runOffMainThread(() -> {
+            JSObject fenceEventJS = new JSObject();
+
+            fenceEventJS.put("fences", event.fences);
+            fenceEventJS.put("time", event.time);
+            fenceEventJS.put("transitionType", event.transitionType);
+
+            // Once the executor is shut down there is no window left to wait for.
+            if(eventBatchWindowMillis <= 0 || eventExecutor.isShutdown()) {
+                PerimeterMetrics.TRIGGER_TO_JS.record(System.currentTimeMillis() - event.time);
+                notifyListeners("FenceEvent", fenceEventJS, true);
+                return;
+            }
+
+            // The first event of a window schedules the flush, the rest ride along with it.
+            if(pendingFenceEvents.length() == 0) {
+                eventExecutor.schedule(this::flushFenceEvents, eventBatchWindowMillis, TimeUnit.MILLISECONDS);
+            }
+
+            pendingFenceEvents.put(fenceEventJS);
+        });
+    }
+
+    /**
+     * Sends every fence event collected in the current window as one FenceEventBatch. Runs on the event executor.
+     */
+    private void flushFenceEvents() {
+        if(pendingFenceEvents.length() == 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        for(int i = 0; i < pendingFenceEvents.length(); i++) {
+            PerimeterMetrics.TRIGGER_TO_JS.record(now - pendingFenceEvents.optJSONObject(i).optLong("time"));
+        }
 
-        fenceEventJS.put("fences", event.fences);
-        fenceEventJS.put("time", event.time);
-        fenceEventJS.put("transitionType", event.transitionType);
+        JSObject batchJS = new JSObject();
+        batchJS.put("events", pendingFenceEvents);
+        pendingFenceEvents = new JSArray();
 
-        notifyListeners("FenceEvent", fenceEventJS, true);
+        notifyListeners("FenceEventBatch", batchJS, true);
     }
 
-    @Subscribe(threadMode = ThreadMode.MAIN)
+    @Subscribe(threadMode = ThreadMode.POSTING)
     public void onPlatformEvent(PlatformEvent event) {
-        JSObject platformEventJS = new JSObject();
+        runOffMainThread(() -> {
+            JSObject platformEventJS = new JSObject();
 
-        platformEventJS.put("code", event.code);
-        platformEventJS.put("message", event.message);
-        platformEventJS.put("data", event.data);
+            platformEventJS.put("code", event.code);
+            platformEventJS.put("message", event.message);
+            platformEventJS.put("data", event.data);
 
-        notifyListeners("PlatformEvent", platformEventJS, true);
+            notifyListeners("PlatformEvent", platformEventJS, true);
+        });
     }
 }
\ No newline at end of file
@@ -4,55 +4,477 @@ package fyi.karm.perimeter;
 
 import static fyi.karm.perimeter.Constants.*;
 
+import android.annotation.SuppressLint;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.location.Location;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import com.getcapacitor.JSObject;
 import com.google.android.gms.common.GoogleApiAvailabilityLight;
 import com.google.android.gms.location.Geofence;
 import com.google.android.gms.location.GeofencingEvent;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
+import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.location.Priority;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 
 import org.greenrobot.eventbus.EventBus;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public abstract class PerimeterReceiver extends BroadcastReceiver {
 
+    // Shared by every receiver instance so bursts of broadcasts queue up behind a small, fixed number of threads.
+    // The queue is not capped because a rejected broadcast would be a lost fence event. Broadcasts that only start
+    // after their deadline still run in full, they just no longer wait on the geofencing client.
+    private static final ThreadPoolExecutor RECEIVER_EXECUTOR = new ThreadPoolExecutor(
+            RECEIVER_WORKER_THREADS,
+            RECEIVER_WORKER_THREADS,
+            30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>());
+
+    static {
+        RECEIVER_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Called on a background worker thread.
+     */
     public abstract void onFenceTriggered(Context context, ArrayList<JSObject> triggeredJSFences, long triggerTime, int transitionType);
+
+    /**
+     * Called on a background worker thread.
+     */
     public abstract void onError(Context context, int errorCode, String errorMessage);
 
     @Override
     public void onReceive(Context context, Intent intent) {
 
-        if(Objects.equals(intent.getAction(), Intent.ACTION_BOOT_COMPLETED)) {
-            handleBootCompleted(context);
+        // Boot restores and trigger reconciliation both touch disk, so they run off the main thread.
+        final PendingResult pendingResult = goAsync();
+        final long deadline = SystemClock.elapsedRealtime() + RECEIVER_DEADLINE_MILLISECONDS;
+        final Context appContext = context.getApplicationContext();
+
+        RECEIVER_EXECUTOR.execute(() -> {
+            try {
+                if(SystemClock.elapsedRealtime() >= deadline) {
+                    Log.w(PERIMETER_TAG, "Broadcast started past the receiver deadline, not waiting on the geofencing client.");
+                }
+
+                if(Objects.equals(intent.getAction(), Intent.ACTION_BOOT_COMPLETED)) {
+                    handleBootCompleted(appContext, deadline);
+                }
+                else if(Objects.equals(intent.getAction(), ACTION_SETTLE_TRANSITIONS)) {
+                    handleSettleTransitions(appContext);
+                }
+                else if(Objects.equals(intent.getAction(), ACTION_CHECK_POLYGONS)) {
+                    handlePolygonCheck(appContext, intent);
+                }
+                else if(Objects.equals(intent.getAction(), ACTION_RECHECK_POLYGONS)) {
+                    handlePolygonRecheck(appContext, deadline);
+                }
+                else if(Objects.equals(intent.getAction(), ACTION_EXPIRE_FENCES)) {
+                    handleExpireFences(appContext, deadline);
+                }
+                else {
+                    handleGeofence(appContext, intent, deadline);
+                }
+            }
+            finally {
+                pendingResult.finish();
+            }
+        });
+    }
+
+    private void handleBootCompleted(Context context, long deadline) {
+
+        FenceRegistrar registrar = FenceRegistrar.get(context);
+        boolean hasPermissions = FenceRegistrar.hasLocationPermissions(context);
+        if(hasPermissions) {
+            registrar.initialize();
+        }
+        // Alarms do not survive a reboot, and fences that expired while the device was off must not be restored.
+        awaitUntil(registrar.evictExpiredFences(), deadline);
+        if(hasPermissions) {
+            registrar.restoreFencesAtBoot(deadline);
+            awaitUntil(registrar.restoreVirtualFences(), deadline);
         }
         else {
-            handleGeofence(context, intent);
+            Log.d(PERIMETER_TAG, ERROR_MESSAGES.get(PERIMETER_ERROR.INCORRECT_PERMISSIONS.ordinal()));
         }
     }
 
-    private void handleBootCompleted(Context context) {
+    private void handleExpireFences(Context context, long deadline) {
 
-        PerimeterPlugin perimeter = new PerimeterPlugin();
-        perimeter.tryGetCustomReceiver(context);
-        perimeter.tryInitClient(context, true);
-        if(perimeter.hasLocationPermissionsAtBoot(context)) {
-            perimeter.checkForExistingFences(context);
+        FenceRegistrar registrar = FenceRegistrar.get(context);
+        if(FenceRegistrar.hasLocationPermissions(context)) {
+            registrar.initialize();
+        }
+        awaitUntil(registrar.evictExpiredFences(), deadline);
+    }
+
+    private void handleVirtualRefresh(Context context, Location location, long deadline) {
+
+        FenceRegistrar registrar = FenceRegistrar.get(context);
+        if(FenceRegistrar.hasLocationPermissions(context)) {
+            registrar.initialize();
+            Log.d(PERIMETER_TAG, "Left the virtual fence working set, rotating.");
+            awaitUntil(registrar.rotateVirtualFences(location.getLatitude(), location.getLongitude(), false), deadline);
         }
         else {
             Log.d(PERIMETER_TAG, ERROR_MESSAGES.get(PERIMETER_ERROR.INCORRECT_PERMISSIONS.ordinal()));
         }
     }
 
-    private void handleGeofence(Context context, Intent intent) {
+    /**
+     * Posts the event to the plugin, or queues it on disk when nothing is subscribed so it can be replayed
+     * the next time the plugin starts.
+     */
+    private void deliverFenceEvent(Context context, PerimeterPlugin.FenceEvent fenceEvent, ArrayList<String> fenceUIDs) {
+
+        EventBus eventBus = EventBus.getDefault();
+        FenceEventQueue eventQueue;
+
+        try {
+            eventQueue = FenceEventQueue.get(context);
+        }
+        catch (IOException e) {
+            Log.e(PERIMETER_TAG, ERROR_MESSAGES.get(ANDROID_PLATFORM_EVENT.FAILED_QUEUEING_FENCE_EVENT.getValue()), e);
+            eventBus.post(fenceEvent);
+            return;
+        }
+
+        // The plugin registers and drains under the same lock, so an event is either posted to a live
+        // subscriber or queued before the drain, never neither.
+        synchronized (eventQueue) {
+            if(eventBus.hasSubscriberForEvent(PerimeterPlugin.FenceEvent.class)) {
+                eventBus.post(fenceEvent);
+            }
+            else {
+                eventQueue.append(fenceEvent.time, fenceEvent.transitionType, fenceUIDs);
+                PerimeterMetrics.QUEUED.incrementAndGet();
+                Log.d(PERIMETER_TAG, "Queued fence event for " + fenceUIDs.size() + " fences until the app starts.");
+            }
+        }
+    }
+
+    private void awaitUntil(@Nullable Task<Void> task, long deadline) {
+
+        long remaining = deadline - SystemClock.elapsedRealtime();
+
+        if(task == null || remaining <= 0) {
+            return;
+        }
+
+        try {
+            Tasks.await(task, remaining, TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException | InterruptedException | TimeoutException e) {
+            Log.e(PERIMETER_TAG, "Gave up waiting for the geofencing client before the receiver deadline.", e);
+        }
+    }
+
+    private void handleSettleTransitions(Context context) {
+
+        TransitionFilter transitionFilter = TransitionFilter.get(context);
+
+        try {
+            reportSettled(context, transitionFilter.settle(System.currentTimeMillis()));
+        }
+        catch (IOException e) {
+            PerimeterPlugin.PlatformEvent parsingError = new PerimeterPlugin.PlatformEvent(ANDROID_PLATFORM_EVENT.FAILED_PARSING_INTENT_EXTRAS, null);
+            Log.e(PERIMETER_TAG, parsingError.message);
+            PerimeterMetrics.ERRORS.incrementAndGet();
+            EventBus.getDefault().post(parsingError);
+        }
+        finally {
+            scheduleSettle(context, transitionFilter.getNextSettleTime());
+        }
+    }
+
+    /**
+     * Handles a fix from the burst started by requestPolygonCheck. Checks still pending when the burst ends are
+     * handed over to the low power re-checks.
+     */
+    private void handlePolygonCheck(Context context, Intent intent) {
+
+        LocationResult locationResult = LocationResult.extractResult(intent);
+
+        // Location availability changes arrive on the same intent without a result.
+        if(locationResult == null || locationResult.getLastLocation() == null) {
+            return;
+        }
+
+        PolygonTracker polygonTracker = PolygonTracker.get(context);
+
+        try {
+            checkPolygons(context, locationResult.getLastLocation());
+        }
+        finally {
+            if(polygonTracker.consumeUpdate()) {
+                LocationServices.getFusedLocationProviderClient(context).removeLocationUpdates(getPolygonCheckIntent(context));
+                Log.d(PERIMETER_TAG, "Polygon check burst finished, stopped location updates.");
+                schedulePolygonRecheck(context);
+            }
+        }
+    }
+
+    /**
+     * Takes a single balanced power fix for checks the burst left unresolved, then backs off again if any remain.
+     */
+    @SuppressLint("MissingPermission")
+    private void handlePolygonRecheck(Context context, long deadline) {
+
+        long remaining = deadline - SystemClock.elapsedRealtime();
+
+        if(remaining > 0 && PolygonTracker.get(context).hasPendingChecks()) {
+            try {
+                Location location = Tasks.await(LocationServices.getFusedLocationProviderClient(context)
+                        .getCurrentLocation(Priority.PRIORITY_BALANCED_POWER_ACCURACY, null), remaining, TimeUnit.MILLISECONDS);
+
+                if(location != null) {
+                    checkPolygons(context, location);
+                }
+            }
+            catch (ExecutionException | InterruptedException | TimeoutException e) {
+                Log.e(PERIMETER_TAG, "Failed to get a location to re-check polygons.", e);
+            }
+        }
+
+        schedulePolygonRecheck(context);
+    }
+
+    /**
+     * Resolves pending polygon checks against a fix. A check ends once the device is inside its polygon, has left
+     * it, or is outside its circle, whose exit ends it anyway; otherwise it waits for the next fix.
+     */
+    private void checkPolygons(Context context, Location location) {
+
+        PolygonTracker polygonTracker = PolygonTracker.get(context);
+        TransitionFilter transitionFilter = TransitionFilter.get(context);
+
+        try {
+            for(int transitionType : new int[] { MONITOR_ENTER, MONITOR_EXIT }) {
+                ArrayList<JSObject> crossedJSObj = new ArrayList<>();
+                ArrayList<String> crossedUIDs = new ArrayList<>();
+
+                for(String fenceUID : polygonTracker.getPendingChecks()) {
+                    Fence fence = FenceStores.findFence(context, fenceUID);
+
+                    if(fence == null || !fence.isPolygon()) {
+                        polygonTracker.finishCheck(fenceUID);
+                        continue;
+                    }
+
+                    boolean isInside = fence.contains(location.getLatitude(), location.getLongitude());
+
+                    if(isInside != (transitionType == MONITOR_ENTER)) {
+                        continue;
+                    }
+                    else if(!isInside && !polygonTracker.isInside(fenceUID)) {
+                        // Inside the circle but not yet the polygon, wait for the next fix. Outside the circle the
+                        // system reports the exit, which ends the check.
+                        if(FenceGrid.distanceMeters(location.getLatitude(), location.getLongitude(), fence.lat, fence.lng) > fence.radius) {
+                            polygonTracker.finishCheck(fenceUID);
+                        }
+                        continue;
+                    }
+
+                    boolean crossed = polygonTracker.update(fenceUID, isInside);
+                    polygonTracker.finishCheck(fenceUID);
+
+                    if(crossed && isMonitored(fence, transitionType) &&
+                            transitionFilter.offer(fenceUID, transitionType, location.getTime(), getDebounceMillis(transitionFilter, fence))) {
+                        crossedJSObj.add(fence.toJSObject());
+                        crossedUIDs.add(fenceUID);
+                        Log.d(PERIMETER_TAG, "Polygon check confirmed transition for " + fenceUID + ".");
+                    }
+                }
+
+                if(!crossedJSObj.isEmpty()) {
+                    reportTransition(context, crossedJSObj, crossedUIDs, location.getTime(), transitionType, location.getAccuracy());
+                }
+            }
+        }
+        catch (IOException e) {
+            PerimeterPlugin.PlatformEvent parsingError = new PerimeterPlugin.PlatformEvent(ANDROID_PLATFORM_EVENT.FAILED_PARSING_INTENT_EXTRAS, null);
+            Log.e(PERIMETER_TAG, parsingError.message);
+            PerimeterMetrics.ERRORS.incrementAndGet();
+            EventBus.getDefault().post(parsingError);
+        }
+        finally {
+            scheduleSettle(context, transitionFilter.getNextSettleTime());
+        }
+    }
+
+    /**
+     * Wakes this receiver for the next re-check while any polygon check is pending, or cancels the wakeup. The
+     * alarm is inexact so the system can batch it with other work.
+     */
+    private void schedulePolygonRecheck(Context context) {
+
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        Intent intent = new Intent(context, getClass()).setAction(ACTION_RECHECK_POLYGONS);
+        PendingIntent recheckIntent = PendingIntent.getBroadcast(context, RECHECK_POLYGONS_REQUEST_CODE, intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+        PolygonTracker polygonTracker = PolygonTracker.get(context);
+
+        if(!polygonTracker.hasPendingChecks()) {
+            alarmManager.cancel(recheckIntent);
+        }
+        else {
+            alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + polygonTracker.nextRecheckDelay(), recheckIntent);
+        }
+    }
+
+    /**
+     * Starts, or restarts, the burst of high accuracy fixes used for precise polygon checks.
+     */
+    @SuppressLint("MissingPermission")
+    private void requestPolygonCheck(Context context) {
+
+        LocationRequest locationRequest = new LocationRequest.Builder(Priority.PRIORITY_HIGH_ACCURACY, POLYGON_CHECK_INTERVAL_MILLISECONDS)
+                .setMaxUpdates(POLYGON_CHECK_MAX_UPDATES)
+                .build();
+
+        LocationServices.getFusedLocationProviderClient(context).requestLocationUpdates(locationRequest, getPolygonCheckIntent(context));
+        Log.d(PERIMETER_TAG, "Requested location updates for polygon checks.");
+    }
+
+    private PendingIntent getPolygonCheckIntent(Context context) {
+
+        // The location result is added to the intent when it is sent, so it has to stay mutable.
+        Intent intent = new Intent(context, getClass()).setAction(ACTION_CHECK_POLYGONS);
+        int flags = Build.VERSION.SDK_INT >= Build.VERSION_CODES.S ?
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_MUTABLE :
+                PendingIntent.FLAG_UPDATE_CURRENT;
+        return PendingIntent.getBroadcast(context, CHECK_POLYGONS_REQUEST_CODE, intent, flags);
+    }
+
+    /**
+     * Polygon circles are always registered for both directions, so their monitor is applied here instead.
+     */
+    private static boolean isMonitored(Fence fence, int transitionType) {
+
+        return fence.monitor == transitionType || fence.monitor == MONITOR_BOTH;
+    }
+
+    /**
+     * Only fences that monitor both directions can flap, single direction fences are never debounced.
+     */
+    private long getDebounceMillis(TransitionFilter transitionFilter, Fence fence) {
+
+        if(fence.monitor != MONITOR_BOTH) {
+            return 0;
+        }
+
+        // Fences stored before the window was bounded may still hold larger values, so this clamps rather than overflows.
+        return fence.debounceSeconds != Fence.UNSET ?
+                Math.min(fence.debounceSeconds, MAX_FENCE_DELAY_SECONDS) * 1000L :
+                transitionFilter.getDefaultDebounceMillis();
+    }
+
+    /**
+     * Reports settled transitions as one event per transition type.
+     */
+    private void reportSettled(Context context, List<TransitionFilter.Settled> settled) throws IOException {
+
+        if(settled.isEmpty()) {
+            return;
+        }
+
+        for(int transitionType : new int[] { MONITOR_ENTER, MONITOR_EXIT }) {
+            ArrayList<JSObject> settledJSObj = new ArrayList<>();
+            ArrayList<String> settledUIDs = new ArrayList<>();
+            long settledTime = 0;
+
+            for(TransitionFilter.Settled transition : settled) {
+                if(transition.transitionType != transitionType) {
+                    continue;
+                }
+
+                Fence fence = FenceStores.findFence(context, transition.fenceUID);
+
+                if(fence != null) {
+                    settledJSObj.add(fence.toJSObject());
+                    settledUIDs.add(transition.fenceUID);
+                    settledTime = Math.max(settledTime, transition.time);
+                    Log.d(PERIMETER_TAG, "Transition settled for " + transition.fenceUID + ".");
+                }
+            }
+
+            if(!settledJSObj.isEmpty()) {
+                reportTransition(context, settledJSObj, settledUIDs, settledTime, transitionType, Float.NaN);
+            }
+        }
+    }
+
+    /**
+     * Accuracy is that of the fix behind the transition in meters, or NaN for transitions that settled later.
+     */
+    private void reportTransition(Context context, ArrayList<JSObject> fences, ArrayList<String> fenceUIDs, long time, int transitionType, float accuracy) {
+
+        recordHistory(context, fenceUIDs, time, transitionType, accuracy);
+        onFenceTriggered(context, fences, time, transitionType);
+        deliverFenceEvent(context, new PerimeterPlugin.FenceEvent(fences, time, transitionType), fenceUIDs);
+    }
+
+    private void recordHistory(Context context, ArrayList<String> fenceUIDs, long time, int transitionType, float accuracy) {
+
+        FenceHistory history;
+
+        try {
+            history = FenceHistory.get(context);
+        }
+        catch (IOException e) {
+            Log.e(PERIMETER_TAG, ERROR_MESSAGES.get(ANDROID_PLATFORM_EVENT.FAILED_RECORDING_HISTORY.getValue()), e);
+            return;
+        }
+
+        long receivedAt = System.currentTimeMillis();
+
+        for(int i = 0; i < fenceUIDs.size(); i++) {
+            if(!history.append(fenceUIDs.get(i), transitionType, time, receivedAt, accuracy)) {
+                Log.d(PERIMETER_TAG, "Fence uid is too long to record in the history, skipped " + fenceUIDs.get(i) + ".");
+            }
+        }
+    }
+
+    /**
+     * Wakes this receiver when the next held transition settles, or cancels the wakeup when nothing is pending.
+     */
+    private void scheduleSettle(Context context, long settleAt) {
+
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        Intent intent = new Intent(context, getClass()).setAction(ACTION_SETTLE_TRANSITIONS);
+        PendingIntent settleIntent = PendingIntent.getBroadcast(context, SETTLE_TRANSITIONS_REQUEST_CODE, intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+
+        if(settleAt == 0) {
+            alarmManager.cancel(settleIntent);
+        }
+        else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, settleAt, settleIntent);
+        }
+    }
+
+    private void handleGeofence(Context context, Intent intent, long deadline) {
 
         GeofencingEvent geofencingEvent = GeofencingEvent.fromIntent(intent);
 
@@ -61,53 +483,111 @@ public abstract class PerimeterReceiver extends BroadcastReceiver {
                 int errorCode = geofencingEvent.getErrorCode();
                 String errorMessage = GoogleApiAvailabilityLight.getInstance().getErrorString(errorCode);
                 Log.e(PERIMETER_TAG, ERROR_MESSAGES.get(PERIMETER_ERROR.GENERIC_PLATFORM_ERROR));
+                PerimeterMetrics.ERRORS.incrementAndGet();
+                // The system drops fences when it reports an error such as location being turned off.
+                RegistrationRecord.get(context).invalidate();
                 onError(context, errorCode, errorMessage);
                 EventBus.getDefault().post(new PerimeterPlugin.PlatformEvent(errorCode, errorMessage, null));
                 return;
             }
 
             List<Geofence> triggeredFences = geofencingEvent.getTriggeringGeofences();
-            JSONArray fencesActiveWhileAdded = null;
+            TransitionFilter transitionFilter = TransitionFilter.get(context);
+            PolygonTracker polygonTracker = PolygonTracker.get(context);
+            boolean needsPolygonCheck = false;
 
             try {
-                if(triggeredFences.size() > 0) {
-                    fencesActiveWhileAdded = new JSONArray(intent.getStringExtra(Constants.ALL_ACTIVE_FENCES_EXTRA));
+                // Anything that settled since the last broadcast is older than this one, report it first.
+                reportSettled(context, transitionFilter.settle(System.currentTimeMillis()));
 
+                if(triggeredFences.size() > 0) {
                     long triggeringTime = geofencingEvent.getTriggeringLocation().getTime();
+                    PerimeterMetrics.TRIGGER_TO_RECEIVER.record(System.currentTimeMillis() - triggeringTime);
                     int transitionType = geofencingEvent.getGeofenceTransition();
-                    ArrayList<JSObject> triggeredJSObj = new ArrayList<JSObject>();
+                    int convertedMonitor = switch (transitionType) {
+                        case Geofence.GEOFENCE_TRANSITION_ENTER -> MONITOR_ENTER;
+                        case Geofence.GEOFENCE_TRANSITION_EXIT -> MONITOR_EXIT;
+                        default -> MONITOR_DWELL;
+                    };
+                    ArrayList<JSObject> triggeredJSObj = new ArrayList<JSObject>(triggeredFences.size());
+                    ArrayList<String> triggeredUIDs = new ArrayList<>(triggeredFences.size());
 
-                    for(int i = 0; i < fencesActiveWhileAdded.length(); i++)
+                    // One keyed lookup per triggered fence, the rest of the stored fences are never parsed.
+                    for(Geofence triggeredFence : triggeredFences)
                     {
-                        for(int k = 0; k < triggeredFences.size(); k++)
+                        String fenceUID = triggeredFence.getRequestId();
+
+                        if(REFRESH_FENCE_UID.equals(fenceUID))
                         {
-                            JSObject jsonFence = JSObject.fromJSONObject((JSONObject) fencesActiveWhileAdded.get(i));
+                            if(transitionType == Geofence.GEOFENCE_TRANSITION_EXIT) {
+                                handleVirtualRefresh(context, geofencingEvent.getTriggeringLocation(), deadline);
+                            }
+                            continue;
+                        }
+
+                        Fence fence = FenceStores.findFence(context, fenceUID);
+                        PerimeterMetrics.TRIGGERS.incrementAndGet();
 
-                            if(jsonFence.getString("uid").equals(triggeredFences.get(k).getRequestId()))
-                            {
-                                triggeredJSObj.add(jsonFence);
-                                Log.d(PERIMETER_TAG, "Fence event was successfully triggered for " + triggeredFences.get(k).getRequestId() + ".");
+                        if(fence == null) {
+                            PerimeterMetrics.DROPPED.incrementAndGet();
+                            continue;
+                        }
+
+                        // Only the bounding circle is registered, so entering it starts a precise check and only
+                        // leaving the polygon by leaving the circle is reported from here.
+                        if(fence.isPolygon()) {
+                            if(transitionType != Geofence.GEOFENCE_TRANSITION_EXIT) {
+                                polygonTracker.startCheck(fenceUID);
+                                needsPolygonCheck = true;
+                                continue;
                             }
+
+                            polygonTracker.finishCheck(fenceUID);
+
+                            if(!polygonTracker.update(fenceUID, false) || !isMonitored(fence, MONITOR_EXIT)) {
+                                continue;
+                            }
+                        }
+
+                        if(transitionFilter.offer(fenceUID, convertedMonitor, triggeringTime, getDebounceMillis(transitionFilter, fence)))
+                        {
+                            // The host callback and the bridge still take JSObjects, convert only what fired.
+                            triggeredJSObj.add(fence.toJSObject());
+                            triggeredUIDs.add(fenceUID);
+                            Log.d(PERIMETER_TAG, "Fence event was successfully triggered for " + fenceUID + ".");
+                        }
+                        else {
+                            PerimeterMetrics.DEBOUNCED.incrementAndGet();
+                            Log.d(PERIMETER_TAG, "Holding back transition for " + fenceUID + " until it settles.");
                         }
                     }
 
-                    int convertedMonitor = transitionType == 1 ? MONITOR_ENTER : MONITOR_EXIT;
-                    onFenceTriggered(context, triggeredJSObj, triggeringTime, convertedMonitor);
-                    EventBus.getDefault().post(new PerimeterPlugin.FenceEvent(triggeredJSObj, triggeringTime, convertedMonitor));
+                    if(!triggeredJSObj.isEmpty()) {
+                        reportTransition(context, triggeredJSObj, triggeredUIDs, triggeringTime, convertedMonitor, geofencingEvent.getTriggeringLocation().getAccuracy());
+                    }
                 }
             }
-            catch (JSONException e)
+            catch (IOException e)
             {
                 PerimeterPlugin.PlatformEvent parsingError = new PerimeterPlugin.PlatformEvent(ANDROID_PLATFORM_EVENT.FAILED_PARSING_INTENT_EXTRAS, null);
                 Log.e(PERIMETER_TAG, parsingError.message);
+                PerimeterMetrics.ERRORS.incrementAndGet();
                 EventBus.getDefault().post(parsingError);
             }
+            finally {
+                scheduleSettle(context, transitionFilter.getNextSettleTime());
+            }
+
+            if(needsPolygonCheck) {
+                requestPolygonCheck(context);
+            }
         }
         else {
             int errorCode = PERIMETER_ERROR.GENERIC_PLATFORM_ERROR.ordinal();
             String errorMessage = ERROR_MESSAGES.get(errorCode);
 
             Log.e(PERIMETER_TAG, errorMessage);
+            PerimeterMetrics.ERRORS.incrementAndGet();
             onError(context, errorCode, errorMessage);
             EventBus.getDefault().post(new PerimeterPlugin.PlatformEvent(errorCode, errorMessage, null));
         }
@@ -0,0 +1,129 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import static fyi.karm.perimeter.Constants.*;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Tracks which polygon fences the device is inside and which are waiting on a precise check. The system only
+ * watches a polygon's bounding circle, so entering the circle starts a check and the polygon itself decides
+ * whether anything is reported. Checks share one burst of location updates that ends after
+ * POLYGON_CHECK_MAX_UPDATES fixes or as soon as nothing is pending. Checks still pending after the burst are
+ * retried with single low power fixes on a backoff, until the device reaches the polygon or leaves its circle.
+ *
+ * Leaving a polygon is only reported when the device leaves its circle, since nothing watches the polygon's own
+ * boundary once the device is inside it.
+ *
+ * State is kept in SharedPreferences because each broadcast may be handled by a fresh process.
+ */
+final class PolygonTracker {
+
+    private static final String INSIDE_KEY = "inside";
+    private static final String PENDING_KEY = "pending";
+    private static final String REMAINING_UPDATES_KEY = "remainingUpdates";
+    private static final String RECHECKS_KEY = "rechecks";
+
+    private static PolygonTracker instance;
+
+    private final SharedPreferences prefs;
+    private final HashSet<String> inside;
+    private final HashSet<String> pending;
+
+    private PolygonTracker(Context context) {
+        prefs = context.getSharedPreferences(POLYGON_TRACKER_PREFS, Context.MODE_PRIVATE);
+        inside = new HashSet<>(prefs.getStringSet(INSIDE_KEY, new HashSet<>()));
+        pending = new HashSet<>(prefs.getStringSet(PENDING_KEY, new HashSet<>()));
+    }
+
+    static synchronized PolygonTracker get(Context context) {
+        if(instance == null) {
+            instance = new PolygonTracker(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    synchronized boolean isInside(String fenceUID) {
+        return inside.contains(fenceUID);
+    }
+
+    /**
+     * Queues a precise check and restarts the burst budget and the re-check backoff. The caller requests the
+     * location updates.
+     */
+    synchronized void startCheck(String fenceUID) {
+        pending.add(fenceUID);
+        prefs.edit()
+                .putStringSet(PENDING_KEY, new HashSet<>(pending))
+                .putInt(REMAINING_UPDATES_KEY, POLYGON_CHECK_MAX_UPDATES)
+                .putInt(RECHECKS_KEY, 0)
+                .apply();
+    }
+
+    synchronized List<String> getPendingChecks() {
+        return new ArrayList<>(pending);
+    }
+
+    synchronized boolean hasPendingChecks() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Records the outcome of a check. Returns true if the device crossed the polygon boundary.
+     */
+    synchronized boolean update(String fenceUID, boolean isInside) {
+        boolean changed = isInside ? inside.add(fenceUID) : inside.remove(fenceUID);
+
+        if(changed) {
+            prefs.edit().putStringSet(INSIDE_KEY, new HashSet<>(inside)).apply();
+        }
+
+        return changed;
+    }
+
+    synchronized void finishCheck(String fenceUID) {
+        if(pending.remove(fenceUID)) {
+            prefs.edit().putStringSet(PENDING_KEY, new HashSet<>(pending)).apply();
+        }
+    }
+
+    /**
+     * Counts one fix against the burst. Returns true when the burst should stop. Unresolved checks stay
+     * pending for the re-checks.
+     */
+    synchronized boolean consumeUpdate() {
+        int remainingUpdates = Math.max(0, prefs.getInt(REMAINING_UPDATES_KEY, 0) - 1);
+        prefs.edit().putInt(REMAINING_UPDATES_KEY, remainingUpdates).apply();
+        return remainingUpdates == 0 || pending.isEmpty();
+    }
+
+    /**
+     * The delay before the next re-check. It doubles from POLYGON_RECHECK_BASE_MILLISECONDS with each one, up to
+     * POLYGON_RECHECK_MAX_MILLISECONDS.
+     */
+    synchronized long nextRecheckDelay() {
+        int rechecks = prefs.getInt(RECHECKS_KEY, 0);
+        prefs.edit().putInt(RECHECKS_KEY, rechecks + 1).apply();
+        return Math.min(POLYGON_RECHECK_BASE_MILLISECONDS << Math.min(rechecks, 16), POLYGON_RECHECK_MAX_MILLISECONDS);
+    }
+
+    synchronized void forget(Collection<String> fenceUIDs) {
+        boolean changed = inside.removeAll(fenceUIDs);
+        changed |= pending.removeAll(fenceUIDs);
+
+        if(changed) {
+            prefs.edit()
+                    .putStringSet(INSIDE_KEY, new HashSet<>(inside))
+                    .putStringSet(PENDING_KEY, new HashSet<>(pending))
+                    .apply();
+        }
+    }
+}
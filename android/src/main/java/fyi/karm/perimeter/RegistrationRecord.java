@@ -0,0 +1,80 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import static fyi.karm.perimeter.Constants.*;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.Settings;
+
+/**
+ * Remembers the fingerprint of the active fences the system last confirmed, and the boot it confirmed them in.
+ * The system keeps geofences for as long as the device stays up, so a process that starts in the same boot
+ * with the same fences has nothing to register again. Any failure clears the record, which forces the next
+ * start to register everything.
+ */
+final class RegistrationRecord {
+
+    private static final String FINGERPRINT_KEY = "fingerprint";
+    private static final String EPOCH_KEY = "epoch";
+
+    private static RegistrationRecord instance;
+
+    private final Context context;
+    private final SharedPreferences prefs;
+
+    private RegistrationRecord(Context context) {
+        this.context = context;
+        prefs = context.getSharedPreferences(REGISTRATION_PREFS, Context.MODE_PRIVATE);
+    }
+
+    static synchronized RegistrationRecord get(Context context) {
+        if(instance == null) {
+            instance = new RegistrationRecord(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    /**
+     * True if these exact fences were confirmed by the system since the device last booted.
+     */
+    synchronized boolean isCurrent(long fingerprint) {
+        return prefs.contains(FINGERPRINT_KEY) &&
+                prefs.getLong(FINGERPRINT_KEY, 0) == fingerprint &&
+                prefs.getLong(EPOCH_KEY, 0) == currentEpoch();
+    }
+
+    synchronized void record(long fingerprint) {
+        prefs.edit()
+                .putLong(FINGERPRINT_KEY, fingerprint)
+                .putLong(EPOCH_KEY, currentEpoch())
+                .apply();
+    }
+
+    synchronized void invalidate() {
+        if(prefs.contains(FINGERPRINT_KEY)) {
+            prefs.edit().remove(FINGERPRINT_KEY).remove(EPOCH_KEY).apply();
+        }
+    }
+
+    /**
+     * Identifies the current boot. The boot count is used where the platform has one; older releases fall back
+     * to the boot time to the minute, which at worst causes an extra registration after a clock change.
+     */
+    private long currentEpoch() {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            int bootCount = Settings.Global.getInt(context.getContentResolver(), Settings.Global.BOOT_COUNT, -1);
+
+            if(bootCount >= 0) {
+                return bootCount;
+            }
+        }
+
+        // Negated so it can never be mistaken for a boot count.
+        return -((System.currentTimeMillis() - SystemClock.elapsedRealtime()) / 60000);
+    }
+}
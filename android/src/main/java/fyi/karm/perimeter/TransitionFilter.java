@@ -0,0 +1,179 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import static fyi.karm.perimeter.Constants.*;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Debounces enter and exit transitions per fence. A transition is only reported once the device has stayed
+ * on the new side of the boundary for the fence's debounce window, and a transition back to the last reported
+ * state cancels it. Flapping along a boundary therefore reports nothing until the device settles.
+ *
+ * State is kept in SharedPreferences because each broadcast may be handled by a fresh process.
+ */
+final class TransitionFilter {
+
+    static final class Settled {
+        final String fenceUID;
+        final int transitionType;
+        final long time;
+
+        Settled(String fenceUID, int transitionType, long time) {
+            this.fenceUID = fenceUID;
+            this.transitionType = transitionType;
+            this.time = time;
+        }
+    }
+
+    private static final class BoundaryState {
+        int stableType;
+        int pendingType;
+        long pendingTime;
+        long settleAt;
+    }
+
+    private static final String DEFAULT_DEBOUNCE_KEY = "defaultDebounce";
+    private static final String STATE_PREFIX = "state.";
+
+    private static TransitionFilter instance;
+
+    private final SharedPreferences prefs;
+    private final HashMap<String, BoundaryState> states = new HashMap<>();
+
+    TransitionFilter(Context context) {
+        prefs = context.getSharedPreferences(TRANSITION_FILTER_PREFS, Context.MODE_PRIVATE);
+
+        for(Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if(entry.getKey().startsWith(STATE_PREFIX) && entry.getValue() instanceof String) {
+                String[] fields = ((String) entry.getValue()).split(",");
+
+                if(fields.length == 4) {
+                    BoundaryState state = new BoundaryState();
+                    state.stableType = Integer.parseInt(fields[0]);
+                    state.pendingType = Integer.parseInt(fields[1]);
+                    state.pendingTime = Long.parseLong(fields[2]);
+                    state.settleAt = Long.parseLong(fields[3]);
+                    states.put(entry.getKey().substring(STATE_PREFIX.length()), state);
+                }
+            }
+        }
+    }
+
+    static synchronized TransitionFilter get(Context context) {
+        if(instance == null) {
+            instance = new TransitionFilter(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    synchronized long getDefaultDebounceMillis() {
+        return prefs.getLong(DEFAULT_DEBOUNCE_KEY, 0);
+    }
+
+    synchronized void setDefaultDebounceMillis(long debounceMillis) {
+        prefs.edit().putLong(DEFAULT_DEBOUNCE_KEY, debounceMillis).apply();
+    }
+
+    /**
+     * Offers a raw transition. Returns true when it should be reported right away, false when it is held
+     * back until settle or dropped as a flap.
+     */
+    synchronized boolean offer(String fenceUID, int transitionType, long time, long debounceMillis) {
+        BoundaryState state = states.get(fenceUID);
+
+        if(state == null) {
+            state = new BoundaryState();
+            states.put(fenceUID, state);
+        }
+
+        if(debounceMillis <= 0) {
+            state.stableType = transitionType;
+            state.pendingType = 0;
+            persist(fenceUID, state);
+            return true;
+        }
+
+        if(transitionType == state.stableType) {
+            // Back where we last reported, whatever was pending was a flap.
+            state.pendingType = 0;
+        }
+        else if(transitionType != state.pendingType) {
+            state.pendingType = transitionType;
+            state.pendingTime = time;
+            // Saturates rather than wrapping into the past, which would settle the transition at once.
+            state.settleAt = debounceMillis > Long.MAX_VALUE - time ? Long.MAX_VALUE : time + debounceMillis;
+        }
+
+        persist(fenceUID, state);
+        return false;
+    }
+
+    /**
+     * Promotes every pending transition whose window has passed and returns them, oldest first.
+     */
+    synchronized List<Settled> settle(long now) {
+        ArrayList<Settled> settled = new ArrayList<>();
+        SharedPreferences.Editor editor = prefs.edit();
+
+        for(Map.Entry<String, BoundaryState> entry : states.entrySet()) {
+            BoundaryState state = entry.getValue();
+
+            if(state.pendingType != 0 && state.settleAt <= now) {
+                settled.add(new Settled(entry.getKey(), state.pendingType, state.pendingTime));
+                state.stableType = state.pendingType;
+                state.pendingType = 0;
+                editor.putString(STATE_PREFIX + entry.getKey(), encode(state));
+            }
+        }
+
+        editor.apply();
+        Collections.sort(settled, (a, b) -> Long.compare(a.time, b.time));
+        return settled;
+    }
+
+    /**
+     * The earliest time a pending transition settles, or 0 when nothing is pending.
+     */
+    synchronized long getNextSettleTime() {
+        long next = 0;
+
+        for(BoundaryState state : states.values()) {
+            if(state.pendingType != 0 && (next == 0 || state.settleAt < next)) {
+                next = state.settleAt;
+            }
+        }
+
+        return next;
+    }
+
+    synchronized void forget(Collection<String> fenceUIDs) {
+        SharedPreferences.Editor editor = prefs.edit();
+
+        for(String fenceUID : fenceUIDs) {
+            if(states.remove(fenceUID) != null) {
+                editor.remove(STATE_PREFIX + fenceUID);
+            }
+        }
+
+        editor.apply();
+    }
+
+    private void persist(String fenceUID, BoundaryState state) {
+        prefs.edit().putString(STATE_PREFIX + fenceUID, encode(state)).apply();
+    }
+
+    private static String encode(BoundaryState state) {
+        return state.stableType + "," + state.pendingType + "," + state.pendingTime + "," + state.settleAt;
+    }
+}
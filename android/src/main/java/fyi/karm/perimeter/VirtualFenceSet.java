@@ -0,0 +1,402 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import static fyi.karm.perimeter.Constants.*;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * A catalog of fences that can grow past the platform limit. Only the fences nearest to the device are
+ * registered with the system at any time; a refresh fence around that working set tells the receiver when to rotate it.
+ *
+ * A rotation is only planned here. The working set is committed once the system has confirmed it, and a rotation
+ * that fails part way marks the working set stale so the next one registers everything again.
+ */
+final class VirtualFenceSet {
+
+    static final class Rotation {
+        final ArrayList<Fence> fencesToAdd;
+        final ArrayList<String> fencesToRemove;
+        final HashSet<String> workingSet;
+        final int borrowedSlots;
+        final double lat;
+        final double lng;
+        final float refreshRadius;
+
+        Rotation(ArrayList<Fence> fencesToAdd, ArrayList<String> fencesToRemove, HashSet<String> workingSet,
+                 int borrowedSlots, double lat, double lng, float refreshRadius) {
+            this.fencesToAdd = fencesToAdd;
+            this.fencesToRemove = fencesToRemove;
+            this.workingSet = workingSet;
+            this.borrowedSlots = borrowedSlots;
+            this.lat = lat;
+            this.lng = lng;
+            this.refreshRadius = refreshRadius;
+        }
+
+        boolean needsRefreshFence() {
+            return refreshRadius > 0;
+        }
+    }
+
+    private static VirtualFenceSet instance;
+
+    private final FenceJournal catalogJournal;
+    private final FenceJournal payloadJournal;
+    private final SharedPreferences prefs;
+    private final FenceRegistry catalog;
+    private final HashSet<String> workingSet;
+
+    private VirtualFenceSet(Context context) {
+        catalogJournal = FenceStores.virtual(context);
+        payloadJournal = FenceStores.virtualPayloads(context);
+        prefs = context.getSharedPreferences(VIRTUAL_FENCES_PREFS, Context.MODE_PRIVATE);
+        catalog = new FenceRegistry(VIRTUAL_GRID_CELL_DEGREES);
+        workingSet = new HashSet<>(prefs.getStringSet("workingSet", new HashSet<>()));
+        load();
+    }
+
+    static synchronized VirtualFenceSet get(Context context) {
+        if(instance == null) {
+            instance = new VirtualFenceSet(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    synchronized int size() {
+        return catalog.size();
+    }
+
+    synchronized int getWorkingSetSize() {
+        return prefs.getInt("workingSetSize", DEFAULT_VIRTUAL_WORKING_SET_SIZE);
+    }
+
+    synchronized void setWorkingSetSize(int workingSetSize) {
+        prefs.edit().putInt("workingSetSize", workingSetSize).apply();
+    }
+
+    /**
+     * The number of system slots this set occupies, including the refresh fence and any slots borrowed past the
+     * working set size by the last rotation.
+     */
+    synchronized int getReservedSlots() {
+        return catalog.isEmpty() ? 0 : getWorkingSetSize() + prefs.getInt("borrowedSlots", 0) + 1;
+    }
+
+    @Nullable
+    synchronized Fence getFence(String fenceUID) {
+        return catalog.get(fenceUID);
+    }
+
+    synchronized List<Fence> findContaining(double lat, double lng) {
+        return catalog.findContaining(lat, lng);
+    }
+
+    synchronized boolean isRegistered(String fenceUID) {
+        return workingSet.contains(fenceUID);
+    }
+
+    /**
+     * Returns null once the fence is in the catalog and its journal. A fence that could not be written is left out.
+     */
+    @Nullable
+    synchronized PERIMETER_ERROR add(Fence fence) {
+        if(catalog.isAlreadyFenced(fence)) {
+            return PERIMETER_ERROR.ALREADY_FENCED;
+        }
+
+        try {
+            FenceStores.put(catalogJournal, payloadJournal, fence);
+        }
+        catch (IOException e) {
+            Log.e(PERIMETER_TAG, ERROR_MESSAGES.get(ANDROID_PLATFORM_EVENT.FAILED_WRITING_FENCE_STORE.getValue()), e);
+            return PERIMETER_ERROR.GENERIC_PLATFORM_ERROR;
+        }
+
+        catalog.add(fence.withoutPayload());
+        return null;
+    }
+
+    /**
+     * Adds a chunk of fences with one journal write. Returns an error per fence, null where it was added. If the
+     * write fails none of the chunk is added.
+     */
+    synchronized ArrayList<PERIMETER_ERROR> addAll(List<Fence> fences) {
+        ArrayList<PERIMETER_ERROR> errors = new ArrayList<>(fences.size());
+        ArrayList<Fence> added = new ArrayList<>(fences.size());
+
+        for(Fence fence : fences) {
+            if(catalog.isAlreadyFenced(fence)) {
+                errors.add(PERIMETER_ERROR.ALREADY_FENCED);
+                continue;
+            }
+
+            catalog.add(fence.withoutPayload());
+            added.add(fence);
+            errors.add(null);
+        }
+
+        try {
+            FenceStores.putAll(catalogJournal, payloadJournal, added);
+        }
+        catch (IOException e) {
+            Log.e(PERIMETER_TAG, ERROR_MESSAGES.get(ANDROID_PLATFORM_EVENT.FAILED_WRITING_FENCE_STORE.getValue()), e);
+
+            for(Fence fence : added) {
+                catalog.remove(fence.uid);
+            }
+
+            for(int i = 0; i < errors.size(); i++) {
+                if(errors.get(i) == null) {
+                    errors.set(i, PERIMETER_ERROR.GENERIC_PLATFORM_ERROR);
+                }
+            }
+        }
+
+        return errors;
+    }
+
+    /**
+     * Returns null once the fence is out of the catalog and its journal. A fence whose removal could not be
+     * written stays in the catalog.
+     */
+    @Nullable
+    synchronized PERIMETER_ERROR remove(String fenceUID) {
+        Fence fence = catalog.remove(fenceUID);
+
+        if(fence == null) {
+            return PERIMETER_ERROR.FENCE_NOT_FOUND;
+        }
+
+        try {
+            FenceStores.remove(catalogJournal, payloadJournal, fenceUID);
+        }
+        catch (IOException e) {
+            Log.e(PERIMETER_TAG, ERROR_MESSAGES.get(ANDROID_PLATFORM_EVENT.FAILED_WRITING_FENCE_STORE.getValue()), e);
+            catalog.add(fence);
+            return PERIMETER_ERROR.GENERIC_PLATFORM_ERROR;
+        }
+
+        return null;
+    }
+
+    synchronized long nextExpiry() {
+        return catalog.nextExpiry();
+    }
+
+    /**
+     * Removes every expired fence from the catalog and returns how many of them were in the working set.
+     * They stay in the working set until the next rotation, which removes them from the system and fills
+     * their slots with the next nearest fences.
+     */
+    synchronized int evictExpired(long now) {
+        int registered = 0;
+
+        for(Fence fence : catalog.findExpired(now)) {
+            // An expired fence must not be registered again, so it leaves the catalog even if its removal could not
+            // be written. The journal still holds it, and it is evicted again after the next load.
+            if(remove(fence.uid) != null) {
+                catalog.remove(fence.uid);
+            }
+
+            if(workingSet.contains(fence.uid)) {
+                registered++;
+            }
+        }
+
+        return registered;
+    }
+
+    /**
+     * Empties the catalog and returns the uids that were registered with the system, or null if the clear could not
+     * be written, in which case nothing changes. The clear is journaled like any other change, so a compaction that
+     * is still running cannot bring the old catalog back.
+     */
+    @Nullable
+    synchronized ArrayList<String> clear() {
+        try {
+            FenceStores.clear(catalogJournal, payloadJournal);
+        }
+        catch (IOException e) {
+            Log.e(PERIMETER_TAG, ERROR_MESSAGES.get(ANDROID_PLATFORM_EVENT.FAILED_WRITING_FENCE_STORE.getValue()), e);
+            return null;
+        }
+
+        ArrayList<String> registered = new ArrayList<>(workingSet);
+        catalog.clear();
+        workingSet.clear();
+        prefs.edit().clear().apply();
+        save();
+        return registered;
+    }
+
+    /**
+     * Puts back the uids a clear could not remove from the system. They stay marked stale, so the next rotation
+     * removes them.
+     */
+    synchronized void abandonClear(List<String> registeredUIDs) {
+        workingSet.addAll(registeredUIDs);
+        prefs.edit()
+                .putStringSet("workingSet", new HashSet<>(workingSet))
+                .putBoolean("isWorkingSetStale", true)
+                .apply();
+    }
+
+    synchronized boolean hasCenter() {
+        return prefs.contains("centerLat");
+    }
+
+    synchronized double getCenterLat() {
+        return Double.longBitsToDouble(prefs.getLong("centerLat", 0));
+    }
+
+    synchronized double getCenterLng() {
+        return Double.longBitsToDouble(prefs.getLong("centerLng", 0));
+    }
+
+    /**
+     * Picks the working set nearest to the point and diffs it against what is currently registered. Nothing is
+     * changed until the rotation is passed to commit or abandon. When restoring, or after a failed rotation, every
+     * fence in the new working set is returned for registration.
+     *
+     * Fences are ranked by how far their edge is from the point, and the refresh fence is sized to stop short of the
+     * nearest edge left out, so the device always exits it before it can reach an unregistered fence. If more edges
+     * than the working set holds lie within MIN_FENCE_RADIUS, up to spareSlots more fences are registered rather than
+     * growing the refresh fence past that edge.
+     */
+    synchronized Rotation rotate(double lat, double lng, boolean isRestore, int spareSlots) {
+        int workingSetSize = getWorkingSetSize();
+        boolean isResync = isRestore || prefs.getBoolean("isWorkingSetStale", false);
+        List<FenceGrid.Entry<Fence>> nearest = catalog.nearest(lat, lng, workingSetSize + 1);
+        ArrayList<Fence> ranked = new ArrayList<>();
+        int count;
+        float refreshRadius = 0;
+
+        if(nearest.size() <= workingSetSize) {
+            for(FenceGrid.Entry<Fence> entry : nearest) {
+                ranked.add(entry.value);
+            }
+
+            count = ranked.size();
+        }
+        else {
+            // The first workingSetSize + 1 centers all have an edge inside this bound, so the nearest edges are among
+            // the fences that reach into it.
+            FenceGrid.Entry<Fence> next = nearest.get(workingSetSize);
+            double bound = FenceGrid.distanceMeters(lat, lng, next.lat, next.lng);
+            List<Fence> candidates = catalog.findOverlapping(lat, lng, bound);
+            double[][] edges = new double[candidates.size()][];
+
+            for(int i = 0; i < edges.length; i++) {
+                Fence fence = candidates.get(i);
+                edges[i] = new double[] { FenceGrid.distanceMeters(lat, lng, fence.lat, fence.lng) - fence.radius, i };
+            }
+
+            Arrays.sort(edges, (a, b) -> Double.compare(a[0], b[0]));
+
+            for(double[] edge : edges) {
+                ranked.add(candidates.get((int) edge[1]));
+            }
+
+            int maxCount = Math.min(edges.length, workingSetSize + Math.max(0, spareSlots));
+            count = Math.min(workingSetSize, edges.length);
+
+            while(count < maxCount && edges[count][0] < MIN_FENCE_RADIUS) {
+                count++;
+            }
+
+            // Fences outside the candidates have their edge at least bound away.
+            double clearance = count < edges.length ? edges[count][0] : bound;
+
+            if(count < catalog.size()) {
+                if(clearance < MIN_FENCE_RADIUS) {
+                    // Too many fences crowd the device for the slots available, the closest ones left out may be missed.
+                    Log.w(PERIMETER_TAG, "More virtual fences are within " + MIN_FENCE_RADIUS + "m than the working set can hold, raise workingSetSize.");
+                }
+
+                refreshRadius = (float) Math.max(MIN_FENCE_RADIUS, clearance);
+            }
+        }
+
+        HashSet<String> nextWorkingSet = new HashSet<>();
+        ArrayList<Fence> fencesToAdd = new ArrayList<>();
+        ArrayList<String> fencesToRemove = new ArrayList<>();
+
+        for(Fence fence : ranked.subList(0, count)) {
+            nextWorkingSet.add(fence.uid);
+
+            if(isResync || !workingSet.contains(fence.uid)) {
+                fencesToAdd.add(fence);
+            }
+        }
+
+        for(String fenceUID : workingSet) {
+            if(!nextWorkingSet.contains(fenceUID)) {
+                fencesToRemove.add(fenceUID);
+            }
+        }
+
+        return new Rotation(fencesToAdd, fencesToRemove, nextWorkingSet, Math.max(0, count - workingSetSize), lat, lng, refreshRadius);
+    }
+
+    /**
+     * Records a rotation the system has confirmed.
+     */
+    synchronized void commit(Rotation rotation) {
+        workingSet.clear();
+        workingSet.addAll(rotation.workingSet);
+        prefs.edit()
+                .putStringSet("workingSet", new HashSet<>(workingSet))
+                .putInt("borrowedSlots", rotation.borrowedSlots)
+                .putLong("centerLat", Double.doubleToRawLongBits(rotation.lat))
+                .putLong("centerLng", Double.doubleToRawLongBits(rotation.lng))
+                .remove("isWorkingSetStale")
+                .apply();
+    }
+
+    /**
+     * Records a rotation that failed part way. Any fence from before or after it may still be registered, so all of
+     * them stay in the working set for the next rotation to remove, and that rotation registers its whole set again.
+     */
+    synchronized void abandon(Rotation rotation) {
+        workingSet.addAll(rotation.workingSet);
+        prefs.edit()
+                .putStringSet("workingSet", new HashSet<>(workingSet))
+                .putBoolean("isWorkingSetStale", true)
+                .apply();
+    }
+
+    /**
+     * Adds and removes are journaled as they happen; this only compacts the journal once it has grown.
+     */
+    synchronized void save() {
+        try {
+            FenceStores.compactIfNeeded(catalogJournal, payloadJournal, catalog);
+        }
+        catch (IOException e) {
+            Log.e(PERIMETER_TAG, ERROR_MESSAGES.get(ANDROID_PLATFORM_EVENT.FAILED_WRITING_FENCE_STORE.getValue()), e);
+        }
+    }
+
+    private void load() {
+        try {
+            FenceStores.replayInto(catalogJournal, catalog);
+            Log.d(PERIMETER_TAG, "Loaded " + catalog.size() + " virtual fences.");
+        }
+        catch (IOException e) {
+            Log.e(PERIMETER_TAG, ERROR_MESSAGES.get(ANDROID_PLATFORM_EVENT.FAILED_RESTORING_FENCES.getValue()), e);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import static fyi.karm.perimeter.Constants.*;
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class FenceHistoryTest {
+
+    private static final int CAPACITY = 4;
+    private static final int SLOT_BYTES = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private FenceHistory history;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(folder.getRoot(), HISTORY_FILE);
+        history = open();
+    }
+
+    @Test
+    public void wrapsAroundKeepingTheNewestEntries() {
+        for(int i = 0; i < 6; i++) {
+            assertTrue(history.append("f" + i, MONITOR_ENTER, i, i, 5));
+        }
+
+        assertEquals(CAPACITY, history.size());
+        assertUIDs(history.query(0, Long.MAX_VALUE, null), "f2", "f3", "f4", "f5");
+    }
+
+    @Test
+    public void queryForOneUidFollowsItsEntriesAcrossTheWrap() {
+        String[] uids = { "a", "b", "a", "b", "a", "b" };
+
+        for(int i = 0; i < uids.length; i++) {
+            history.append(uids[i], i % 4 < 2 ? MONITOR_ENTER : MONITOR_EXIT, i, i, 5);
+        }
+
+        List<FenceHistory.Entry> entries = history.query(0, Long.MAX_VALUE, "a");
+        assertUIDs(entries, "a", "a");
+        assertEquals(2, entries.get(0).time);
+        assertEquals(MONITOR_EXIT, entries.get(0).transitionType);
+        assertEquals(4, entries.get(1).time);
+        assertEquals(MONITOR_ENTER, entries.get(1).transitionType);
+        assertTrue(history.query(0, Long.MAX_VALUE, "c").isEmpty());
+    }
+
+    @Test
+    public void timeRangesAreInclusive() {
+        history.append("a", MONITOR_ENTER, 10, 11, 5);
+        history.append("b", MONITOR_ENTER, 20, 21, 5);
+        history.append("a", MONITOR_EXIT, 30, 31, Float.NaN);
+
+        assertUIDs(history.query(20, 30, null), "b", "a");
+        assertUIDs(history.query(10, 10, "a"), "a");
+        assertTrue(history.query(11, 19, null).isEmpty());
+        assertTrue(Float.isNaN(history.query(30, 30, "a").get(0).accuracy));
+    }
+
+    @Test
+    public void reopeningRebuildsTheUidLinks() throws IOException {
+        history.append("a", MONITOR_ENTER, 1, 1, 5);
+        history.append("b", MONITOR_ENTER, 2, 2, 5);
+
+        FenceHistory reopened = open();
+        reopened.append("a", MONITOR_EXIT, 3, 3, 5);
+
+        assertEquals(3, reopened.size());
+        assertUIDs(reopened.query(0, Long.MAX_VALUE, "a"), "a", "a");
+        assertUIDs(reopened.query(0, Long.MAX_VALUE, null), "a", "b", "a");
+    }
+
+    @Test
+    public void receiveTimesNeverGoBackwards() {
+        history.append("a", MONITOR_ENTER, 100, 100, 5);
+        history.append("b", MONITOR_ENTER, 50, 50, 5);
+
+        List<FenceHistory.Entry> entries = history.query(0, Long.MAX_VALUE, null);
+        assertEquals(100, entries.get(1).receivedAt);
+        assertUIDs(history.query(50, 50, "b"), "b");
+    }
+
+    @Test
+    public void uidsTooLongForASlotAreSkipped() {
+        int maxUIDChars = (SLOT_BYTES - 50) / 2;
+
+        assertTrue(history.append(new String(new char[maxUIDChars]).replace('\0', 'x'), MONITOR_ENTER, 1, 1, 5));
+        assertFalse(history.append(new String(new char[maxUIDChars + 1]).replace('\0', 'x'), MONITOR_ENTER, 2, 2, 5));
+        assertEquals(1, history.size());
+    }
+
+    private FenceHistory open() throws IOException {
+        return new FenceHistory(file, CAPACITY, SLOT_BYTES);
+    }
+
+    private static void assertUIDs(List<FenceHistory.Entry> entries, String... fenceUIDs) {
+        assertEquals(fenceUIDs.length, entries.size());
+
+        for(int i = 0; i < fenceUIDs.length; i++) {
+            assertEquals(fenceUIDs[i], entries.get(i).fenceUID);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import static fyi.karm.perimeter.Constants.*;
+import static org.junit.Assert.*;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+// GeoJSON is read with android.util.JsonReader, which is only a stub outside Robolectric.
+@RunWith(RobolectricTestRunner.class)
+public class FenceImporterTest {
+
+    @Test
+    public void quotedFieldsKeepCommasQuotesAndLineBreaks() throws Exception {
+        FenceImporter importer = csv("uid,name,payload,lat\n" +
+                "a,\"Main St, North\",\"line one\nline \"\"two\"\"\",1.5\n" +
+                "b,Plain,,2\n");
+
+        JSONObject first = importer.next();
+        assertEquals("a", first.getString("uid"));
+        assertEquals("Main St, North", first.getString("name"));
+        assertEquals("line one\nline \"two\"", first.getString("payload"));
+        assertEquals(1.5, first.getDouble("lat"), 0);
+
+        JSONObject second = importer.next();
+        assertEquals("b", second.getString("uid"));
+        assertEquals("", second.getString("payload"));
+        assertEquals(2, second.getInt("lat"));
+
+        assertNull(importer.next());
+    }
+
+    @Test
+    public void byteOrderMarkIsNotPartOfTheFirstColumn() throws Exception {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.write(new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF });
+        file.write("uid,lat\r\nx,2\r\n".getBytes(StandardCharsets.UTF_8));
+        FenceImporter importer = new FenceImporter(new ByteArrayInputStream(file.toByteArray()), FenceImporter.FORMAT_CSV);
+
+        JSONObject row = importer.next();
+        assertEquals("x", row.getString("uid"));
+        assertEquals(2, row.getInt("lat"));
+        assertNull(importer.next());
+        assertEquals(file.size(), importer.getBytesRead());
+    }
+
+    @Test
+    public void blankLinesAreSkippedAndDefaultsApplied() throws Exception {
+        FenceImporter importer = csv("uid,tags,monitor\n\nq,home;;work,\n\n");
+
+        JSONObject row = importer.next();
+        assertEquals("q", row.getString("name"));
+        assertEquals("", row.getString("payload"));
+        assertEquals(MONITOR_BOTH, row.getInt("monitor"));
+
+        JSONArray tags = row.getJSONArray("tags");
+        assertEquals(2, tags.length());
+        assertEquals("home", tags.getString(0));
+        assertEquals("work", tags.getString(1));
+
+        assertNull(importer.next());
+    }
+
+    @Test
+    public void unparseableNumbersAreLeftOut() throws Exception {
+        FenceImporter importer = csv("uid,lat,lng\nz,north,NaN\n");
+
+        JSONObject row = importer.next();
+        assertEquals("z", row.getString("uid"));
+        assertFalse(row.has("lat"));
+        assertFalse(row.has("lng"));
+    }
+
+    @Test
+    public void closedRingsDropTheRepeatedPosition() throws Exception {
+        FenceImporter importer = geoJSON("{\"type\":\"FeatureCollection\",\"features\":[" +
+                "{\"type\":\"Feature\",\"id\":\"p\",\"geometry\":{\"type\":\"Polygon\",\"coordinates\":" +
+                "[[[10,1],[11,1],[11,2],[10,1]]]}}]}");
+
+        JSONArray polygon = importer.next().getJSONArray("polygon");
+        assertEquals(3, polygon.length());
+        assertEquals(1, polygon.getJSONObject(0).getDouble("lat"), 0);
+        assertEquals(10, polygon.getJSONObject(0).getDouble("lng"), 0);
+        assertEquals(2, polygon.getJSONObject(2).getDouble("lat"), 0);
+        assertNull(importer.next());
+    }
+
+    @Test
+    public void openRingsKeepEveryPosition() throws Exception {
+        FenceImporter importer = geoJSON("{\"features\":[" +
+                "{\"id\":\"p\",\"geometry\":{\"type\":\"Polygon\",\"coordinates\":[[[10,1],[11,1],[11,2]]]}}]}");
+
+        assertEquals(3, importer.next().getJSONArray("polygon").length());
+    }
+
+    @Test
+    public void pointsTakeTheirPropertiesAndSkipOtherTopLevelKeys() throws Exception {
+        FenceImporter importer = geoJSON("{\"type\":\"FeatureCollection\",\"crs\":{\"type\":\"name\"},\"features\":[" +
+                "{\"type\":\"Feature\",\"id\":7,\"properties\":{\"radius\":250,\"payload\":{\"k\":1}}," +
+                "\"geometry\":{\"type\":\"Point\",\"coordinates\":[-73.5,40.25]}}," +
+                "\"not a feature\"]}");
+
+        JSONObject point = importer.next();
+        assertEquals("7", point.getString("uid"));
+        assertEquals("7", point.getString("name"));
+        assertEquals(40.25, point.getDouble("lat"), 0);
+        assertEquals(-73.5, point.getDouble("lng"), 0);
+        assertEquals(250, point.getInt("radius"));
+        assertEquals(1, new JSONObject(point.getString("payload")).getInt("k"));
+
+        // Still returned so it is counted as a rejected row.
+        JSONObject invalid = importer.next();
+        assertFalse(invalid.has("uid"));
+        assertNull(importer.next());
+    }
+
+    private static FenceImporter csv(String text) {
+        return new FenceImporter(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), FenceImporter.FORMAT_CSV);
+    }
+
+    private static FenceImporter geoJSON(String text) {
+        return new FenceImporter(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), FenceImporter.FORMAT_GEOJSON);
+    }
+}
@@ -0,0 +1,254 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class FenceJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private FenceJournal journal;
+
+    @Before
+    public void setUp() {
+        directory = folder.getRoot();
+        journal = open();
+    }
+
+    @Test
+    public void replaysStoreThenJournalInOrder() throws Exception {
+        journal.finishCompaction(journal.beginCompaction(), Arrays.asList("a", "b"), Arrays.asList(bytes("a0"), bytes("b0")));
+        journal.put("a", bytes("a1"));
+        journal.remove("b");
+        journal.put("c", bytes("c1"));
+
+        assertEquals(map("a", "a1", "c", "c1"), replay(open()));
+    }
+
+    @Test
+    public void clearHidesTheStore() throws Exception {
+        journal.finishCompaction(journal.beginCompaction(), Collections.singletonList("a"), Collections.singletonList(bytes("a0")));
+        journal.clear();
+        journal.put("b", bytes("b1"));
+
+        assertNull(journal.lookup("a"));
+        assertEquals("b1", string(journal.lookup("b")));
+        assertNull(open().lookup("a"));
+        assertEquals(map("b", "b1"), replay(open()));
+    }
+
+    @Test
+    public void aClearDuringCompactionIsNotUndone() throws Exception {
+        journal.put("a", bytes("a1"));
+        int generation = journal.beginCompaction();
+        journal.clear();
+        journal.put("b", bytes("b1"));
+
+        // The snapshot was taken before the clear and lands after it.
+        journal.finishCompaction(generation, Collections.singletonList("a"), Collections.singletonList(bytes("a1")));
+
+        assertNull(journal.lookup("a"));
+        assertEquals(map("b", "b1"), replay(open()));
+    }
+
+    @Test
+    public void lookupsSeeAppendsAfterTheIndexIsBuilt() throws Exception {
+        journal.put("a", bytes("a1"));
+        assertEquals("a1", string(journal.lookup("a")));
+
+        journal.put("a", bytes("a2"));
+        journal.putAll(Arrays.asList("b", "c"), Arrays.asList(bytes("b1"), bytes("c1")));
+        journal.remove("c");
+
+        HashMap<String, byte[]> found = journal.lookupAll(Arrays.asList("a", "b", "c", "d"));
+        assertEquals(2, found.size());
+        assertEquals("a2", string(found.get("a")));
+        assertEquals("b1", string(found.get("b")));
+    }
+
+    @Test
+    public void aNewProcessIndexesTheJournalOnFirstLookup() throws Exception {
+        journal.putAll(Arrays.asList("a", "b"), Arrays.asList(bytes("a1"), bytes("b1")));
+        journal.remove("a");
+
+        FenceJournal reopened = open();
+        assertNull(reopened.lookup("a"));
+        assertEquals("b1", string(reopened.lookup("b")));
+    }
+
+    @Test
+    public void lookupsSurviveCompaction() throws Exception {
+        journal.put("a", bytes("a1"));
+        journal.put("b", bytes("b1"));
+        assertEquals("a1", string(journal.lookup("a")));
+
+        int generation = journal.beginCompaction();
+        journal.put("b", bytes("b2"));
+        journal.finishCompaction(generation, Arrays.asList("a", "b"), Arrays.asList(bytes("a1"), bytes("b1")));
+
+        assertEquals("a1", string(journal.lookup("a")));
+        assertEquals("b2", string(journal.lookup("b")));
+        assertEquals(map("a", "a1", "b", "b2"), replay(open()));
+    }
+
+    @Test
+    public void aTornTailIsDroppedAndTruncated() throws Exception {
+        journal.put("a", bytes("a1"));
+        journal.put("b", bytes("b1"));
+        File file = journalFile();
+        long intactLength = file.length();
+
+        journal.put("c", bytes("c1"));
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(file.length() - 3);
+        }
+
+        FenceJournal reopened = open();
+        assertEquals(map("a", "a1", "b", "b1"), replay(reopened));
+        assertEquals(intactLength, file.length());
+
+        // Appends after recovery must not be stranded behind the torn record.
+        reopened.put("d", bytes("d1"));
+        assertEquals(map("a", "a1", "b", "b1", "d", "d1"), replay(open()));
+    }
+
+    @Test
+    public void aCorruptRecordEndsTheReplay() throws Exception {
+        journal.put("a", bytes("a1"));
+        long intactLength = journalFile().length();
+        journal.put("b", bytes("b1"));
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(journalFile(), "rw")) {
+            randomAccessFile.seek(randomAccessFile.length() - 1);
+            randomAccessFile.write('x');
+        }
+
+        FenceJournal reopened = open();
+        assertNull(reopened.lookup("b"));
+        assertEquals("a1", string(reopened.lookup("a")));
+        assertEquals(intactLength, journalFile().length());
+    }
+
+    @Test
+    public void aBulkLoadIsCompacted() throws Exception {
+        ArrayList<String> fenceUIDs = new ArrayList<>();
+        ArrayList<byte[]> bodies = new ArrayList<>();
+
+        for(int i = 0; i < 1000; i++) {
+            fenceUIDs.add("fence" + i);
+            bodies.add(bytes("body" + i));
+        }
+
+        journal.putAll(fenceUIDs, bodies);
+        assertTrue(journal.needsCompaction(fenceUIDs.size()));
+
+        journal.finishCompaction(journal.beginCompaction(), fenceUIDs, bodies);
+        assertFalse(journal.needsCompaction(fenceUIDs.size()));
+        assertEquals("body500", string(open().lookup("fence500")));
+    }
+
+    @Test
+    public void compactionStreamsRecordsReadThroughTheJournal() throws Exception {
+        byte[] large = new byte[64 * 1024];
+        ArrayList<String> fenceUIDs = new ArrayList<>();
+
+        for(int i = 0; i < 32; i++) {
+            large[0] = (byte) i;
+            fenceUIDs.add("fence" + i);
+            journal.put("fence" + i, large);
+        }
+
+        File records = new File(directory, "fences.bin.records");
+        long[] written = new long[1];
+
+        journal.finishCompaction(journal.beginCompaction(), writer -> {
+            for(String fenceUID : fenceUIDs) {
+                // Every record handed over so far is already on disk rather than held until the end.
+                assertTrue(records.length() >= written[0]);
+
+                byte[] body = journal.lookup(fenceUID);
+                writer.write(fenceUID, body);
+                written[0] += 2 + fenceUID.length() + 4 + body.length;
+            }
+        });
+
+        assertFalse(records.exists());
+        FenceJournal reopened = open();
+        assertEquals(31, reopened.lookup("fence31")[0]);
+        assertEquals(large.length, reopened.getStore().read("fence7").length);
+        assertEquals(fenceUIDs.size(), reopened.getStore().uids().size());
+    }
+
+    private FenceJournal open() {
+        return new FenceJournal(new FenceStore(new File(directory, "fences.bin")), directory, "fences");
+    }
+
+    private File journalFile() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("fences.journal."));
+        assertNotNull(files);
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    private static Map<String, String> replay(FenceJournal journal) throws IOException {
+        LinkedHashMap<String, String> fences = new LinkedHashMap<>();
+
+        journal.replay(new FenceJournal.Replay() {
+            @Override
+            public void onPut(String fenceUID, byte[] body) {
+                fences.put(fenceUID, string(body));
+            }
+
+            @Override
+            public void onRemove(String fenceUID) {
+                fences.remove(fenceUID);
+            }
+
+            @Override
+            public void onClear() {
+                fences.clear();
+            }
+        });
+
+        return new HashMap<>(fences);
+    }
+
+    private static Map<String, String> map(String... keysAndValues) {
+        HashMap<String, String> map = new HashMap<>();
+
+        for(int i = 0; i < keysAndValues.length; i += 2) {
+            map.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+
+        return map;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,276 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import static fyi.karm.perimeter.Constants.*;
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.gms.common.api.ApiException;
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.location.GeofenceStatusCodes;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The queue posts to the main looper and reads SystemClock, both of which Robolectric drives.
+@RunWith(RobolectricTestRunner.class)
+public class FenceOperationQueueTest {
+
+    private FakeClient client;
+    private FenceOperationQueue queue;
+    private final ArrayList<Boolean> settles = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        client = new FakeClient();
+        queue = new FenceOperationQueue(client, (fingerprint, hasFailures) -> settles.add(hasFailures));
+    }
+
+    @Test
+    public void removeBeforeFlushCancelsTheAdd() {
+        Result added = new Result();
+        Result removed = new Result();
+
+        queue.submit(fences("a"), empty(), empty(), 1, added);
+        queue.submit(empty(), empty(), uids("a"), 0, removed);
+        idle(OPERATION_COALESCE_MILLISECONDS);
+
+        assertTrue(client.calls.isEmpty());
+        assertEquals(1, added.calls);
+        assertEquals(1, removed.calls);
+        assertTrue(added.failedUIDs.isEmpty());
+        assertTrue(removed.failedUIDs.isEmpty());
+        assertEquals(Collections.singletonList(false), settles);
+    }
+
+    @Test
+    public void removeOfAnUpdatedFenceIsSent() {
+        Result result = new Result();
+
+        queue.submit(empty(), fences("a"), empty(), 1, result);
+        queue.submit(empty(), empty(), uids("a"), 0, result);
+        idle(OPERATION_COALESCE_MILLISECONDS);
+
+        assertEquals(Collections.singletonList("remove a"), client.calls);
+    }
+
+    @Test
+    public void readdingAnInFlightUIDWaitsAndIsNotCancelled() {
+        Result first = new Result();
+        Result second = new Result();
+
+        queue.submit(fences("a"), empty(), empty(), 1, first);
+        idle(OPERATION_COALESCE_MILLISECONDS);
+        assertEquals(Collections.singletonList("add a"), client.calls);
+
+        // The first add may already have landed, so this pair must reach the system as a remove.
+        queue.submit(fences("a"), empty(), empty(), 2, second);
+        queue.submit(empty(), empty(), uids("a"), 0, second);
+        idle(OPERATION_COALESCE_MILLISECONDS);
+        assertEquals(1, client.calls.size());
+
+        client.succeed(0);
+        idle(0);
+        assertEquals(Arrays.asList("add a", "remove a"), client.calls);
+        assertEquals(1, first.calls);
+        assertEquals(0, second.calls);
+
+        client.succeed(1);
+        idle(0);
+        assertEquals(1, second.calls);
+        assertTrue(second.failedUIDs.isEmpty());
+    }
+
+    @Test
+    public void transientFailuresAreRetriedWithBackoff() {
+        Result result = new Result();
+
+        queue.submit(fences("a"), empty(), empty(), 1, result);
+        idle(OPERATION_COALESCE_MILLISECONDS);
+        client.fail(0, CommonStatusCodes.NETWORK_ERROR);
+        idle(0);
+
+        idle(OPERATION_RETRY_BASE_MILLISECONDS - 1);
+        assertEquals(1, client.calls.size());
+        idle(1);
+        assertEquals(2, client.calls.size());
+
+        client.fail(1, GeofenceStatusCodes.GEOFENCE_REQUEST_TOO_FREQUENT);
+        idle(0);
+        idle(2 * OPERATION_RETRY_BASE_MILLISECONDS - 1);
+        assertEquals(2, client.calls.size());
+        idle(1);
+        assertEquals(3, client.calls.size());
+        assertEquals(0, result.calls);
+
+        client.succeed(2);
+        idle(0);
+        assertEquals(1, result.calls);
+        assertTrue(result.failedUIDs.isEmpty());
+        assertEquals(Collections.singletonList(false), settles);
+    }
+
+    @Test
+    public void retriesStopAfterTheLastAttempt() {
+        Result result = new Result();
+
+        queue.submit(fences("a"), empty(), empty(), 1, result);
+        idle(OPERATION_COALESCE_MILLISECONDS);
+
+        for(int attempt = 0; attempt < OPERATION_MAX_ATTEMPTS; attempt++) {
+            assertEquals(attempt + 1, client.calls.size());
+            client.fail(attempt, CommonStatusCodes.TIMEOUT);
+            idle(OPERATION_RETRY_MAX_MILLISECONDS);
+        }
+
+        assertEquals(OPERATION_MAX_ATTEMPTS, client.calls.size());
+        assertEquals(1, result.calls);
+        assertEquals(uids("a"), result.failedUIDs);
+        assertTrue(result.error instanceof ApiException);
+        assertEquals(Collections.singletonList(true), settles);
+    }
+
+    @Test
+    public void permanentFailuresOnlyFailTheirOwnCall() {
+        Result result = new Result();
+        Fence exitOnly = new Fence("b", "b", null, 0, 1, 1, 100, MONITOR_EXIT, Fence.UNSET, 0, Fence.UNSET,
+                Fence.UNSET, Fence.UNSET, 0, null, new String[0], null);
+
+        queue.submit(Arrays.asList(fence("a"), exitOnly), empty(), empty(), 1, result);
+        idle(OPERATION_COALESCE_MILLISECONDS);
+        assertEquals(Arrays.asList("add a", "add b"), client.calls);
+
+        client.fail(0, GeofenceStatusCodes.GEOFENCE_NOT_AVAILABLE);
+        client.succeed(1);
+        idle(OPERATION_RETRY_MAX_MILLISECONDS);
+
+        assertEquals(2, client.calls.size());
+        assertEquals(1, result.calls);
+        assertEquals(uids("a"), result.failedUIDs);
+        assertEquals(Collections.singletonList(true), settles);
+    }
+
+    @Test
+    public void submissionCompletesOnceEveryCallHasLanded() {
+        Result result = new Result();
+
+        queue.submit(fences("a", "b"), empty(), uids("c"), 1, result);
+        idle(OPERATION_COALESCE_MILLISECONDS);
+        assertEquals(Arrays.asList("remove c", "add a,b"), client.calls);
+
+        client.succeed(1);
+        idle(0);
+        assertEquals(0, result.calls);
+        assertTrue(settles.isEmpty());
+
+        client.succeed(0);
+        idle(0);
+        assertEquals(1, result.calls);
+        assertTrue(result.failedUIDs.isEmpty());
+        assertEquals(Collections.singletonList(false), settles);
+    }
+
+    @Test
+    public void emptySubmissionCompletesRightAway() {
+        Result result = new Result();
+
+        queue.submit(empty(), empty(), empty(), 7, result);
+        idle(0);
+
+        assertEquals(1, result.calls);
+        assertTrue(client.calls.isEmpty());
+        assertEquals(Collections.singletonList(false), settles);
+    }
+
+    private static void idle(long millis) {
+        shadowOf(Looper.getMainLooper()).idleFor(millis, TimeUnit.MILLISECONDS);
+    }
+
+    private static Fence fence(String uid) {
+        return new Fence(uid, uid, null, 0, 0, 0, 100, MONITOR_BOTH, Fence.UNSET, 0, Fence.UNSET, Fence.UNSET,
+                Fence.UNSET, Fence.UNSET, null, new String[0], null);
+    }
+
+    private static List<Fence> fences(String... uids) {
+        ArrayList<Fence> fences = new ArrayList<>();
+
+        for(String uid : uids) {
+            fences.add(fence(uid));
+        }
+
+        return fences;
+    }
+
+    private static List<String> uids(String... uids) {
+        return Arrays.asList(uids);
+    }
+
+    private static <T> List<T> empty() {
+        return Collections.emptyList();
+    }
+
+    private static final class FakeClient implements FenceOperationQueue.Client {
+        final ArrayList<String> calls = new ArrayList<>();
+        final ArrayList<TaskCompletionSource<Void>> results = new ArrayList<>();
+
+        @Override
+        public Task<Void> add(List<Fence> fences) {
+            ArrayList<String> fenceUIDs = new ArrayList<>();
+
+            for(Fence fence : fences) {
+                fenceUIDs.add(fence.uid);
+            }
+
+            return call("add " + String.join(",", fenceUIDs));
+        }
+
+        @Override
+        public Task<Void> remove(List<String> fenceUIDs) {
+            return call("remove " + String.join(",", fenceUIDs));
+        }
+
+        void succeed(int call) {
+            results.get(call).setResult(null);
+        }
+
+        void fail(int call, int statusCode) {
+            results.get(call).setException(new ApiException(new Status(statusCode)));
+        }
+
+        private Task<Void> call(String description) {
+            TaskCompletionSource<Void> result = new TaskCompletionSource<>();
+            calls.add(description);
+            results.add(result);
+            return result.getTask();
+        }
+    }
+
+    private static final class Result implements FenceOperationQueue.Listener {
+        int calls;
+        List<String> failedUIDs;
+        Exception error;
+
+        @Override
+        public void onComplete(List<String> failedUIDs, @Nullable Exception error) {
+            calls++;
+            this.failedUIDs = new ArrayList<>(failedUIDs);
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import static fyi.karm.perimeter.Constants.*;
+import static org.junit.Assert.*;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class FencePolygonsTest {
+
+    private static final double[] SQUARE = { -0.01, -0.01, -0.01, 0.01, 0.01, 0.01, 0.01, -0.01 };
+
+    @Test
+    public void readsVerticesAsLatLngPairs() throws Exception {
+        double[] vertices = FencePolygons.fromJSArray(vertices(1, 2, 3, 4, 5, 6));
+        assertArrayEquals(new double[]{ 1, 2, 3, 4, 5, 6 }, vertices, 0);
+    }
+
+    @Test
+    public void rejectsTooFewOrTooManyVertices() throws Exception {
+        assertNull(FencePolygons.fromJSArray(null));
+        assertNull(FencePolygons.fromJSArray(vertices(1, 2, 3, 4)));
+
+        double[] coordinates = new double[(POLYGON_MAX_VERTICES + 1) * 2];
+        assertNotNull(FencePolygons.fromJSArray(vertices(Arrays.copyOf(coordinates, POLYGON_MAX_VERTICES * 2))));
+        assertNull(FencePolygons.fromJSArray(vertices(coordinates)));
+    }
+
+    @Test
+    public void rejectsMalformedVertices() throws Exception {
+        assertNull(FencePolygons.fromJSArray(vertices(91, 0, 0, 0, 0, 1)));
+        assertNull(FencePolygons.fromJSArray(vertices(0, 181, 0, 0, 0, 1)));
+
+        JSONArray missingLng = vertices(0, 0, 0, 1, 1, 1);
+        missingLng.getJSONObject(1).remove("lng");
+        assertNull(FencePolygons.fromJSArray(missingLng));
+
+        JSONArray notAnObject = vertices(0, 0, 0, 1, 1, 1);
+        notAnObject.put(2, "1,1");
+        assertNull(FencePolygons.fromJSArray(notAnObject));
+
+        JSONArray notANumber = vertices(0, 0, 0, 1, 1, 1);
+        notANumber.getJSONObject(0).put("lat", "north");
+        assertNull(FencePolygons.fromJSArray(notANumber));
+    }
+
+    @Test
+    public void boundingCircleOfASquareIsCenteredOnIt() {
+        double[] circle = FencePolygons.boundingCircle(SQUARE);
+
+        assertEquals(0, circle[0], 1e-6);
+        assertEquals(0, circle[1], 1e-6);
+        assertEquals(FenceGrid.distanceMeters(0, 0, 0.01, 0.01), circle[2], 1);
+    }
+
+    @Test
+    public void boundingCircleOfAnObtuseTriangleSpansItsLongestSide() {
+        // The circumcircle would be far larger, the smallest circle only needs the two far corners.
+        double[] circle = FencePolygons.boundingCircle(new double[]{ 0, 0, 0.001, 0.01, 0, 0.02 });
+
+        assertEquals(0, circle[0], 1e-6);
+        assertEquals(0.01, circle[1], 1e-6);
+        assertEquals(FenceGrid.distanceMeters(0, 0, 0, 0.01), circle[2], 1);
+    }
+
+    @Test
+    public void boundingCircleHoldsEveryVertex() {
+        double[] vertices = {
+                51.5007, -0.1246, 51.5033, -0.1196, 51.5014, -0.1419, 51.5055, -0.0754,
+                51.5081, -0.0759, 51.5138, -0.0984, 51.4995, -0.1270, 51.5101, -0.1340
+        };
+        double[] circle = FencePolygons.boundingCircle(vertices);
+        int onEdge = 0;
+
+        for(int i = 0; i < vertices.length; i += 2) {
+            double distance = FenceGrid.distanceMeters(circle[0], circle[1], vertices[i], vertices[i + 1]);
+            assertTrue(distance <= circle[2] + 5);
+
+            if(distance > circle[2] - 5) {
+                onEdge++;
+            }
+        }
+
+        // A smallest enclosing circle is pinned by at least two of the points.
+        assertTrue(onEdge >= 2);
+    }
+
+    @Test
+    public void boundingCircleAcrossTheAntimeridianStaysInRange() {
+        double[] circle = FencePolygons.boundingCircle(new double[]{ -0.01, 179.99, -0.01, -179.99, 0.01, -179.99, 0.01, 179.99 });
+
+        assertEquals(0, circle[0], 1e-6);
+        assertEquals(180, Math.abs(circle[1]), 1e-6);
+        assertTrue(circle[1] >= -180 && circle[1] <= 180);
+        assertEquals(FenceGrid.distanceMeters(0, 0, 0.01, 0.01), circle[2], 1);
+    }
+
+    @Test
+    public void containsPointsInsideASquare() {
+        assertTrue(FencePolygons.contains(SQUARE, 0, 0));
+        assertTrue(FencePolygons.contains(SQUARE, 0.009, -0.009));
+        assertFalse(FencePolygons.contains(SQUARE, 0.011, 0));
+        assertFalse(FencePolygons.contains(SQUARE, 0, -0.011));
+    }
+
+    @Test
+    public void concaveNotchIsOutside() {
+        // An L shape, missing its north east quarter.
+        double[] shape = { 0, 0, 0, 0.02, 0.01, 0.02, 0.01, 0.01, 0.02, 0.01, 0.02, 0 };
+
+        assertTrue(FencePolygons.contains(shape, 0.005, 0.015));
+        assertTrue(FencePolygons.contains(shape, 0.015, 0.005));
+        assertFalse(FencePolygons.contains(shape, 0.015, 0.015));
+    }
+
+    @Test
+    public void containsAcrossTheAntimeridian() {
+        double[] square = { -0.01, 179.99, -0.01, -179.99, 0.01, -179.99, 0.01, 179.99 };
+
+        assertTrue(FencePolygons.contains(square, 0, 180));
+        assertTrue(FencePolygons.contains(square, 0, -179.995));
+        assertTrue(FencePolygons.contains(square, 0, 179.995));
+        assertFalse(FencePolygons.contains(square, 0, 179.98));
+        assertFalse(FencePolygons.contains(square, 0, -179.98));
+    }
+
+    private static JSONArray vertices(double... coordinates) throws Exception {
+        JSONArray vertices = new JSONArray();
+
+        for(int i = 0; i < coordinates.length; i += 2) {
+            vertices.put(new JSONObject().put("lat", coordinates[i]).put("lng", coordinates[i + 1]));
+        }
+
+        return vertices;
+    }
+}
@@ -0,0 +1,130 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import static fyi.karm.perimeter.Constants.*;
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Compaction logs through android.util.Log, which is only a stub outside Robolectric.
+@RunWith(RobolectricTestRunner.class)
+public class FenceStoresTest {
+
+    private static final int CHUNKS = 8;
+    private static final int PAYLOAD_CHARS = 8 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private FenceJournal journal;
+    private FenceJournal payloads;
+    private FenceRegistry registry;
+
+    @Before
+    public void setUp() {
+        directory = folder.getRoot();
+        journal = open(VIRTUAL_FENCE_STORE_NAME);
+        payloads = open(VIRTUAL_PAYLOAD_STORE_NAME);
+        registry = new FenceRegistry(VIRTUAL_GRID_CELL_DEGREES);
+    }
+
+    @Test
+    public void anImportIsCompactedAsItGrows() throws Exception {
+        int fenceCount = CHUNKS * IMPORT_CHUNK_SIZE;
+
+        // The same steps importFences takes for each chunk it reads.
+        for(int chunk = 0; chunk < CHUNKS; chunk++) {
+            ArrayList<Fence> fences = new ArrayList<>(IMPORT_CHUNK_SIZE);
+
+            for(int i = chunk * IMPORT_CHUNK_SIZE; i < (chunk + 1) * IMPORT_CHUNK_SIZE; i++) {
+                Fence fence = fence(i);
+                fences.add(fence);
+                registry.add(fence.withoutPayload());
+            }
+
+            FenceStores.putAll(journal, payloads, fences);
+            FenceStores.compactIfNeeded(journal, payloads, registry);
+        }
+
+        FenceStores.awaitCompactions();
+
+        // Both journals were folded into their stores along the way, and no side file was left behind.
+        assertFalse(journal.needsCompaction(fenceCount));
+        assertFalse(payloads.needsCompaction(fenceCount));
+        assertTrue(journal.getStore().uids().size() > fenceCount / 2);
+        assertTrue(payloads.getStore().uids().size() > fenceCount / 2);
+        assertArrayEquals(new String[0], directory.list((dir, name) -> name.endsWith(".records") || name.endsWith(".tmp")));
+
+        FenceRegistry replayed = new FenceRegistry(VIRTUAL_GRID_CELL_DEGREES);
+        FenceStores.replayInto(open(VIRTUAL_FENCE_STORE_NAME), replayed);
+        assertEquals(fenceCount, replayed.size());
+        assertNull(replayed.get("fence-7").payload);
+
+        HashMap<String, String> found = FenceStores.readPayloads(open(VIRTUAL_PAYLOAD_STORE_NAME),
+                Arrays.asList("fence-0", "fence-" + (fenceCount - 1), "missing"));
+        assertEquals(2, found.size());
+        assertEquals(payload(0), found.get("fence-0"));
+        assertEquals(payload(fenceCount - 1), found.get("fence-" + (fenceCount - 1)));
+    }
+
+    @Test
+    public void payloadCompactionKeepsOnlyLiveFences() throws Exception {
+        ArrayList<Fence> fences = new ArrayList<>();
+
+        for(int i = 0; i < COMPACTION_CHUNK_SIZE * 3; i++) {
+            fences.add(fence(i));
+        }
+
+        FenceStores.putAll(journal, payloads, fences);
+
+        // Every other fence is removed again, so only half of the payloads belong in the store.
+        for(Fence fence : fences) {
+            if(Integer.parseInt(fence.uid.substring("fence-".length())) % 2 == 0) {
+                registry.add(fence.withoutPayload());
+            }
+            else {
+                FenceStores.remove(journal, payloads, fence.uid);
+            }
+        }
+
+        FenceStores.compactIfNeeded(journal, payloads, registry);
+        FenceStores.awaitCompactions();
+
+        assertEquals(registry.size(), payloads.getStore().uids().size());
+        assertNull(payloads.getStore().read("fence-1"));
+        assertEquals(payload(2), FenceStores.readPayloads(open(VIRTUAL_PAYLOAD_STORE_NAME), registry.uids()).get("fence-2"));
+    }
+
+    private FenceJournal open(String name) {
+        return new FenceJournal(new FenceStore(new File(directory, name + ".bin")), directory, name);
+    }
+
+    private static Fence fence(int i) {
+        return new Fence("fence-" + i, "Fence " + i, payload(i), i, 40 + (i % 1000) * 0.001, -75 + (i / 1000) * 0.001,
+                MIN_FENCE_RADIUS, MONITOR_BOTH, Fence.UNSET, 0, Fence.UNSET, Fence.UNSET, Fence.UNSET, Fence.UNSET, null,
+                new String[0], null);
+    }
+
+    private static String payload(int i) {
+        StringBuilder payload = new StringBuilder(PAYLOAD_CHARS);
+        payload.append(i).append(':');
+
+        while(payload.length() < PAYLOAD_CHARS) {
+            payload.append('x');
+        }
+
+        return payload.toString();
+    }
+}
@@ -0,0 +1,148 @@
+// Copyright Mark Raymond Jr. 2022. All Rights Reserved
+
+package fyi.karm.perimeter;
+
+import static fyi.karm.perimeter.Constants.*;
+import static org.junit.Assert.*;
+
+import android.content.Context;
+
+import com.google.android.gms.location.Geofence;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Collections;
+import java.util.List;
+
+// State lives in SharedPreferences, which Robolectric provides and clears between tests.
+@RunWith(RobolectricTestRunner.class)
+public class TransitionFilterTest {
+
+    private static final int ENTER = Geofence.GEOFENCE_TRANSITION_ENTER;
+    private static final int EXIT = Geofence.GEOFENCE_TRANSITION_EXIT;
+    private static final long DEBOUNCE = 500;
+
+    private Context context;
+    private TransitionFilter filter;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        filter = new TransitionFilter(context);
+    }
+
+    @Test
+    public void withoutDebounceTransitionsAreReportedRightAway() {
+        assertTrue(filter.offer("a", ENTER, 1000, 0));
+        assertTrue(filter.offer("a", EXIT, 1001, 0));
+        assertEquals(0, filter.getNextSettleTime());
+        assertTrue(filter.settle(Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void transitionSettlesOnceItsWindowHasPassed() {
+        assertFalse(filter.offer("a", ENTER, 1000, DEBOUNCE));
+        assertEquals(1000 + DEBOUNCE, filter.getNextSettleTime());
+        assertTrue(filter.settle(1000 + DEBOUNCE - 1).isEmpty());
+
+        List<TransitionFilter.Settled> settled = filter.settle(1000 + DEBOUNCE);
+        assertEquals(1, settled.size());
+        assertEquals("a", settled.get(0).fenceUID);
+        assertEquals(ENTER, settled.get(0).transitionType);
+        assertEquals(1000, settled.get(0).time);
+        assertEquals(0, filter.getNextSettleTime());
+    }
+
+    @Test
+    public void theLongestWindowSettlesWithoutOverflowing() {
+        long time = 1_700_000_000_000L;
+        long longest = MAX_FENCE_DELAY_SECONDS * 1000L;
+
+        assertFalse(filter.offer("a", ENTER, time, longest));
+        assertEquals(time + longest, filter.getNextSettleTime());
+        assertTrue(filter.settle(time + longest - 1).isEmpty());
+        assertEquals(1, filter.settle(time + longest).size());
+
+        // A window past the end of the clock stays pending instead of wrapping around and settling at once.
+        assertFalse(filter.offer("b", ENTER, time, Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, filter.getNextSettleTime());
+        assertTrue(filter.settle(time + longest).isEmpty());
+    }
+
+    @Test
+    public void repeatingThePendingTransitionKeepsItsWindow() {
+        filter.offer("a", EXIT, 1000, DEBOUNCE);
+        filter.offer("a", EXIT, 1400, DEBOUNCE);
+
+        assertEquals(1000 + DEBOUNCE, filter.getNextSettleTime());
+        assertEquals(1000, filter.settle(1000 + DEBOUNCE).get(0).time);
+    }
+
+    @Test
+    public void flappingBackCancelsThePendingTransition() {
+        assertTrue(filter.offer("a", ENTER, 0, 0));
+        assertFalse(filter.offer("a", EXIT, 1000, DEBOUNCE));
+        assertFalse(filter.offer("a", ENTER, 1200, DEBOUNCE));
+
+        assertEquals(0, filter.getNextSettleTime());
+        assertTrue(filter.settle(Long.MAX_VALUE).isEmpty());
+
+        // Settled transitions become the new stable side, so going back is a transition again.
+        filter.offer("a", EXIT, 2000, DEBOUNCE);
+        assertEquals(1, filter.settle(2000 + DEBOUNCE).size());
+        assertFalse(filter.offer("a", ENTER, 3000, DEBOUNCE));
+        assertEquals(ENTER, filter.settle(3000 + DEBOUNCE).get(0).transitionType);
+    }
+
+    @Test
+    public void settledTransitionsComeOldestFirst() {
+        filter.offer("late", ENTER, 2000, DEBOUNCE);
+        filter.offer("early", EXIT, 1000, DEBOUNCE * 2);
+        filter.offer("pending", ENTER, 2500, DEBOUNCE);
+
+        assertEquals(1000 + DEBOUNCE * 2, filter.getNextSettleTime());
+
+        List<TransitionFilter.Settled> settled = filter.settle(2000 + DEBOUNCE);
+        assertEquals(2, settled.size());
+        assertEquals("early", settled.get(0).fenceUID);
+        assertEquals("late", settled.get(1).fenceUID);
+        assertEquals(2500 + DEBOUNCE, filter.getNextSettleTime());
+    }
+
+    @Test
+    public void pendingTransitionsSurviveANewProcess() {
+        filter.offer("a", ENTER, 1000, DEBOUNCE);
+        filter.offer("b", ENTER, 0, 0);
+
+        TransitionFilter restored = new TransitionFilter(context);
+        assertEquals(1000 + DEBOUNCE, restored.getNextSettleTime());
+        assertEquals("a", restored.settle(1000 + DEBOUNCE).get(0).fenceUID);
+
+        // b was restored as stable inside, so entering again is not a transition.
+        restored.offer("b", ENTER, 2000, DEBOUNCE);
+        assertEquals(0, restored.getNextSettleTime());
+    }
+
+    @Test
+    public void forgottenFencesLoseTheirPendingTransitions() {
+        filter.offer("a", ENTER, 1000, DEBOUNCE);
+        filter.offer("b", ENTER, 1000, DEBOUNCE);
+        filter.forget(Collections.singletonList("a"));
+
+        List<TransitionFilter.Settled> settled = filter.settle(Long.MAX_VALUE);
+        assertEquals(1, settled.size());
+        assertEquals("b", settled.get(0).fenceUID);
+        assertEquals(0, new TransitionFilter(context).getNextSettleTime());
+    }
+
+    @Test
+    public void defaultDebounceIsPersisted() {
+        assertEquals(0, filter.getDefaultDebounceMillis());
+        filter.setDefaultDebounceMillis(30000);
+        assertEquals(30000, new TransitionFilter(context).getDefaultDebounceMillis());
+    }
+}
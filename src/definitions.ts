@@ -1,6 +1,6 @@
 // Copyright Mark Raymond Jr., All Rights Reserved. 2022
 import type { PluginListenerHandle } from '@capacitor/core';
-import { AndroidPlatformEvents, iOSPlatformEvents, PerimeterErrors, TransitionTypes } from './enums';
+import { AndroidPlatformEvents, InitialTriggers, iOSPlatformEvents, PerimeterErrors, TransitionTypes } from './enums';
 
 export interface PerimeterPlugin {
 
@@ -25,22 +25,97 @@ export interface PerimeterPlugin {
   requestBackgroundPermissions(): Promise<LocationPermissionStatus>
 
   /**
-   * Request that system monitor a region defined by the newFence object. When the user enters or exits your fence, you will receive a fenceEvent.
+   * Request that system monitor a region defined by the newFence object. When the user enters or exits your fence, you will receive a fenceEvent. On Android, `responsivenessSeconds`, `loiterDelaySeconds`, `expirationSeconds` and `initialTrigger` tune how and when the system reports transitions for this fence; `responsivenessSeconds`, `loiterDelaySeconds` and `debounceSeconds` can be at most 2147483 and `expirationSeconds` at most 4611686018427387. A fence with `expirationSeconds` is removed from the active fences and the fence store once it expires, freeing its slot, and is reported with the time it expires as `expiresAt` in epoch milliseconds. Also on Android, a fence with a `polygon` registers its smallest bounding circle, computed in place of `lat`, `lng` and `radius`, and entering the circle starts a short burst of location updates that confirms entering the polygon. If the device is still outside the polygon when the burst ends, it is checked again with low power fixes, less often each time, until it enters the polygon or leaves the circle. Leaving a polygon is only reported when the device leaves its circle. Polygon fences cannot monitor dwell.
   */
   addFence(newFence : Fence): Promise<void>
 
+  /**
+   * Request that the system monitor every fence in the list using a single platform request. Each fence is validated individually and the results are returned in the same order as the input. Android only.
+  */
+  addFences(options: { fences: Array<Fence> }): Promise<{ results: Array<FenceResult> }>
+
   /**
    * Stop monitoring for a fence associated with the specified identifier. If the fence cannot be found, this method will fail and display an console error.
   */
   removeFence(options: { fenceUID: string }): Promise<void>
 
+  /**
+   * Stop monitoring for every fence associated with the specified identifiers using a single platform request. Identifiers that cannot be found are reported in the results. Android only.
+  */
+  removeFences(options: { fenceUIDs: Array<string> }): Promise<{ results: Array<FenceResult> }>
+
   /**
    * Stop monitoring for all active fences; stop all background location activity performed by this module.
   */
   removeAllFences(): Promise<void>
 
   /**
-   * Add an event listener for geofencing or platform specific error events.
+   * Replace the active fences with the given list. Only fences that are new, changed or no longer listed are sent to the system, so unchanged fences keep monitoring without firing their initial trigger again. Fences that are rejected are reported in the results and are not kept. Android only.
+  */
+  setFences(options: { fences: Array<Fence> }): Promise<FenceSyncResult>
+
+  /**
+   * Add fences to a virtual set that can grow past the platform fence limit. Only the `workingSetSize` fences nearest to the device are monitored by the system at any time, and the set is rotated automatically as the device moves. Android only.
+  */
+  addVirtualFences(options: { fences: Array<Fence>, workingSetSize?: number }): Promise<{ results: Array<FenceResult> }>
+
+  /**
+   * Stream fences from a local GeoJSON FeatureCollection or CSV file into the virtual set without sending them over the bridge. `path` is a file path or a file or content URI. Rows are validated like `addVirtualFences`; rows without a name use their uid, rows without a payload get an empty one and rows without a monitor watch both directions. CSV files need a header row naming the fence keys, with tags separated by semicolons. An `ImportProgress` event is sent after every chunk of fences is written. Only the first 100 rejected rows are listed in `errors`. Android only.
+  */
+  importFences(options: { path: string, format: 'geojson' | 'csv' }): Promise<FenceImportResult>
+
+  /**
+   * Remove fences from the virtual set. Android only.
+  */
+  removeVirtualFences(options: { fenceUIDs: Array<string> }): Promise<{ results: Array<FenceResult> }>
+
+  /**
+   * Remove every fence from the virtual set and stop monitoring its working set. Android only.
+  */
+  removeAllVirtualFences(): Promise<void>
+
+  /**
+   * Hold back enter and exit transitions until the device has stayed on the new side of a fence boundary for the given number of seconds. Transitions that flip back within the window are dropped. Applies to fences monitoring both transitions that do not set their own `debounceSeconds`; 0 disables debouncing and `seconds` can be at most 2147483. Android only.
+  */
+  setTransitionDebounce(options: { seconds: number }): Promise<void>
+
+  /**
+   * Collect fence events fired within the given number of milliseconds and deliver them together as a single `FenceEventBatch` instead of one `FenceEvent` each. 0, the default, delivers every event on its own. Android only.
+  */
+  setEventBatchWindow(options: { milliseconds: number }): Promise<void>
+
+  /**
+   * Returns latency histograms and pipeline counters collected since the app process started. Android only.
+  */
+  getMetrics(): Promise<PerimeterMetrics>
+
+  /**
+   * Emit a `MetricsEvent` carrying the same data as `getMetrics` every given number of seconds. 0, the default, stops it. Android only.
+  */
+  setMetricsInterval(options: { seconds: number }): Promise<void>
+
+  /**
+   * Returns the active fences whose region contains the given point, checked on the device without waiting for a platform event. Set `includeVirtual` to also search the virtual set. Android only.
+  */
+  queryFencesAt(options: { lat: number, lng: number, includeVirtual?: boolean, fields?: Array<keyof Fence> }): Promise<{ fences: Array<Fence> }>
+
+  /**
+   * Batch form of `queryFencesAt`. Results are returned in the same order as the points. Android only.
+  */
+  queryFencesAtPoints(options: { points: Array<{ lat: number, lng: number }>, includeVirtual?: boolean, fields?: Array<keyof Fence> }): Promise<{ results: Array<{ lat: number, lng: number, fences: Array<Fence> }> }>
+
+  /**
+   * Returns the payloads of the given fences, keyed by uid. On Android payloads are stored apart from the fences and left out of fence events and listings, so this is how they are read back. Active fences are checked first, then the virtual set; uids with no payload are left out. Android only.
+  */
+  getFencePayloads(options: { fenceUIDs: Array<string> }): Promise<{ payloads: { [uid: string]: string } }>
+
+  /**
+   * Returns recorded transitions whose triggering time falls between `since` and `until` in epoch milliseconds, both inclusive and both optional, oldest first. Pass `uid` to limit the history to one fence. The history keeps the most recent 4096 transitions across all fences. Android only.
+  */
+  getFenceHistory(options?: { since?: number, until?: number, uid?: string }): Promise<{ entries: Array<FenceHistoryEntry> }>
+
+  /**
+   * Add an event listener for geofencing or platform specific error events. On Android, fence events fired while the app was stopped are delivered together as a single `FenceEventBatch` when it starts again.
    */
   addListener( eventName: string, listenerFunc: (event: any) => void): Promise<PluginListenerHandle>;
   
@@ -50,9 +125,9 @@ export interface PerimeterPlugin {
   removeAllListeners(): Promise<void>;
   
   /**
-   * Returns a list of all regions currently being monitored.
+   * Returns a list of all regions currently being monitored. On Android the list can be filtered by `tag`, by a `bounds` box or by distance from a point with `near`, and split into pages of `pageSize` fences. Pass the returned `cursor` to get the next page; it is omitted on the last one. `fields` limits each fence to the given keys. Android leaves the payload out; use `getFencePayloads` to read it.
    */
-  getActiveFences(): Promise<{ data : Array<Fence> }>
+  getActiveFences(options?: ActiveFencesQuery): Promise<{ fences : Array<Fence>, cursor?: string }>
 }
 
 export class Fence {
@@ -63,7 +138,44 @@ export class Fence {
     public lat : number,
     public lng : number,
     public radius : number,
-    public monitor : TransitionTypes ) {}
+    public monitor : TransitionTypes,
+    public debounceSeconds? : number,
+    public responsivenessSeconds? : number,
+    public loiterDelaySeconds? : number,
+    public expirationSeconds? : number,
+    public initialTrigger? : InitialTriggers,
+    public tags? : Array<string>,
+    public polygon? : Array<{ lat : number, lng : number }>,
+    public expiresAt? : number ) {}
+}
+
+export class ActiveFencesQuery
+{
+  constructor (
+    public tag? : string,
+    public bounds? : { south : number, west : number, north : number, east : number },
+    public near? : { lat : number, lng : number, radius : number },
+    public pageSize? : number,
+    public cursor? : string,
+    public fields? : Array<keyof Fence> ) {}
+}
+
+export class FenceResult
+{
+  constructor (
+    public uid : string,
+    public success : boolean,
+    public error? : keyof typeof PerimeterErrors ) {}
+}
+
+export class FenceSyncResult
+{
+  constructor (
+    public results : Array<FenceResult>,
+    public added : Array<string>,
+    public updated : Array<string>,
+    public removed : Array<string>,
+    public unchanged : number ) {}
 }
 
 export class FenceEvent
@@ -74,6 +186,40 @@ export class FenceEvent
     public transitionType : TransitionTypes ) {}
 }
 
+export class FenceEventBatch
+{
+  constructor (
+    public events : Array<FenceEvent> ) {}
+}
+
+export class FenceImportResult
+{
+  constructor (
+    public imported : number,
+    public rejected : number,
+    public errors : Array<{ row : number, uid? : string, error : string }> ) {}
+}
+
+export class FenceImportProgress
+{
+  constructor (
+    public path : string,
+    public imported : number,
+    public rejected : number,
+    public bytesRead : number,
+    public totalBytes? : number ) {}
+}
+
+export class FenceHistoryEntry
+{
+  constructor (
+    public uid : string,
+    public transitionType : TransitionTypes,
+    public time : number,
+    public receivedAt : number,
+    public accuracy? : number ) {}
+}
+
 export class PlatformEvent
 {
   constructor (
@@ -82,6 +228,24 @@ export class PlatformEvent
     public data? : any ) {}
 }
 
+export class LatencyHistogram
+{
+  constructor (
+    public count : number,
+    public mean : number,
+    public max : number,
+    public p50 : number,
+    public p90 : number,
+    public p99 : number ) {}
+}
+
+export class PerimeterMetrics
+{
+  constructor (
+    public histograms : { triggerToReceiver : LatencyHistogram, triggerToJS : LatencyHistogram, registration : LatencyHistogram },
+    public counters : { triggers : number, debounced : number, dropped : number, queued : number, errors : number, restores : number } ) {}
+}
+
 export class LocationPermissionStatus {
   constructor (
     public foreground: PermissionState = "prompt",
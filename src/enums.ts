@@ -1,8 +1,16 @@
 export enum TransitionTypes {
     Enter = 8,
     Exit = 9,
-    Both = 10
+    Both = 10,
+    Dwell = 11
   }
+
+export enum InitialTriggers {
+    None = 0,
+    Enter = 1,
+    Exit = 2,
+    Dwell = 4
+}
   
 export enum PerimeterErrors {
     GEOFENCING_UNAVAILABLE,
@@ -27,5 +35,9 @@ export enum AndroidPlatformEvents {
     METHOD_UNAVAILABLE_API_VER,
     FAILED_PACK_INTENT,
     FAILED_RESTORING_FENCES,
-    FOREGROUND_WITH_EXISTING_FENCES
+    FOREGROUND_WITH_EXISTING_FENCES,
+    FAILED_ROTATING_VIRTUAL_FENCES,
+    FAILED_WRITING_FENCE_STORE,
+    FAILED_QUEUEING_FENCE_EVENT,
+    FAILED_RECORDING_HISTORY
 }
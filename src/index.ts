@@ -10,12 +10,22 @@ const Perimeter = registerPlugin<PerimeterPlugin>('Perimeter', {
 export {
   LocationPermissionStatus,
   Fence,
+  ActiveFencesQuery,
+  FenceResult,
+  FenceSyncResult,
   FenceEvent,
-  PlatformEvent
+  FenceEventBatch,
+  FenceHistoryEntry,
+  FenceImportResult,
+  FenceImportProgress,
+  PlatformEvent,
+  LatencyHistogram,
+  PerimeterMetrics
 } from './definitions';
 
 export { 
   TransitionTypes,
+  InitialTriggers,
   PerimeterErrors,
   iOSPlatformEvents,
   AndroidPlatformEvents
@@ -3,7 +3,7 @@ import type { PluginListenerHandle } from '@capacitor/core';
 
 import { WebPlugin } from '@capacitor/core';
 
-import { Fence, PerimeterPlugin, LocationPermissionStatus } from './definitions';
+import { ActiveFencesQuery, Fence, FenceHistoryEntry, FenceImportResult, FenceResult, FenceSyncResult, PerimeterMetrics, PerimeterPlugin, LocationPermissionStatus } from './definitions';
 
 const errorMessage = "This plugin does not have a web implementation.";
 
@@ -19,9 +19,24 @@ export class PerimeterWeb extends WebPlugin implements PerimeterPlugin {
   async requestForegroundPermissions(): Promise<LocationPermissionStatus> { throw this.unimplemented(errorMessage); }
   async requestBackgroundPermissions(): Promise<LocationPermissionStatus> { throw this.unimplemented(errorMessage); }
   async addFence(_newFence: Fence): Promise<void> { throw this.unimplemented(errorMessage);  }
+  async addFences(_options: { fences: Array<Fence> }): Promise<{ results: Array<FenceResult> }> { throw this.unimplemented(errorMessage);  }
   addListener( _eventName: string, _listenerFunc: (data: any) => void): Promise<PluginListenerHandle> & PluginListenerHandle { throw this.unimplemented(errorMessage); }
   removeFence(_options: { fenceUID: string }): Promise<void> { throw this.unimplemented(errorMessage);  }
+  removeFences(_options: { fenceUIDs: Array<string> }): Promise<{ results: Array<FenceResult> }> { throw this.unimplemented(errorMessage);  }
   removeAllFences(): Promise<void> { throw this.unimplemented(errorMessage); }
+  setFences(_options: { fences: Array<Fence> }): Promise<FenceSyncResult> { throw this.unimplemented(errorMessage); }
+  addVirtualFences(_options: { fences: Array<Fence>, workingSetSize?: number }): Promise<{ results: Array<FenceResult> }> { throw this.unimplemented(errorMessage); }
+  importFences(_options: { path: string, format: 'geojson' | 'csv' }): Promise<FenceImportResult> { throw this.unimplemented(errorMessage); }
+  removeVirtualFences(_options: { fenceUIDs: Array<string> }): Promise<{ results: Array<FenceResult> }> { throw this.unimplemented(errorMessage); }
+  removeAllVirtualFences(): Promise<void> { throw this.unimplemented(errorMessage); }
+  setTransitionDebounce(): Promise<void> { throw this.unimplemented(errorMessage); }
+  setEventBatchWindow(): Promise<void> { throw this.unimplemented(errorMessage); }
+  getMetrics(): Promise<PerimeterMetrics> { throw this.unimplemented(errorMessage); }
+  setMetricsInterval(): Promise<void> { throw this.unimplemented(errorMessage); }
+  queryFencesAt(_options: { lat: number, lng: number, includeVirtual?: boolean, fields?: Array<keyof Fence> }): Promise<{ fences: Array<Fence> }> { throw this.unimplemented(errorMessage); }
+  queryFencesAtPoints(_options: { points: Array<{ lat: number, lng: number }>, includeVirtual?: boolean, fields?: Array<keyof Fence> }): Promise<{ results: Array<{ lat: number, lng: number, fences: Array<Fence> }> }> { throw this.unimplemented(errorMessage); }
+  getFencePayloads(_options: { fenceUIDs: Array<string> }): Promise<{ payloads: { [uid: string]: string } }> { throw this.unimplemented(errorMessage); }
+  getFenceHistory(_options?: { since?: number, until?: number, uid?: string }): Promise<{ entries: Array<FenceHistoryEntry> }> { throw this.unimplemented(errorMessage); }
   removeAllListeners(): Promise<void> { throw this.unimplemented(errorMessage); }
-  getActiveFences(): Promise<{ data : Array<Fence> }> { throw this.unimplemented(errorMessage); }
+  getActiveFences(_options?: ActiveFencesQuery): Promise<{ fences : Array<Fence>, cursor?: string }> { throw this.unimplemented(errorMessage); }
 }